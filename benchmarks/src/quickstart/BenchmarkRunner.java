@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package quickstart;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks twice, with the GC profiler enabled: first reporting
+ * throughput in ops/s, then latency percentiles in microseconds.
+ *
+ * The test is invoked in this way:
+ *    java -cp target/benchmarks.jar quickstart.BenchmarkRunner [JMH options]
+ * where the optional JMH options (e.g. a benchmark name regexp) are applied
+ * to both runs.
+ */
+public class BenchmarkRunner {
+
+  public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+    Options cmdLine = new CommandLineOptions(args);
+
+    Options throughput = new OptionsBuilder()
+        .parent(cmdLine)
+        .mode(Mode.Throughput)
+        .timeUnit(TimeUnit.SECONDS)
+        .addProfiler(GCProfiler.class)
+        .build();
+    new Runner(throughput).run();
+
+    Options latency = new OptionsBuilder()
+        .parent(cmdLine)
+        .mode(Mode.SampleTime)
+        .timeUnit(TimeUnit.MICROSECONDS)
+        .addProfiler(GCProfiler.class)
+        .build();
+    new Runner(latency).run();
+  }
+
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package quickstart;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Renders a 1M-message chat snapshot, as the console writer does, with the
+ * original path (Long.parseLong, a new Date and SimpleDateFormat.format,
+ * producing a new String per message) and with {@link ChatTimeFormat}.
+ *
+ * Each invocation renders the whole snapshot; scores are per message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChatRenderBenchmark {
+
+  private static final int SNAPSHOT = 1000000;
+
+  private String[] timestamps;
+  private String[] messages;
+  private String[] ips;
+
+  private final SimpleDateFormat dateFormatter = new SimpleDateFormat("E hh:mm:ss");
+  private final ChatTimeFormat timeFormat = new ChatTimeFormat();
+  private final StringBuilder out = new StringBuilder(256);
+
+  @Setup
+  public void setup() {
+    Random random = new Random(11);
+    timestamps = new String[SNAPSHOT];
+    messages = new String[SNAPSHOT];
+    ips = new String[SNAPSHOT];
+    //about one day of chat, in time order
+    long time = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(1);
+    for (int i = 0; i < SNAPSHOT; i++) {
+      time += random.nextInt(170);
+      timestamps[i] = String.valueOf(time);
+      messages[i] = "message " + (i % 1000);
+      ips[i] = "10.0.0." + (i % 250);
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(SNAPSHOT)
+  public void simpleDateFormat(Blackhole blackhole) {
+    for (int i = 0; i < SNAPSHOT; i++) {
+      out.setLength(0);
+      long timestamp = Long.parseLong(timestamps[i]);
+      Date time = new Date(timestamp);
+      out.append("MESSAGE @ ").append(dateFormatter.format(time)).append(" |").append(ips[i]).append(": ").append(messages[i]).append('\n');
+      blackhole.consume(out.length());
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(SNAPSHOT)
+  public void chatTimeFormat(Blackhole blackhole) {
+    for (int i = 0; i < SNAPSHOT; i++) {
+      out.setLength(0);
+      out.append("MESSAGE @ ");
+      timeFormat.append(out, timestamps[i]);
+      out.append(" |").append(ips[i]).append(": ").append(messages[i]).append('\n');
+      blackhole.consume(out.length());
+    }
+  }
+
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package quickstart;
+
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.lightstreamer.client.ItemUpdate;
+import com.lightstreamer.client.SubscriptionListener;
+
+/**
+ * Drives synthetic update streams through the onItemUpdate method of the
+ * Stocklist, Portfolio and Chat listeners, with the console output written
+ * to a null stream.
+ *
+ * The measured time only covers the listener callback, i.e. what the
+ * library event thread pays; the console writer thread runs concurrently,
+ * and, with the BLOCK overflow policy, slows the callback down whenever it
+ * cannot keep up. Bytes allocated per update are reported by the GC
+ * profiler (-prof gc, or see {@link BenchmarkRunner}).
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ListenerBenchmark {
+
+  private static final int STREAM_LENGTH = 4096;
+
+  private static final String[] portfolioFields = {"key", "command", "qty", "stock_name", "last_price"};
+
+  private static final String[] chatFields = {"raw_timestamp", "message", "IP"};
+
+  @Param({"BLOCK", "DROP_OLDEST", "COALESCE"})
+  public String overflow;
+
+  private ConsoleSink console;
+
+  private SubscriptionListener stocklist;
+  private SubscriptionListener portfolio;
+  private SubscriptionListener chat;
+
+  private ItemUpdate[] stocklistUpdates;
+  private ItemUpdate[] portfolioUpdates;
+  private ItemUpdate[] chatUpdates;
+
+  private int next = 0;
+
+  @Setup
+  public void setup() {
+    console = new ConsoleSink(new NullOutputStream(), 8192, 100, ConsoleSink.OverflowPolicy.valueOf(overflow));
+
+    stocklist = new Stocklist.SystemOutSubscriptionListener(console);
+    portfolio = new Portfolio.SystemOutSubscriptionListener(console);
+    chat = new Chat.SystemOutSubscriptionListener(console);
+
+    Random random = new Random(42);
+    stocklistUpdates = stocklistStream(random);
+    portfolioUpdates = portfolioStream(random);
+    chatUpdates = chatStream(random);
+  }
+
+  @TearDown
+  public void tearDown() {
+    console.close();
+  }
+
+  @Benchmark
+  public void stocklistUpdate() {
+    stocklist.onItemUpdate(stocklistUpdates[next++ & (STREAM_LENGTH - 1)]);
+  }
+
+  @Benchmark
+  public void portfolioUpdate() {
+    portfolio.onItemUpdate(portfolioUpdates[next++ & (STREAM_LENGTH - 1)]);
+  }
+
+  @Benchmark
+  public void chatUpdate() {
+    chat.onItemUpdate(chatUpdates[next++ & (STREAM_LENGTH - 1)]);
+  }
+
+  /**
+   * Random walks over the 15 Stocklist items, each update changing a random
+   * subset of the fields, as the QUOTE_ADAPTER does.
+   */
+  static ItemUpdate[] stocklistStream(Random random) {
+    FieldLayout layout = Stocklist.layout;
+    String[] fields = layout.getNames();
+    int items = 15;
+    double[] prices = new double[items + 1];
+    for (int i = 1; i <= items; i++) {
+      prices[i] = 10 + random.nextInt(90);
+    }
+
+    ItemUpdate[] stream = new ItemUpdate[STREAM_LENGTH];
+    for (int n = 0; n < STREAM_LENGTH; n++) {
+      int itemPos = 1 + n % items;
+      prices[itemPos] = Math.max(1, prices[itemPos] + (random.nextInt(21) - 10) / 100.0);
+      double price = prices[itemPos];
+
+      String[] values = new String[fields.length];
+      long changed = 0;
+      for (int pos = 1; pos <= fields.length; pos++) {
+        String name = fields[pos - 1];
+        switch (layout.getKind(pos)) {
+          case TIME:
+            values[pos - 1] = String.format("%02d:%02d:%02d", 9 + n / 3600 % 8, n / 60 % 60, n % 60);
+            break;
+          case INTEGER:
+            values[pos - 1] = String.valueOf(500 * (1 + random.nextInt(20)));
+            break;
+          default:
+            double value = name.equals("bid") ? price - 0.01 : name.equals("ask") ? price + 0.01 : name.equals("pct_change") ? random.nextGaussian() : price;
+            values[pos - 1] = String.format(Locale.ROOT, "%.2f", value);
+        }
+        if (n < items || name.equals("last_price") || name.equals("time") || random.nextInt(3) == 0) {
+          changed |= 1L << pos;
+        }
+      }
+      stream[n] = new SyntheticItemUpdate("item" + itemPos, itemPos, fields, values, changed, n < items);
+    }
+    return stream;
+  }
+
+  /**
+   * ADD, UPDATE and DELETE commands over a few portfolio keys.
+   */
+  static ItemUpdate[] portfolioStream(Random random) {
+    int keys = 10;
+    boolean[] added = new boolean[keys];
+    ItemUpdate[] stream = new ItemUpdate[STREAM_LENGTH];
+    for (int n = 0; n < STREAM_LENGTH; n++) {
+      int k = random.nextInt(keys);
+      String command;
+      if (!added[k]) {
+        command = "ADD";
+        added[k] = true;
+      } else if (random.nextInt(20) == 0) {
+        command = "DELETE";
+        added[k] = false;
+      } else {
+        command = "UPDATE";
+      }
+      String[] values = {
+          "item" + (k + 1), command, String.valueOf(100 * (1 + random.nextInt(50))),
+          "Stock " + (k + 1), String.format(Locale.ROOT, "%.2f", 10 + random.nextDouble() * 90)
+      };
+      stream[n] = new SyntheticItemUpdate("portfolio1", 1, portfolioFields, values, 0x3E, false);
+    }
+    return stream;
+  }
+
+  /**
+   * Chat messages, one per second.
+   */
+  static ItemUpdate[] chatStream(Random random) {
+    long timestamp = 1700000000000L;
+    ItemUpdate[] stream = new ItemUpdate[STREAM_LENGTH];
+    for (int n = 0; n < STREAM_LENGTH; n++) {
+      timestamp += 1000 + random.nextInt(100);
+      String[] values = {
+          String.valueOf(timestamp), "message number " + n, "10.0.0." + random.nextInt(256)
+      };
+      stream[n] = new SyntheticItemUpdate("chat_room", 1, chatFields, values, 0x0E, false);
+    }
+    return stream;
+  }
+
+}
@@ -0,0 +1,335 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package quickstart;
+
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.lightstreamer.client.ItemUpdate;
+import com.lightstreamer.client.LightstreamerClient;
+import com.lightstreamer.client.Subscription;
+import com.lightstreamer.client.SubscriptionListener;
+
+/**
+ * Adapts the requested max frequency of a subscription to the load of its
+ * consumers, so that, when they are saturated, updates are conflated by the
+ * Server rather than piling up in the client.
+ *
+ * The controller wraps the subscription listener, measuring the time spent in
+ * onItemUpdate, and periodically takes the load as the highest between the
+ * busy fraction of the listener and the fill ratio of the console queue:
+ * - above {@link #HIGH_LOAD}, the frequency is halved; if the subscription is
+ *   unfiltered, it is first resubscribed as filtered, at half the observed
+ *   update rate per item, with a buffer of one update in MERGE mode;
+ * - below {@link #LOW_LOAD} for {@link #QUIET_PERIODS} periods in a row, the
+ *   frequency is raised by half; beyond the rate observed before throttling
+ *   it goes back to the one originally requested ("unlimited" if none) and,
+ *   if the subscription was started unfiltered, after as many quiet periods
+ *   again, it is resubscribed as unfiltered.
+ * Numeric and "unlimited" frequencies are changed in place, as the API allows
+ * while the subscription is active; the switch between filtered and
+ * unfiltered requires the subscription to be inactive, hence it costs a new
+ * snapshot.
+ *
+ * The controller is enabled by the quickstart.adaptive system property, which
+ * specifies the period, in seconds, of the checks; with
+ * quickstart.adaptive.unfiltered=true the subscription is started unfiltered.
+ */
+public class AdaptiveFrequencyController implements SubscriptionListener {
+
+  static final double HIGH_LOAD = 0.8;
+  static final double LOW_LOAD = 0.3;
+  static final int QUIET_PERIODS = 5;
+  static final double MIN_FREQUENCY = 0.1;
+
+  /**
+   * @return the listener wrapped in a controller of the subscription if the
+   * quickstart.adaptive system property is set, otherwise the listener itself
+   */
+  static SubscriptionListener wrapIfConfigured(LightstreamerClient client, Subscription sub, SubscriptionListener listener, String name) {
+    Long period = Long.getLong("quickstart.adaptive");
+    if (period == null) {
+      return listener;
+    }
+    if (Boolean.getBoolean("quickstart.adaptive.unfiltered")) {
+      sub.setRequestedMaxFrequency("unfiltered");
+    }
+    AdaptiveFrequencyController controller = new AdaptiveFrequencyController(client, sub, listener, name, ConsoleSink.getDefault());
+    controller.start(period);
+    return controller;
+  }
+
+  private final LightstreamerClient client;
+  private final Subscription sub;
+  private final SubscriptionListener delegate;
+  private final String name;
+  private final ConsoleSink console;
+  private final boolean startedUnfiltered;
+  private final double ceiling; //as originally requested; infinite for "unlimited"
+  private final AtomicLong updates = new AtomicLong();
+  private final AtomicLong busyNanos = new AtomicLong();
+  //in COMMAND mode the updates are spread over the keys rather than the items
+  private final boolean commandMode;
+  private final Set<String> keys = new HashSet<String>(); //only touched by the event thread
+  private volatile int keyCount;
+
+  //only touched by the control thread
+  private ScheduledExecutorService scheduler;
+  private long lastCheck;
+  private long lastUpdates;
+  private long lastBusy;
+  private boolean unfiltered;
+  private double frequency; //as requested; infinite for "unlimited"
+  private double unthrottledRate;
+  private int quietPeriods;
+
+  public AdaptiveFrequencyController(LightstreamerClient client, Subscription sub, SubscriptionListener delegate, String name, ConsoleSink console) {
+    this.client = client;
+    this.sub = sub;
+    this.delegate = delegate;
+    this.name = name;
+    this.console = console;
+    String requested = sub.getRequestedMaxFrequency();
+    this.startedUnfiltered = "unfiltered".equals(requested);
+    this.unfiltered = startedUnfiltered;
+    if (requested != null && !startedUnfiltered && !"unlimited".equals(requested)) {
+      this.ceiling = Double.parseDouble(requested);
+    } else {
+      this.ceiling = Double.POSITIVE_INFINITY;
+    }
+    this.frequency = ceiling;
+    this.commandMode = "COMMAND".equals(sub.getMode());
+  }
+
+  public void start(long periodSeconds) {
+    lastCheck = System.nanoTime();
+    scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "AdaptiveFrequencyController " + name);
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    scheduler.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          check();
+        } catch (IllegalArgumentException | IllegalStateException e) {
+          //e.g. a value the Server does not allow
+          console.println("[adaptive] " + name + ": " + e.getMessage());
+        }
+      }
+    }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+  }
+
+  public void stop() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+    }
+  }
+
+  /**
+   * @return the load of the consumers, normally between 0 and 1
+   */
+  double measureLoad(long now) {
+    long busy = busyNanos.get();
+    double busyFraction = (double) (busy - lastBusy) / Math.max(1, now - lastCheck);
+    lastBusy = busy;
+    double queueFill = (double) console.getQueueDepth() / console.getCapacity();
+    return Math.max(busyFraction, queueFill);
+  }
+
+  private void check() {
+    long now = System.nanoTime();
+    long count = updates.get();
+    //a COMMAND subscription has a single item, but the max frequency applies to each key
+    int items = commandMode ? keyCount : sub.getItems() != null ? sub.getItems().length : 1;
+    items = Math.max(1, items);
+    double ratePerItem = (count - lastUpdates) / ((now - lastCheck) / 1e9) / items;
+    double load = measureLoad(now);
+    lastUpdates = count;
+    lastCheck = now;
+
+    if (load > HIGH_LOAD) {
+      quietPeriods = 0;
+      if (frequency == ceiling) {
+        unthrottledRate = ratePerItem;
+      }
+      frequency = Math.max(MIN_FREQUENCY, Math.min(frequency, ratePerItem) / 2);
+      if (unfiltered) {
+        resubscribe(false);
+      } else {
+        sub.setRequestedMaxFrequency(format(frequency));
+      }
+      report(load, ratePerItem);
+
+    } else if (load < LOW_LOAD) {
+      if (++quietPeriods < QUIET_PERIODS) {
+        return;
+      }
+      quietPeriods = 0;
+      if (frequency < ceiling) {
+        frequency *= 1.5;
+        if (frequency > unthrottledRate || frequency > ceiling) {
+          //no longer a limit
+          frequency = ceiling;
+        }
+        sub.setRequestedMaxFrequency(format(frequency));
+        report(load, ratePerItem);
+      } else if (startedUnfiltered && !unfiltered) {
+        resubscribe(true);
+        report(load, ratePerItem);
+      }
+
+    } else {
+      quietPeriods = 0;
+    }
+  }
+
+  private static String format(double frequency) {
+    return Double.isInfinite(frequency) ? "unlimited" : String.format(Locale.ROOT, "%.2f", frequency);
+  }
+
+  /**
+   * Switches between filtered and unfiltered, which is only allowed while
+   * the subscription is inactive.
+   */
+  private void resubscribe(boolean toUnfiltered) {
+    client.unsubscribe(sub);
+    try {
+      if (toUnfiltered) {
+        sub.setRequestedMaxFrequency("unfiltered");
+        if ("MERGE".equals(sub.getMode())) {
+          sub.setRequestedBufferSize(null);
+        }
+      } else {
+        sub.setRequestedMaxFrequency(format(frequency));
+        if ("MERGE".equals(sub.getMode())) {
+          //only the latest update of each item is kept by the Server
+          sub.setRequestedBufferSize("1");
+        }
+      }
+      unfiltered = toUnfiltered;
+    } finally {
+      //with the new settings refused, the subscription goes on with the previous ones
+      client.subscribe(sub);
+    }
+  }
+
+  private void report(double load, double ratePerItem) {
+    console.println(String.format(Locale.ROOT, "[adaptive] %s load=%.2f rate/item=%.1f/s -> max frequency %s",
+        name, load, ratePerItem, unfiltered ? "unfiltered" : format(frequency)));
+  }
+
+  @Override
+  public void onItemUpdate(ItemUpdate update) {
+    if (commandMode) {
+      trackKey(update);
+    }
+    long start = System.nanoTime();
+    try {
+      delegate.onItemUpdate(update);
+    } finally {
+      busyNanos.lazySet(busyNanos.get() + System.nanoTime() - start);
+      updates.lazySet(updates.get() + 1);
+    }
+  }
+
+  private void trackKey(ItemUpdate update) {
+    String key = update.getValue("key");
+    if (key == null) {
+      return;
+    }
+    if ("DELETE".equals(update.getValue("command"))) {
+      keys.remove(key);
+    } else {
+      keys.add(key);
+    }
+    keyCount = keys.size();
+  }
+
+  @Override
+  public void onClearSnapshot(String itemName, int itemPos) {
+    if (commandMode) {
+      keys.clear();
+      keyCount = 0;
+    }
+    delegate.onClearSnapshot(itemName, itemPos);
+  }
+
+  @Override
+  public void onCommandSecondLevelItemLostUpdates(int lostUpdates, String key) {
+    delegate.onCommandSecondLevelItemLostUpdates(lostUpdates, key);
+  }
+
+  @Override
+  public void onCommandSecondLevelSubscriptionError(int code, String message, String key) {
+    delegate.onCommandSecondLevelSubscriptionError(code, message, key);
+  }
+
+  @Override
+  public void onEndOfSnapshot(String itemName, int itemPos) {
+    delegate.onEndOfSnapshot(itemName, itemPos);
+  }
+
+  @Override
+  public void onItemLostUpdates(String itemName, int itemPos, int lostUpdates) {
+    delegate.onItemLostUpdates(itemName, itemPos, lostUpdates);
+  }
+
+  @Override
+  public void onListenEnd() {
+    delegate.onListenEnd();
+  }
+
+  @Override
+  public void onListenStart() {
+    delegate.onListenStart();
+  }
+
+  @Override
+  public void onSubscription() {
+    delegate.onSubscription();
+  }
+
+  @Override
+  public void onSubscriptionError(int code, String message) {
+    delegate.onSubscriptionError(code, message);
+  }
+
+  @Override
+  public void onUnsubscription() {
+    if (commandMode) {
+      keys.clear();
+      keyCount = 0;
+    }
+    delegate.onUnsubscription();
+  }
+
+  @Override
+  public void onRealMaxFrequency(String frequency) {
+    delegate.onRealMaxFrequency(frequency);
+  }
+
+}
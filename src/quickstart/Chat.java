@@ -18,8 +18,12 @@ package quickstart;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import com.lightstreamer.client.ClientListener;
 import com.lightstreamer.client.ClientMessageListener;
@@ -49,6 +53,8 @@ public class Chat {
    * START - reconnects the client
    * UNSUB - unsubscribes from the chat
    * SUB - subscribes to the chat 
+   * NOQUEUE/QUEUE - drops/keeps the messages typed while disconnected
+   * STATS - prints the figures of the outbound message queue
    * EXIT - exits the application
    * (the application starts by connecting and subscribing)
    * 
@@ -62,95 +68,134 @@ public class Chat {
   }
   
   void start(String serverAddress) {
-    
-    // the chat demo available @ http://demos.lightstreamer.com/ChatDemo/
-    // connects to the DEMO adapter set on push.lightstreamer.com rather than 
-    // to a CHAT one (obviously that DEMO adapter set contains the CHAT_ROOM
-    // adapters). 
-    // For this reason, when connecting to push.lightstreamer.com we use the DEMO
-    // adapter set, so you can open a browser to the above address and chat
-    // with yourself.
-    
-    String adapterSet = serverAddress.contains("push.lightstreamer.com") ? "DEMO" : "CHAT";
-    LightstreamerClient client = new LightstreamerClient(serverAddress, adapterSet);
+    LightstreamerClient client = ConnectionProfile.configure(new LightstreamerClient(serverAddress, adapterSet(serverAddress)));
     
     ClientListener clientListener = new SystemOutClientListener();
     client.addListener(clientListener);
     
-    Subscription sub = new Subscription("DISTINCT","chat_room",new String[] {"raw_timestamp","message", "IP"});
-    sub.setRequestedSnapshot("yes");
-    sub.setDataAdapter("CHAT_ROOM");
+    Subscription sub = newSubscription();
+    
+    // with a local history, the recent messages are rendered from disk at once and only
+    // the tail of the snapshot is requested; the messages already stored are not shown twice
+    ChatHistoryStore history = ChatHistoryStore.openIfConfigured();
+    SystemOutSubscriptionListener chatListener = new SystemOutSubscriptionListener(ConsoleSink.getDefault(), history);
+    if (history != null && history.size() > 0) {
+      chatListener.renderHistory(Integer.getInteger("quickstart.chat.history.minutes", 60));
+      sub.setRequestedSnapshot(String.valueOf(Integer.getInteger("quickstart.chat.snapshot", 50)));
+    } else {
+      sub.setRequestedSnapshot("yes");
+    }
     
-    SubscriptionListener subListener = new SystemOutSubscriptionListener();
+    SubscriptionListener subListener = InstrumentedSubscriptionListener.wrapIfConfigured(
+        chatListener, "chat", InstrumentedSubscriptionListener.epochMillis("raw_timestamp"));
     sub.addListener(subListener);
+    UpdateRecorder.attachIfConfigured(sub, "chat");
+    SoakMonitor.attachIfConfigured(sub, "chat");
     
     client.subscribe(sub);
     client.connect();
     
-    ClientMessageListener sentMessageListener = new SystemOutClientMessageListener();
+    final ConsoleSink console = ConsoleSink.getDefault();
+    final ChatSender sender = ChatSender.fromProperties(client, console);
     
-    String PREFIX = "CHAT|";
-    System.out.println("========NOW READING FROM SYSTEM IN=========");
-    BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
-    boolean queueWhileDisconnected = true;
+    // stdin is read by a dedicated thread: chat lines go to the bounded queue of the
+    // sender (a producer faster than the sender is slowed down there), while commands
+    // are handed to the loop below, which is never blocked by the input
+    final BlockingQueue<String> commands = new ArrayBlockingQueue<String>(64);
+    Thread reader = new Thread("Chat stdin reader") {
+      @Override
+      public void run() {
+        BufferedReader br = new BufferedReader(new InputStreamReader(System.in), 1 << 16);
+        try {
+          String mex;
+          while ((mex = br.readLine()) != null) {
+            if (mex.trim().isEmpty()) {
+              continue;
+            }
+            if (COMMANDS.contains(mex)) {
+              commands.put(mex);
+            } else {
+              sender.send(mex);
+            }
+          }
+        } catch (IOException e) {
+          //something wrong with the console?
+        } catch (InterruptedException e) {
+          return;
+        }
+        try {
+          commands.put(END_OF_INPUT);
+        } catch (InterruptedException e) {
+        }
+      }
+    };
+    reader.setDaemon(true);
+    
+    console.println("========NOW READING FROM SYSTEM IN=========");
+    reader.start();
     while(true) {
-      String mex = null;
+      String mex;
       try {
-         mex = br.readLine();
-      } catch (IOException e) {
-        //something wrong with the console?
+        mex = commands.take();
+      } catch (InterruptedException e) {
         return;
       }
-      if (!mex.trim().isEmpty()) {
-        try {
-          //none of these calls blocks
-          switch (mex) {
-          
-            // connect/disconnect commands
-            case "STOP":
-              client.disconnect();
-              break;
-            case "START":
-              client.connect();
-              break;
-              
-            // subscribe / unsubscribe commands  
-            case "UNSUB":
-              client.unsubscribe(sub);
-              break;
-            case "SUB":
-              client.subscribe(sub);
-              break;
-              
-            // specifiying true as last parameter, if a message is sent while not connected
-            // to Lightstreamer, the client will queue it and will send as soon as
-            // a new connection is available. Use these commands to switch the flag for the 
-            // next messages
-            case "NOQUEUE":
-              queueWhileDisconnected = false;
-              System.out.println("=== Not queuing messages if disconnected");
-              break;
-            case "QUEUE":
-              System.out.println("=== Queuing messages if disconnected");
-              queueWhileDisconnected = true;
-              break;
-              
-            // exiting this loop there will be no more non-daemon threads and the application
-            // will terminate  
-            case "EXIT":
-              return;
-              
-              
-            default:
-              String s = PREFIX + mex;
-              client.sendMessage(s, "chat", 500, sentMessageListener, queueWhileDisconnected);
-              
-          }
-        } catch(IllegalArgumentException | IllegalStateException e) {
-          //some of the above calls might throw exceptions, see API docs for details
-          System.err.println(e.getMessage());
-          continue;
+      try {
+        //none of these calls blocks
+        switch (mex) {
+        
+          // connect/disconnect commands
+          case "STOP":
+            client.disconnect();
+            break;
+          case "START":
+            client.connect();
+            break;
+            
+          // subscribe / unsubscribe commands  
+          case "UNSUB":
+            client.unsubscribe(sub);
+            break;
+          case "SUB":
+            client.subscribe(sub);
+            break;
+            
+          // messages typed while not connected to Lightstreamer are kept in the sender queue
+          // and sent as soon as a new connection is available, unless queuing is switched off;
+          // then they are dropped. Use these commands to switch the behavior for the next messages
+          case "NOQUEUE":
+            sender.setQueueWhileDisconnected(false);
+            console.println("=== Not queuing messages if disconnected");
+            break;
+          case "QUEUE":
+            console.println("=== Queuing messages if disconnected");
+            sender.setQueueWhileDisconnected(true);
+            break;
+            
+          // queue depth, time in queue and other figures of the sender
+          case "STATS":
+            console.println(sender.stats());
+            break;
+            
+          // exiting this loop there will be no more non-daemon threads and the application
+          // will terminate  
+          case "EXIT":
+            return;
+            
+          // piped input is over: wait for the pending messages, but not forever
+          case END_OF_INPUT:
+            if (!sender.awaitDrained(Long.getLong("quickstart.chat.drainTimeout", 30000))) {
+              console.println(sender.getUnfinished() + " messages still unacknowledged, giving up");
+            }
+            console.println(sender.stats());
+            return;
         }
+      } catch(IllegalArgumentException | IllegalStateException e) {
+        //some of the above calls might throw exceptions, see API docs for details
+        System.err.println(e.getMessage());
+        continue;
+      } catch (InterruptedException e) {
+        return;
       }
      
     }
@@ -158,14 +203,73 @@ public class Chat {
     
   }
   
+  static String adapterSet(String serverAddress) {
+    // the chat demo available @ http://demos.lightstreamer.com/ChatDemo/
+    // connects to the DEMO adapter set on push.lightstreamer.com rather than 
+    // to a CHAT one (obviously that DEMO adapter set contains the CHAT_ROOM
+    // adapters). 
+    // For this reason, when connecting to push.lightstreamer.com we use the DEMO
+    // adapter set, so you can open a browser to the above address and chat
+    // with yourself.
+    return serverAddress.contains("push.lightstreamer.com") ? "DEMO" : "CHAT";
+  }
+  
+  /**
+   * @return the subscription of the example, with no listeners and no snapshot requested
+   */
+  static Subscription newSubscription() {
+    Subscription sub = new Subscription("DISTINCT","chat_room",new String[] {"raw_timestamp","message", "IP"});
+    sub.setDataAdapter("CHAT_ROOM");
+    return sub;
+  }
+  
+  private static final String END_OF_INPUT = "\u0000EOF";
+  
+  private static final Set<String> COMMANDS = new HashSet<String>(Arrays.asList(
+      "STOP", "START", "UNSUB", "SUB", "NOQUEUE", "QUEUE", "STATS", "EXIT"));
+  
   
   
   
   public static class SystemOutSubscriptionListener implements SubscriptionListener {
+
+    private final ConsoleSink console;
+    private final ChatHistoryStore history;
+
+    public SystemOutSubscriptionListener() {
+      this(ConsoleSink.getDefault());
+    }
+
+    public SystemOutSubscriptionListener(ConsoleSink console) {
+      this(console, null);
+    }
+
+    /**
+     * @param history where the messages are stored, or null
+     */
+    public SystemOutSubscriptionListener(ConsoleSink console, ChatHistoryStore history) {
+      this.console = console;
+      this.history = history;
+    }
+    
+    /**
+     * Renders the messages of the local history received in the last minutes
+     * before the newest one.
+     */
+    void renderHistory(int minutes) {
+      long from = history.lastTimestamp() - TimeUnit.MINUTES.toMillis(minutes);
+      int rendered = history.replaySince(from, new ChatHistoryStore.Visitor() {
+        @Override
+        public void onMessage(long timestamp, String ip, String message) {
+          console.submit(new MessageRecord(String.valueOf(timestamp), ip, message, timeFormat));
+        }
+      });
+      console.println("=== " + rendered + " of " + history.size() + " messages from the local history");
+    }
     
     @Override
     public void onClearSnapshot(String itemName, int itemPos) {
-      System.out.println("Server has cleared the current status of the chat");
+      console.println("Server has cleared the current status of the chat");
     }
   
     @Override
@@ -180,85 +284,145 @@ public class Chat {
   
     @Override
     public void onEndOfSnapshot(String arg0, int arg1) {
-      System.out.println("Snapshot is now fully received, from now on only real-time messages will be received");
+      console.println("Snapshot is now fully received, from now on only real-time messages will be received");
     }
   
     @Override
     public void onItemLostUpdates(String itemName, int itemPos, int lostUpdates) {
-      System.out.println(lostUpdates + " messages were lost");
+      console.println(lostUpdates + " messages were lost");
     }
     
-    SimpleDateFormat dateFormatter = new SimpleDateFormat("E hh:mm:ss"); 
+    //thread-safe, although only used by the console writer thread
+    final ChatTimeFormat timeFormat = new ChatTimeFormat(); 
   
     @Override
     public void onItemUpdate(ItemUpdate update) {
-      long timestamp = Long.parseLong(update.getValue("raw_timestamp"));
-      Date time = new Date(timestamp);
-      System.out.println("MESSAGE @ " + dateFormatter.format(time) + " |" + update.getValue("IP") + ": " + update.getValue("message"));
+      String rawTimestamp = update.getValue("raw_timestamp");
+      String ip = update.getValue("IP");
+      String message = update.getValue("message");
+      if (history != null && rawTimestamp != null) {
+        long timestamp = Decimals.parseLong(rawTimestamp);
+        if (timestamp != Decimals.INVALID_LONG && !history.append(timestamp, ip, message)) {
+          //already rendered from the history
+          return;
+        }
+      }
+      //formatting and printing are left to the console writer thread
+      console.submit(new MessageRecord(rawTimestamp, ip, message, timeFormat));
     }
   
     @Override
     public void onListenEnd() {
-      System.out.println("Stop listeneing to subscription events");
+      console.println("Stop listeneing to subscription events");
     }
   
     @Override
     public void onListenStart() {
-      System.out.println("Start listeneing to subscription events");
+      console.println("Start listeneing to subscription events");
     }
   
     @Override
     public void onSubscription() {
-      System.out.println("Now subscribed to the chat item, messages will now start coming in");
+      console.println("Now subscribed to the chat item, messages will now start coming in");
     }
   
     @Override
     public void onSubscriptionError(int code, String message) {
-      System.out.println("Cannot subscribe because of error " + code + ": " + message); 
+      console.println("Cannot subscribe because of error " + code + ": " + message); 
     }
   
     @Override
     public void onUnsubscription() {
-      System.out.println("Now unsubscribed from chat item, no more messages will be received");
+      console.println("Now unsubscribed from chat item, no more messages will be received");
     }
 
     @Override
     public void onRealMaxFrequency(String frequency) {
-        System.out.println("Frequency is " + frequency);
+        console.println("Frequency is " + frequency);
     }
     
   }
   
+  /**
+   * A chat message; messages are never coalesced.
+   */
+  private static class MessageRecord extends ConsoleSink.Record {
+
+    private final String rawTimestamp;
+    private final String ip;
+    private final String message;
+    private final ChatTimeFormat timeFormat;
+
+    MessageRecord(String rawTimestamp, String ip, String message, ChatTimeFormat timeFormat) {
+      this.rawTimestamp = rawTimestamp;
+      this.ip = ip;
+      this.message = message;
+      this.timeFormat = timeFormat;
+    }
+
+    @Override
+    protected void render(StringBuilder out) {
+      //the timestamp digits are parsed in place and the text goes straight into the console buffer
+      out.append("MESSAGE @ ");
+      timeFormat.append(out, rawTimestamp);
+      out.append(" |").append(ip).append(": ").append(message).append('\n');
+    }
+
+    @Override
+    protected void encode(OutputEncoder out, StringBuilder scratch) throws IOException {
+      out.begin(OutputEncoder.Type.CHAT);
+      long timestamp = Decimals.parseLong(rawTimestamp);
+      if (timestamp == Decimals.INVALID_LONG) {
+        out.nul("timestamp");
+      } else {
+        out.integer("timestamp", timestamp);
+      }
+      out.string("ip", ip);
+      out.string("message", message);
+      out.end();
+    }
+  }
+  
   public static class SystemOutClientMessageListener implements ClientMessageListener {
+
+    private final ConsoleSink console;
+
+    public SystemOutClientMessageListener() {
+      this(ConsoleSink.getDefault());
+    }
+
+    public SystemOutClientMessageListener(ConsoleSink console) {
+      this.console = console;
+    }
   
     @Override
     public void onAbort(String originalMessage, boolean sentOnNetwork) {
       if (sentOnNetwork) {
-        System.out.println("message \""+originalMessage+"\" was aborted; is not known if it reached the server");
+        console.submit(OutcomeRecord.aborted(originalMessage, true));
       } else {
-        System.out.println("message \""+originalMessage+"\" was aborted and will not be sent to the server");
+        console.submit(OutcomeRecord.aborted(originalMessage, false));
       }
       
     }
   
     @Override
     public void onDeny(String originalMessage, int code, String message) {
-      System.out.println("message \""+originalMessage+"\" was denied by the server because of error " + code + ": " + message);
+      console.submit(OutcomeRecord.denied(originalMessage, code, message));
     }
   
     @Override
     public void onDiscarded(String originalMessage) {
-      System.out.println("message \""+originalMessage+"\" was discarded by the server because it was too late when it was received");
+      console.submit(OutcomeRecord.discarded(originalMessage));
     }
   
     @Override
     public void onError(String originalMessage) {
-      System.out.println("message \""+originalMessage+"\" was not correctly processed by the server");
+      console.submit(OutcomeRecord.error(originalMessage));
     }
   
     @Override
     public void onProcessed(String originalMessage, String response) {
-      System.out.println("message \""+originalMessage+"\" processed correctly");
+      console.submit(OutcomeRecord.processed(originalMessage, response, false));
     }
   }
   
@@ -0,0 +1,453 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package quickstart;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Append-only local store of the chat messages, so that a restarted Chat can
+ * render the history from disk at once and only ask the Server for a short
+ * snapshot.
+ *
+ * Messages are kept in memory-mapped segment files of fixed size, named after
+ * their sequence number; each segment starts with a header holding the time
+ * range of its messages, their count and the end of the written area, which
+ * is updated after each append; the end is what makes a record visible, and
+ * the count of the last segment is rebuilt from it on open, as the process
+ * may have died before updating it. Each message record is
+ *    [int length][long raw_timestamp][long hash][IP][message]
+ * where strings are written as varint(UTF-8 length + 1) followed by the bytes.
+ *
+ * A sparse index (one entry every {@link #INDEX_STEP} records) of each segment
+ * is built on first use, so that the messages since a given time can be found
+ * without scanning the older ones.
+ *
+ * Messages already stored are recognized through the hash of (timestamp, IP,
+ * message), which is kept for the most recent ones; hence the snapshot which
+ * overlaps with the stored history is not stored twice.
+ */
+public class ChatHistoryStore {
+
+  private static final int MAGIC = 0x4C534348;
+  private static final short VERSION = 1;
+
+  //header layout
+  private static final int H_FIRST = 8;
+  private static final int H_LAST = 16;
+  private static final int H_COUNT = 24;
+  private static final int H_END = 28;
+  private static final int HEADER = 32;
+
+  private static final int SEGMENT_SIZE = 16 << 20;
+  static final int INDEX_STEP = 256;
+  private static final int DEDUP_WINDOW = 65536;
+
+  /**
+   * Receives the stored messages, in storage order.
+   */
+  public interface Visitor {
+    void onMessage(long timestamp, String ip, String message);
+  }
+
+  private static class Segment {
+    final Path path;
+    MappedByteBuffer buffer;
+    //sparse index: timestamps and offsets of every INDEX_STEP-th record
+    long[] indexTimes = new long[16];
+    int[] indexOffsets = new int[16];
+    int indexSize;
+    int indexedEnd = HEADER;
+    int indexedCount;
+
+    Segment(Path path) {
+      this.path = path;
+    }
+
+    long first() {
+      return buffer.getLong(H_FIRST);
+    }
+
+    long last() {
+      return buffer.getLong(H_LAST);
+    }
+
+    int count() {
+      return buffer.getInt(H_COUNT);
+    }
+
+    int end() {
+      return buffer.getInt(H_END);
+    }
+  }
+
+  /**
+   * @return the store in the directory set by the quickstart.chat.history
+   * system property, or null if not set
+   */
+  static ChatHistoryStore openIfConfigured() {
+    String dir = System.getProperty("quickstart.chat.history");
+    if (dir == null) {
+      return null;
+    }
+    try {
+      final ChatHistoryStore store = new ChatHistoryStore(Paths.get(dir));
+      Runtime.getRuntime().addShutdownHook(new Thread("ChatHistoryStore shutdown") {
+        @Override
+        public void run() {
+          store.close();
+        }
+      });
+      return store;
+    } catch (IOException e) {
+      System.err.println("Cannot open the chat history in " + dir + ": " + e.getMessage());
+      return null;
+    }
+  }
+
+  private final Path dir;
+  private final List<Segment> segments = new ArrayList<Segment>();
+  private final Set<Long> recent = new HashSet<Long>();
+  private final ArrayDeque<Long> recentOrder = new ArrayDeque<Long>();
+  private ByteBuffer scratch = ByteBuffer.allocate(1024);
+  private long total;
+  private boolean closed;
+
+  public ChatHistoryStore(Path dir) throws IOException {
+    this.dir = dir;
+    Files.createDirectories(dir);
+    List<Path> paths = new ArrayList<Path>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*.chs")) {
+      for (Path path : stream) {
+        paths.add(path);
+      }
+    }
+    Collections.sort(paths);
+    for (Path path : paths) {
+      Segment segment = new Segment(path);
+      segment.buffer = map(path);
+      if (segment.buffer.getInt(0) != MAGIC || segment.buffer.getShort(4) != VERSION) {
+        throw new IOException("Not a chat history segment: " + path);
+      }
+      segments.add(segment);
+    }
+    if (!segments.isEmpty()) {
+      //only the last segment can have been left halfway through an append
+      Segment last = segments.get(segments.size() - 1);
+      last.buffer.putInt(H_COUNT, countRecords(last));
+    }
+    for (Segment segment : segments) {
+      total += segment.count();
+    }
+    loadRecentHashes();
+  }
+
+  private static MappedByteBuffer map(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      //the mapping stays valid after the channel is closed
+      return channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+    }
+  }
+
+  private static int countRecords(Segment segment) {
+    ByteBuffer buffer = segment.buffer.duplicate();
+    int end = segment.end();
+    int records = 0;
+    for (int offset = HEADER; offset < end; offset += 4 + buffer.getInt(offset)) {
+      records++;
+    }
+    return records;
+  }
+
+  private Segment newSegment() throws IOException {
+    Segment segment = new Segment(dir.resolve(String.format("%08d.chs", segments.size() + 1)));
+    segment.buffer = map(segment.path);
+    segment.buffer.putInt(0, MAGIC);
+    segment.buffer.putShort(4, VERSION);
+    segment.buffer.putLong(H_FIRST, Long.MAX_VALUE);
+    segment.buffer.putLong(H_LAST, Long.MIN_VALUE);
+    segment.buffer.putInt(H_COUNT, 0);
+    segment.buffer.putInt(H_END, HEADER);
+    segments.add(segment);
+    return segment;
+  }
+
+  /**
+   * Remembers the hashes of the last messages stored, to recognize them
+   * when they come again.
+   */
+  private void loadRecentHashes() {
+    long skip = total - DEDUP_WINDOW;
+    long position = 0;
+    for (Segment segment : segments) {
+      int records = segment.count();
+      if (position + records <= skip) {
+        position += records;
+        continue;
+      }
+      ByteBuffer buffer = segment.buffer.duplicate();
+      int offset = HEADER;
+      for (int r = 0; r < records; r++, position++) {
+        if (position >= skip) {
+          remember(buffer.getLong(offset + 12));
+        }
+        offset += 4 + buffer.getInt(offset);
+      }
+    }
+  }
+
+  private void remember(long hash) {
+    if (recent.add(hash)) {
+      recentOrder.addLast(hash);
+      if (recentOrder.size() > DEDUP_WINDOW) {
+        recent.remove(recentOrder.removeFirst());
+      }
+    }
+  }
+
+  static long hash(long timestamp, String ip, String message) {
+    long h = timestamp;
+    h = h * 0x9E3779B97F4A7C15L + (ip == null ? 0 : ip.hashCode());
+    h = h * 0x9E3779B97F4A7C15L + (message == null ? 0 : message.hashCode());
+    h ^= h >>> 31;
+    h *= 0xBF58476D1CE4E5B9L;
+    return h ^ (h >>> 29);
+  }
+
+  /**
+   * @return the newest timestamp stored, or Long.MIN_VALUE if none
+   */
+  public synchronized long lastTimestamp() {
+    long last = Long.MIN_VALUE;
+    for (Segment segment : segments) {
+      if (segment.count() > 0) {
+        last = Math.max(last, segment.last());
+      }
+    }
+    return last;
+  }
+
+  /**
+   * @return the number of messages stored
+   */
+  public synchronized long size() {
+    return total;
+  }
+
+  /**
+   * Stores a message, unless it has already been stored.
+   *
+   * @return false if the message was already stored
+   */
+  public synchronized boolean append(long timestamp, String ip, String message) {
+    long hash = hash(timestamp, ip, message);
+    if (recent.contains(hash)) {
+      return false;
+    }
+    if (closed) {
+      return true;
+    }
+
+    scratch.clear();
+    scratch.putInt(0);
+    scratch.putLong(timestamp);
+    scratch.putLong(hash);
+    putString(ip);
+    putString(message);
+    scratch.putInt(0, scratch.position() - 4);
+    scratch.flip();
+    if (HEADER + scratch.remaining() > SEGMENT_SIZE) {
+      //too large to be stored, but still new
+      return true;
+    }
+
+    try {
+      Segment segment = segments.isEmpty() ? newSegment() : segments.get(segments.size() - 1);
+      if (segment.end() + scratch.remaining() > SEGMENT_SIZE) {
+        segment.buffer.force();
+        segment = newSegment();
+      }
+      int end = segment.end();
+      ByteBuffer target = segment.buffer.duplicate();
+      target.position(end);
+      target.put(scratch);
+      //the header is updated last, so that a partial record is never considered;
+      //the end comes before the count, which is rebuilt from it on open
+      segment.buffer.putLong(H_FIRST, Math.min(segment.first(), timestamp));
+      segment.buffer.putLong(H_LAST, Math.max(segment.last(), timestamp));
+      segment.buffer.putInt(H_END, target.position());
+      segment.buffer.putInt(H_COUNT, segment.count() + 1);
+    } catch (IOException e) {
+      System.err.println("Cannot extend the chat history: " + e.getMessage());
+      return true;
+    }
+    total++;
+    remember(hash);
+    return true;
+  }
+
+  private void putString(String value) {
+    if (value == null) {
+      ensure(1);
+      scratch.put((byte) 0);
+      return;
+    }
+    byte[] bytes = value.getBytes(UpdateRecorder.UTF8);
+    ensure(5 + bytes.length + 4);
+    putVarint(bytes.length + 1);
+    scratch.put(bytes);
+  }
+
+  private void putVarint(int value) {
+    while ((value & ~0x7F) != 0) {
+      scratch.put((byte) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    scratch.put((byte) value);
+  }
+
+  private void ensure(int bytes) {
+    if (scratch.remaining() < bytes) {
+      ByteBuffer larger = ByteBuffer.allocate(Math.max(scratch.capacity() * 2, scratch.position() + bytes));
+      scratch.flip();
+      larger.put(scratch);
+      scratch = larger;
+    }
+  }
+
+  private static int getVarint(ByteBuffer buffer) {
+    int value = 0;
+    int shift = 0;
+    byte b;
+    do {
+      b = buffer.get();
+      value |= (b & 0x7F) << shift;
+      shift += 7;
+    } while ((b & 0x80) != 0);
+    return value;
+  }
+
+  private static String getString(ByteBuffer buffer) {
+    int length = getVarint(buffer) - 1;
+    if (length < 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return new String(bytes, UpdateRecorder.UTF8);
+  }
+
+  /**
+   * Extends the sparse index of a segment up to its current end.
+   */
+  private static void index(Segment segment) {
+    ByteBuffer buffer = segment.buffer.duplicate();
+    int end = segment.end();
+    int offset = segment.indexedEnd;
+    while (offset < end) {
+      if (segment.indexedCount % INDEX_STEP == 0) {
+        if (segment.indexSize == segment.indexTimes.length) {
+          segment.indexTimes = java.util.Arrays.copyOf(segment.indexTimes, segment.indexSize * 2);
+          segment.indexOffsets = java.util.Arrays.copyOf(segment.indexOffsets, segment.indexSize * 2);
+        }
+        segment.indexTimes[segment.indexSize] = buffer.getLong(offset + 4);
+        segment.indexOffsets[segment.indexSize] = offset;
+        segment.indexSize++;
+      }
+      segment.indexedCount++;
+      offset += 4 + buffer.getInt(offset);
+    }
+    segment.indexedEnd = offset;
+  }
+
+  /**
+   * Delivers the records of a segment from an offset on.
+   *
+   * @param from records older than this are skipped
+   * @return the messages delivered
+   */
+  private static int scan(Segment segment, int offset, long from, Visitor visitor) {
+    ByteBuffer buffer = segment.buffer.duplicate();
+    int end = segment.end();
+    int delivered = 0;
+    while (offset < end) {
+      int length = buffer.getInt(offset);
+      long timestamp = buffer.getLong(offset + 4);
+      if (timestamp >= from) {
+        buffer.position(offset + 20);
+        String ip = getString(buffer);
+        String message = getString(buffer);
+        visitor.onMessage(timestamp, ip, message);
+        delivered++;
+      }
+      offset += 4 + length;
+    }
+    return delivered;
+  }
+
+  /**
+   * Delivers the messages with a timestamp not older than the given one.
+   *
+   * @return the number of messages delivered
+   */
+  public synchronized int replaySince(long fromMillis, Visitor visitor) {
+    int delivered = 0;
+    for (Segment segment : segments) {
+      if (segment.count() == 0 || segment.last() < fromMillis) {
+        continue;
+      }
+      index(segment);
+      //messages are normally in time order; the index entry before the first
+      //newer one is a safe start, as older records are skipped anyway
+      int start = HEADER;
+      for (int i = 0; i < segment.indexSize && segment.indexTimes[i] < fromMillis; i++) {
+        start = segment.indexOffsets[i];
+      }
+      if (segment.first() >= fromMillis) {
+        start = HEADER;
+      }
+      delivered += scan(segment, start, fromMillis, visitor);
+    }
+    return delivered;
+  }
+
+  /**
+   * Flushes the segments to disk; further messages are not stored.
+   */
+  public synchronized void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    for (Segment segment : segments) {
+      segment.buffer.force();
+    }
+  }
+
+}
@@ -0,0 +1,361 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package quickstart;
+
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import com.lightstreamer.client.ClientListener;
+import com.lightstreamer.client.ClientMessageListener;
+import com.lightstreamer.client.LightstreamerClient;
+
+/**
+ * Outbound stage for the chat messages, between the console input and
+ * LightstreamerClient.sendMessage.
+ *
+ * Lines are held in a bounded queue, so that a fast producer is slowed down
+ * rather than growing the library queue without limits, and are sent by a
+ * dedicated thread, which:
+ * - keeps at most a configurable number of messages in flight on the "chat"
+ *   sequence, i.e. sent and not yet acknowledged;
+ * - limits the messages sent per second, if configured;
+ * - joins the lines already queued into a single message, one per text line,
+ *   up to a configurable number of lines, if configured;
+ * - while the client is disconnected, keeps the lines in the queue or, if
+ *   queuing has been turned off, drops them.
+ *
+ * The queue depth and the time spent by each line in the queue are tracked.
+ *
+ * The configuration is taken from the system properties
+ * quickstart.chat.queue (queue capacity, in lines, 1000 by default),
+ * quickstart.chat.inflight (max messages in flight, 16 by default),
+ * quickstart.chat.rate (max messages per second, 0 for no limit, the default)
+ * and quickstart.chat.coalesce (max lines per message, 1 by default).
+ */
+public class ChatSender {
+
+  private static final String PREFIX = "CHAT|";
+  private static final int MAX_MESSAGE_LENGTH = 4096;
+  private static final long HIGHEST_NANOS = TimeUnit.HOURS.toNanos(1);
+
+  static ChatSender fromProperties(LightstreamerClient client, ConsoleSink console) {
+    return new ChatSender(client, console,
+        Integer.getInteger("quickstart.chat.queue", 1000),
+        Integer.getInteger("quickstart.chat.inflight", 16),
+        Double.parseDouble(System.getProperty("quickstart.chat.rate", "0")),
+        Integer.getInteger("quickstart.chat.coalesce", 1));
+  }
+
+  private static class Line {
+    final String text;
+    final long enqueued;
+
+    Line(String text) {
+      this.text = text;
+      this.enqueued = System.nanoTime();
+    }
+  }
+
+  private final LightstreamerClient client;
+  private final ConsoleSink console;
+  private final BlockingQueue<Line> queue;
+  private final Semaphore inFlight;
+  private final int maxInFlight;
+  private final long intervalNanos;
+  private final int maxLines;
+  private final Thread thread;
+  private final ClientMessageListener printer;
+
+  private final Object connection = new Object();
+  private volatile boolean connected;
+  private volatile boolean queueWhileDisconnected = true;
+
+  private final AtomicLong accepted = new AtomicLong();
+  private final AtomicLong messages = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong unfinished = new AtomicLong(); //lines not yet acknowledged or dropped
+  private volatile int maxDepth;
+  private final Recorder timeInQueue = new Recorder(HIGHEST_NANOS, 3);
+  private final Histogram timeInQueueTotal = new Histogram(HIGHEST_NANOS, 3);
+  private Histogram interval;
+
+  /**
+   * @param ratePerSecond max messages per second, or 0 for no limit
+   * @param maxLines max lines joined in a single message; 1 means no coalescing
+   */
+  public ChatSender(LightstreamerClient client, ConsoleSink console, int capacity, int maxInFlight, double ratePerSecond, int maxLines) {
+    this.client = client;
+    this.console = console;
+    this.queue = new ArrayBlockingQueue<Line>(capacity);
+    this.maxInFlight = maxInFlight;
+    this.inFlight = new Semaphore(maxInFlight);
+    this.intervalNanos = ratePerSecond > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond) : 0;
+    this.maxLines = Math.max(1, maxLines);
+    this.printer = new Chat.SystemOutClientMessageListener(console);
+
+    client.addListener(new StatusListener());
+    //the client may already be connected, in which case no transition is notified
+    synchronized (connection) {
+      connected = String.valueOf(client.getStatus()).startsWith("CONNECTED:");
+    }
+    this.thread = new Thread("ChatSender") {
+      @Override
+      public void run() {
+        sendLoop();
+      }
+    };
+    this.thread.setDaemon(true);
+    this.thread.start();
+  }
+
+  /**
+   * Sets whether lines are kept while disconnected, or dropped.
+   */
+  public void setQueueWhileDisconnected(boolean queueWhileDisconnected) {
+    this.queueWhileDisconnected = queueWhileDisconnected;
+    synchronized (connection) {
+      connection.notifyAll();
+    }
+  }
+
+  /**
+   * Enqueues a line, waiting while the queue is full.
+   */
+  public void send(String line) throws InterruptedException {
+    queue.put(new Line(line));
+    enqueued();
+  }
+
+  /**
+   * Enqueues a line if there is room.
+   *
+   * @return false if the queue is full
+   */
+  public boolean offer(String line) {
+    if (!queue.offer(new Line(line))) {
+      return false;
+    }
+    enqueued();
+    return true;
+  }
+
+  private void enqueued() {
+    accepted.incrementAndGet();
+    unfinished.incrementAndGet();
+    int depth = queue.size();
+    if (depth > maxDepth) {
+      maxDepth = depth;
+    }
+  }
+
+  /**
+   * Waits until all the lines have been sent and acknowledged, or dropped,
+   * up to the given time.
+   *
+   * @return whether no line was left unfinished
+   */
+  public boolean awaitDrained(long timeoutMillis) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    while (unfinished.get() > 0) {
+      if (System.currentTimeMillis() >= deadline) {
+        return false;
+      }
+      Thread.sleep(10);
+    }
+    return true;
+  }
+
+  /**
+   * @return the lines not yet acknowledged or dropped
+   */
+  public long getUnfinished() {
+    return unfinished.get();
+  }
+
+  public void close() {
+    thread.interrupt();
+  }
+
+  public int getQueueDepth() {
+    return queue.size();
+  }
+
+  /**
+   * @return a one-line summary of the activity so far
+   */
+  public synchronized String stats() {
+    interval = timeInQueue.getIntervalHistogram(interval);
+    timeInQueueTotal.add(interval);
+    return String.format(Locale.ROOT,
+        "[chat out] lines=%d messages=%d dropped=%d queue=%d (max %d) in-flight=%d | time in queue(ms) p50=%.2f p99=%.2f max=%.2f",
+        accepted.get(), messages.get(), dropped.get(), queue.size(), maxDepth, maxInFlight - inFlight.availablePermits(),
+        OrderEntryEngine.millis(timeInQueueTotal, 50), OrderEntryEngine.millis(timeInQueueTotal, 99),
+        OrderEntryEngine.millis(timeInQueueTotal, 100));
+  }
+
+  private void sendLoop() {
+    StringBuilder text = new StringBuilder();
+    long next = System.nanoTime();
+    try {
+      while (true) {
+        Line first = queue.take();
+        if (!awaitConnection()) {
+          drop(first);
+          continue;
+        }
+        inFlight.acquire();
+        if (intervalNanos > 0) {
+          long now;
+          while ((now = System.nanoTime()) < next) {
+            LockSupport.parkNanos(next - now);
+          }
+          next = Math.max(now, next) + intervalNanos;
+        }
+
+        //lines queued in the meantime can join this message
+        text.setLength(0);
+        text.append(PREFIX).append(first.text);
+        dequeued(first);
+        int lines = 1;
+        for (; lines < maxLines; lines++) {
+          Line line = queue.peek();
+          if (line == null || text.length() + 1 + line.text.length() > MAX_MESSAGE_LENGTH) {
+            break;
+          }
+          queue.poll();
+          text.append('\n').append(line.text);
+          dequeued(line);
+        }
+
+        messages.incrementAndGet();
+        //the library queue is bounded by the in-flight limit; with NOQUEUE, a message sent while
+        //disconnected (e.g. as the connection drops right now) is aborted rather than queued
+        client.sendMessage(text.toString(), "chat", 500, new OutcomeListener(lines), queueWhileDisconnected);
+      }
+    } catch (InterruptedException e) {
+      //closed
+    }
+  }
+
+  private void dequeued(Line line) {
+    timeInQueue.recordValue(Math.min(HIGHEST_NANOS, System.nanoTime() - line.enqueued));
+  }
+
+  private void drop(Line line) {
+    dequeued(line);
+    dropped.incrementAndGet();
+    unfinished.decrementAndGet();
+    console.println("message \"" + line.text + "\" was dropped, as the client is disconnected");
+  }
+
+  /**
+   * @return true when connected, or false if lines have to be dropped
+   */
+  private boolean awaitConnection() throws InterruptedException {
+    synchronized (connection) {
+      while (!connected) {
+        if (!queueWhileDisconnected) {
+          return false;
+        }
+        connection.wait();
+      }
+      return true;
+    }
+  }
+
+  private class StatusListener implements ClientListener {
+
+    @Override
+    public void onStatusChange(String status) {
+      synchronized (connection) {
+        connected = status.startsWith("CONNECTED:");
+        connection.notifyAll();
+      }
+    }
+
+    @Override
+    public void onListenEnd() {
+    }
+
+    @Override
+    public void onListenStart() {
+    }
+
+    @Override
+    public void onPropertyChange(String property) {
+    }
+
+    @Override
+    public void onServerError(int code, String message) {
+    }
+  }
+
+  /**
+   * Frees the in-flight slot and prints the outcome.
+   */
+  private class OutcomeListener implements ClientMessageListener {
+
+    private final int lines;
+
+    OutcomeListener(int lines) {
+      this.lines = lines;
+    }
+
+    private void done() {
+      inFlight.release();
+      unfinished.addAndGet(-lines);
+    }
+
+    @Override
+    public void onAbort(String originalMessage, boolean sentOnNetwork) {
+      done();
+      printer.onAbort(originalMessage, sentOnNetwork);
+    }
+
+    @Override
+    public void onDeny(String originalMessage, int code, String message) {
+      done();
+      printer.onDeny(originalMessage, code, message);
+    }
+
+    @Override
+    public void onDiscarded(String originalMessage) {
+      done();
+      printer.onDiscarded(originalMessage);
+    }
+
+    @Override
+    public void onError(String originalMessage) {
+      done();
+      printer.onError(originalMessage);
+    }
+
+    @Override
+    public void onProcessed(String originalMessage, String response) {
+      done();
+      printer.onProcessed(originalMessage, response);
+    }
+  }
+
+}
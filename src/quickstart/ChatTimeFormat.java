@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package quickstart;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Formats chat timestamps as "E hh:mm:ss" (e.g. "Mon 03:04:05"), like the
+ * SimpleDateFormat originally used by Chat, without allocating.
+ *
+ * The text up to the minutes of the last minute formatted is cached, so that
+ * only the seconds are computed for the timestamps in the same minute; chat
+ * messages come in time order, hence the cache is only refreshed once a
+ * minute. The cache is an immutable object published through a volatile
+ * field, so the format can be shared by any number of threads.
+ *
+ * Minutes are assumed to start at multiples of 60 seconds since the epoch,
+ * which holds for all the current time zones.
+ */
+public class ChatTimeFormat {
+
+  private static final long MINUTE = 60000;
+
+  private static class Prefix {
+    final long minuteStart;
+    final char[] text;
+
+    Prefix(long minuteStart, char[] text) {
+      this.minuteStart = minuteStart;
+      this.text = text;
+    }
+  }
+
+  private static final ThreadLocal<SimpleDateFormat> prefixFormat = new ThreadLocal<SimpleDateFormat>() {
+    @Override
+    protected SimpleDateFormat initialValue() {
+      return new SimpleDateFormat("E hh:mm:");
+    }
+  };
+
+  private volatile Prefix last = new Prefix(Long.MIN_VALUE, new char[0]);
+
+  /**
+   * Appends the formatted time of a timestamp in milliseconds since the epoch.
+   */
+  public void append(StringBuilder out, long millis) {
+    long offset = millis % MINUTE;
+    if (offset < 0) {
+      offset += MINUTE;
+    }
+    long minuteStart = millis - offset;
+    Prefix prefix = last;
+    if (prefix.minuteStart != minuteStart) {
+      //only happens once a minute, hence the allocation does not matter
+      prefix = new Prefix(minuteStart, prefixFormat.get().format(new Date(minuteStart)).toCharArray());
+      last = prefix;
+    }
+    out.append(prefix.text);
+    int seconds = (int) (offset / 1000);
+    out.append((char) ('0' + seconds / 10)).append((char) ('0' + seconds % 10));
+  }
+
+  /**
+   * Appends the formatted time of a raw_timestamp value, parsed in place;
+   * a malformed value is appended as is.
+   */
+  public void append(StringBuilder out, CharSequence rawTimestamp) {
+    long millis = rawTimestamp == null ? Decimals.INVALID_LONG : Decimals.parseLong(rawTimestamp);
+    if (millis == Decimals.INVALID_LONG) {
+      out.append(rawTimestamp);
+      return;
+    }
+    append(out, millis);
+  }
+
+}
@@ -0,0 +1,485 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package quickstart;
+
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.lightstreamer.client.ItemUpdate;
+import com.lightstreamer.client.LightstreamerClient;
+import com.lightstreamer.client.Subscription;
+import com.lightstreamer.client.SubscriptionListener;
+
+/**
+ * Runs many instances of the Stocklist, Portfolio and Chat clients in the
+ * same JVM, each with its own session and subscription, for soak tests and
+ * for sizing a gateway.
+ *
+ * The library only hands the events of each instance over to a mailbox; the
+ * listener of the instance (decoding and queuing of the records to render)
+ * then runs on a consumer executor shared by all the instances, one event
+ * at a time and in order, and the records are rendered by a single console
+ * writer. The executor runs on virtual threads when the JVM supports them
+ * (Java 21 or later), otherwise on a small pool of platform threads; hence
+ * the number of threads does not grow with the number of instances.
+ *
+ * The output of the instances is discarded, unless the quickstart.host.print
+ * system property is set to true; the consumer pool size can be set through
+ * the quickstart.host.threads system property (one per core by default), and
+ * quickstart.host.virtual=false forces the pool even where virtual threads
+ * are available.
+ *
+ * The number of threads, the heap in use and the throughput, in total and
+ * per instance, are reported periodically on the console.
+ */
+public class ClientHost {
+
+  public enum Kind {
+    STOCKLIST {
+      @Override
+      String adapterSet(String serverAddress) {
+        return "DEMO";
+      }
+
+      @Override
+      Subscription newSubscription() {
+        return Stocklist.newSubscription();
+      }
+
+      @Override
+      SubscriptionListener newListener(ConsoleSink console) {
+        return new Stocklist.SystemOutSubscriptionListener(console);
+      }
+    },
+
+    PORTFOLIO {
+      @Override
+      String adapterSet(String serverAddress) {
+        return Portfolio.adapterSet(serverAddress);
+      }
+
+      @Override
+      Subscription newSubscription() {
+        return Portfolio.newSubscription();
+      }
+
+      @Override
+      SubscriptionListener newListener(ConsoleSink console) {
+        return new Portfolio.SystemOutSubscriptionListener(console);
+      }
+    },
+
+    CHAT {
+      @Override
+      String adapterSet(String serverAddress) {
+        return Chat.adapterSet(serverAddress);
+      }
+
+      @Override
+      Subscription newSubscription() {
+        return Chat.newSubscription();
+      }
+
+      @Override
+      SubscriptionListener newListener(ConsoleSink console) {
+        return new Chat.SystemOutSubscriptionListener(console, null);
+      }
+    };
+
+    abstract String adapterSet(String serverAddress);
+
+    abstract Subscription newSubscription();
+
+    abstract SubscriptionListener newListener(ConsoleSink console);
+  }
+
+  /**
+   * Events handled by a mailbox before giving way to the others
+   */
+  private static final int MAX_BATCH = 256;
+
+  /**
+   * Pause between the start of two instances, not to open all the sessions at once
+   */
+  private static final long RAMP_MILLIS = 10;
+
+  /**
+   * @return an executor running each task on a new virtual thread, if the JVM
+   * supports them, otherwise a pool of the given number of daemon threads
+   */
+  static ExecutorService newConsumerExecutor(int threads) {
+    if (Boolean.parseBoolean(System.getProperty("quickstart.host.virtual", "true"))) {
+      try {
+        Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        return (ExecutorService) factory.invoke(null);
+      } catch (NoSuchMethodException e) {
+        //before Java 21
+      } catch (InvocationTargetException e) {
+        //a preview feature not enabled
+      } catch (IllegalAccessException e) {
+      }
+    }
+    final AtomicInteger count = new AtomicInteger();
+    return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "ClientHost consumer " + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  private final Kind[] kinds;
+  private final Instance[] instances;
+  private final ExecutorService consumers;
+  private final ConsoleSink output;
+  private final ConsoleSink console;
+  private ScheduledExecutorService reporter;
+
+  //only touched by the reporter thread
+  private long lastReport;
+  private final long[] lastUpdates;
+
+  /**
+   * @param kinds the kinds of the instances, assigned round-robin
+   */
+  public ClientHost(Kind[] kinds, int count) {
+    this(kinds, count, newConsumerExecutor(Integer.getInteger("quickstart.host.threads", Runtime.getRuntime().availableProcessors())),
+        Boolean.getBoolean("quickstart.host.print") ? ConsoleSink.getDefault() : discardingSink(), ConsoleSink.getDefault());
+  }
+
+  /**
+   * @param output where the instances render their updates
+   * @param console where the reports are printed
+   */
+  public ClientHost(Kind[] kinds, int count, ExecutorService consumers, ConsoleSink output, ConsoleSink console) {
+    if (kinds.length == 0 || count < 1) {
+      throw new IllegalArgumentException("At least one instance is needed");
+    }
+    this.kinds = kinds.clone();
+    this.instances = new Instance[count];
+    this.consumers = consumers;
+    this.output = output;
+    this.console = console;
+    this.lastUpdates = new long[count];
+  }
+
+  private static ConsoleSink discardingSink() {
+    OutputStream discard = new OutputStream() {
+      @Override
+      public void write(int b) {
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) {
+      }
+    };
+    return new ConsoleSink(discard, 65536, 100, ConsoleSink.OverflowPolicy.DROP_OLDEST);
+  }
+
+  /**
+   * Opens the sessions, one after the other, and starts the periodic report.
+   */
+  public void start(String serverAddress, long reportSeconds) throws InterruptedException {
+    String threads = consumers instanceof ThreadPoolExecutor
+        ? ((ThreadPoolExecutor) consumers).getCorePoolSize() + " platform threads" : "virtual threads";
+    console.println(String.format(Locale.ROOT, "[host] starting %d instances, consumers on %s", instances.length, threads));
+    for (int i = 0; i < instances.length; i++) {
+      Kind kind = kinds[i % kinds.length];
+      instances[i] = new Instance(kind, serverAddress);
+      instances[i].start();
+      Thread.sleep(RAMP_MILLIS);
+    }
+
+    lastReport = System.nanoTime();
+    reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "ClientHost reporter");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    reporter.scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        console.println(report());
+      }
+    }, reportSeconds, reportSeconds, TimeUnit.SECONDS);
+  }
+
+  public void stop() {
+    if (reporter != null) {
+      reporter.shutdownNow();
+    }
+    for (Instance instance : instances) {
+      if (instance != null) {
+        instance.client.disconnect();
+      }
+    }
+    consumers.shutdown();
+  }
+
+  /**
+   * @return a one-line report of the figures since the previous one
+   */
+  String report() {
+    long now = System.nanoTime();
+    double elapsed = (now - lastReport) / 1e9;
+    lastReport = now;
+
+    int connected = 0;
+    long total = 0;
+    long interval = 0;
+    int backlog = 0;
+    double min = Double.MAX_VALUE;
+    double max = 0;
+    for (int i = 0; i < instances.length; i++) {
+      Instance instance = instances[i];
+      if (instance.client.getStatus().startsWith("CONNECTED:")) {
+        connected++;
+      }
+      long updates = instance.mailbox.updates.get();
+      double rate = (updates - lastUpdates[i]) / elapsed;
+      interval += updates - lastUpdates[i];
+      lastUpdates[i] = updates;
+      total += updates;
+      min = Math.min(min, rate);
+      max = Math.max(max, rate);
+      backlog += instance.mailbox.pending.get();
+    }
+
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    long heap = memory.getHeapMemoryUsage().getUsed();
+    int instanceCount = instances.length;
+    return String.format(Locale.ROOT,
+        "[host] %d/%d connected | threads %d (peak %d, %.2f/instance) | heap %.1f MB (%.1f KB/instance) | %.0f updates/s, per instance min/avg/max %.1f/%.1f/%.1f | backlog %d | %d updates in total",
+        connected, instanceCount, threads.getThreadCount(), threads.getPeakThreadCount(), (double) threads.getThreadCount() / instanceCount,
+        heap / 1048576.0, heap / 1024.0 / instanceCount,
+        interval / elapsed, min, interval / elapsed / instanceCount, max, backlog, total);
+  }
+
+  /**
+   * A client of the given kind; its listener runs on the consumer executor.
+   */
+  private class Instance {
+
+    final LightstreamerClient client;
+    final Subscription sub;
+    final Mailbox mailbox;
+
+    Instance(Kind kind, String serverAddress) {
+      client = ConnectionProfile.configure(new LightstreamerClient(serverAddress, kind.adapterSet(serverAddress)));
+      sub = kind.newSubscription();
+      mailbox = new Mailbox(kind.newListener(output));
+      sub.addListener(mailbox);
+    }
+
+    void start() {
+      client.subscribe(sub);
+      client.connect();
+    }
+  }
+
+  /**
+   * Queues the events of a listener and delivers them on the consumer
+   * executor, one at a time and in order, in batches of up to
+   * {@link #MAX_BATCH} events, so that a busy instance cannot hold a pool
+   * thread indefinitely.
+   */
+  private class Mailbox implements SubscriptionListener, Runnable {
+
+    private final SubscriptionListener delegate;
+    private final ConcurrentLinkedQueue<Runnable> events = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    final AtomicInteger pending = new AtomicInteger();
+    final AtomicLong updates = new AtomicLong();
+
+    Mailbox(SubscriptionListener delegate) {
+      this.delegate = delegate;
+    }
+
+    private void post(Runnable event) {
+      pending.incrementAndGet();
+      events.offer(event);
+      schedule();
+    }
+
+    private void schedule() {
+      if (scheduled.compareAndSet(false, true)) {
+        consumers.execute(this);
+      }
+    }
+
+    @Override
+    public void run() {
+      Runnable event;
+      int handled = 0;
+      while (handled < MAX_BATCH && (event = events.poll()) != null) {
+        try {
+          event.run();
+        } catch (RuntimeException e) {
+          console.println("[host] listener failure: " + e);
+        }
+        handled++;
+      }
+      pending.addAndGet(-handled);
+      scheduled.set(false);
+      if (!events.isEmpty()) {
+        schedule();
+      }
+    }
+
+    @Override
+    public void onItemUpdate(final ItemUpdate update) {
+      post(new Runnable() {
+        @Override
+        public void run() {
+          delegate.onItemUpdate(update);
+          updates.lazySet(updates.get() + 1);
+        }
+      });
+    }
+
+    @Override
+    public void onClearSnapshot(final String itemName, final int itemPos) {
+      post(new Runnable() {
+        @Override
+        public void run() {
+          delegate.onClearSnapshot(itemName, itemPos);
+        }
+      });
+    }
+
+    @Override
+    public void onCommandSecondLevelItemLostUpdates(final int lostUpdates, final String key) {
+      post(new Runnable() {
+        @Override
+        public void run() {
+          delegate.onCommandSecondLevelItemLostUpdates(lostUpdates, key);
+        }
+      });
+    }
+
+    @Override
+    public void onCommandSecondLevelSubscriptionError(final int code, final String message, final String key) {
+      post(new Runnable() {
+        @Override
+        public void run() {
+          delegate.onCommandSecondLevelSubscriptionError(code, message, key);
+        }
+      });
+    }
+
+    @Override
+    public void onEndOfSnapshot(final String itemName, final int itemPos) {
+      post(new Runnable() {
+        @Override
+        public void run() {
+          delegate.onEndOfSnapshot(itemName, itemPos);
+        }
+      });
+    }
+
+    @Override
+    public void onItemLostUpdates(final String itemName, final int itemPos, final int lostUpdates) {
+      post(new Runnable() {
+        @Override
+        public void run() {
+          delegate.onItemLostUpdates(itemName, itemPos, lostUpdates);
+        }
+      });
+    }
+
+    @Override
+    public void onListenEnd() {
+      post(new Runnable() {
+        @Override
+        public void run() {
+          delegate.onListenEnd();
+        }
+      });
+    }
+
+    @Override
+    public void onListenStart() {
+      post(new Runnable() {
+        @Override
+        public void run() {
+          delegate.onListenStart();
+        }
+      });
+    }
+
+    @Override
+    public void onSubscription() {
+      post(new Runnable() {
+        @Override
+        public void run() {
+          delegate.onSubscription();
+        }
+      });
+    }
+
+    @Override
+    public void onSubscriptionError(final int code, final String message) {
+      post(new Runnable() {
+        @Override
+        public void run() {
+          delegate.onSubscriptionError(code, message);
+        }
+      });
+    }
+
+    @Override
+    public void onUnsubscription() {
+      post(new Runnable() {
+        @Override
+        public void run() {
+          delegate.onUnsubscription();
+        }
+      });
+    }
+
+    @Override
+    public void onRealMaxFrequency(final String frequency) {
+      post(new Runnable() {
+        @Override
+        public void run() {
+          delegate.onRealMaxFrequency(frequency);
+        }
+      });
+    }
+  }
+
+}
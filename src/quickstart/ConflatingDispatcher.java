@@ -0,0 +1,292 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package quickstart;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.lightstreamer.client.ItemUpdate;
+import com.lightstreamer.client.SubscriptionListener;
+
+/**
+ * Decouples the client event thread from a slow consumer of a MERGE
+ * subscription, by conflating the updates of each item.
+ *
+ * On the event thread, each update is only decoded into the pending state of
+ * its item, whose dirty-field bitmap accumulates the changed fields, and the
+ * item is scheduled if it was not already. Worker threads take the scheduled
+ * items, and hand their latest state, with all the fields changed since the
+ * previous delivery, to the {@link Consumer}. Hence, under bursts, the
+ * intermediate values are dropped in favour of the latest ones, and the memory
+ * used is bounded by the number of items.
+ *
+ * Each item is delivered by one worker at a time, so that its updates are
+ * never delivered out of order; different items can be delivered concurrently,
+ * hence the consumer must be thread-safe when more than one worker is used.
+ * All the other events are forwarded immediately, on the event thread,
+ * to the listener given.
+ */
+public class ConflatingDispatcher implements SubscriptionListener {
+
+  /**
+   * Receives the conflated updates, on the worker threads.
+   */
+  public interface Consumer {
+
+    /**
+     * @param quote the latest values of the item; it may only be used until
+     * the method returns
+     * @param changed the bitmap of the fields changed since the previous delivery
+     */
+    void onConflatedUpdate(String itemName, int itemPos, StockQuote quote, long changed);
+  }
+
+  /**
+   * @return the dispatcher in front of the consumer if the quickstart.conflate
+   * system property sets a number of workers, otherwise the listener itself
+   */
+  static SubscriptionListener wrapIfConfigured(SubscriptionListener listener, Consumer consumer, FieldLayout layout, int items) {
+    int workers = Integer.getInteger("quickstart.conflate", 0);
+    if (workers <= 0) {
+      return listener;
+    }
+    return new ConflatingDispatcher(layout, items, consumer, listener, workers);
+  }
+
+  private static class Slot {
+    final int itemPos;
+    final StockQuote pending; //guarded by this
+    final StockQuote delivered; //only touched by the worker owning the slot
+    String itemName; //guarded by this
+    long dirty; //guarded by this
+    boolean scheduled; //guarded by this; true while queued or being delivered
+
+    Slot(int itemPos, FieldLayout layout) {
+      this.itemPos = itemPos;
+      this.pending = new StockQuote(layout);
+      this.delivered = new StockQuote(layout);
+    }
+  }
+
+  private final Slot[] slots;
+  private final Consumer consumer;
+  private final SubscriptionListener events;
+  private final BlockingQueue<Slot> ready;
+  private final Thread[] workers;
+
+  private final AtomicLong received = new AtomicLong();
+  private final AtomicLong delivered = new AtomicLong();
+
+  /**
+   * @param items number of items of the subscription
+   * @param events receives all the events other than updates; may be null
+   * @param workerCount number of worker threads
+   */
+  public ConflatingDispatcher(FieldLayout layout, int items, Consumer consumer, SubscriptionListener events, int workerCount) {
+    this.slots = new Slot[items + 1];
+    for (int i = 1; i <= items; i++) {
+      slots[i] = new Slot(i, layout);
+    }
+    this.consumer = consumer;
+    this.events = events;
+    //each item is queued at most once
+    this.ready = new ArrayBlockingQueue<Slot>(items);
+
+    this.workers = new Thread[workerCount];
+    for (int i = 0; i < workerCount; i++) {
+      workers[i] = new Thread("ConflatingDispatcher worker " + i) {
+        @Override
+        public void run() {
+          work();
+        }
+      };
+      workers[i].setDaemon(true);
+      workers[i].start();
+    }
+  }
+
+  /**
+   * @return the updates received from the client so far
+   */
+  public long getReceived() {
+    return received.get();
+  }
+
+  /**
+   * @return the updates handed to the consumer so far; the difference with
+   * the received ones were conflated
+   */
+  public long getDelivered() {
+    return delivered.get();
+  }
+
+  /**
+   * @return the number of items waiting for a worker
+   */
+  public int getBacklog() {
+    return ready.size();
+  }
+
+  /**
+   * Stops the workers; pending updates are discarded.
+   */
+  public void close() {
+    for (Thread worker : workers) {
+      worker.interrupt();
+    }
+  }
+
+  private void work() {
+    try {
+      while (true) {
+        Slot slot = ready.take();
+        long changed;
+        String itemName;
+        synchronized (slot) {
+          changed = slot.dirty;
+          itemName = slot.itemName;
+          slot.dirty = 0;
+          slot.delivered.copyFrom(slot.pending, changed);
+        }
+
+        consumer.onConflatedUpdate(itemName, slot.itemPos, slot.delivered, changed);
+        delivered.incrementAndGet();
+
+        boolean again;
+        synchronized (slot) {
+          again = slot.dirty != 0;
+          slot.scheduled = again;
+        }
+        if (again) {
+          //cannot block, as there is room for all the items
+          ready.offer(slot);
+        }
+      }
+    } catch (InterruptedException e) {
+      //closed
+    }
+  }
+
+  @Override
+  public void onItemUpdate(ItemUpdate update) {
+    received.incrementAndGet();
+    Slot slot = slots[update.getItemPos()];
+    boolean schedule;
+    synchronized (slot) {
+      slot.itemName = update.getItemName();
+      slot.dirty |= slot.pending.apply(update);
+      schedule = !slot.scheduled && slot.dirty != 0;
+      if (schedule) {
+        slot.scheduled = true;
+      }
+    }
+    if (schedule) {
+      ready.offer(slot);
+    }
+  }
+
+  @Override
+  public void onClearSnapshot(String itemName, int itemPos) {
+    Slot slot = slots[itemPos];
+    boolean schedule;
+    synchronized (slot) {
+      //undelivered values are obsolete; the next delivery will carry the cleared fields
+      slot.itemName = itemName;
+      slot.dirty |= slot.pending.getLayout().allFields();
+      slot.pending.clear();
+      schedule = !slot.scheduled;
+      slot.scheduled = true;
+    }
+    if (schedule) {
+      ready.offer(slot);
+    }
+    if (events != null) {
+      events.onClearSnapshot(itemName, itemPos);
+    }
+  }
+
+  @Override
+  public void onCommandSecondLevelItemLostUpdates(int lostUpdates, String key) {
+    if (events != null) {
+      events.onCommandSecondLevelItemLostUpdates(lostUpdates, key);
+    }
+  }
+
+  @Override
+  public void onCommandSecondLevelSubscriptionError(int code, String message, String key) {
+    if (events != null) {
+      events.onCommandSecondLevelSubscriptionError(code, message, key);
+    }
+  }
+
+  @Override
+  public void onEndOfSnapshot(String itemName, int itemPos) {
+    if (events != null) {
+      events.onEndOfSnapshot(itemName, itemPos);
+    }
+  }
+
+  @Override
+  public void onItemLostUpdates(String itemName, int itemPos, int lostUpdates) {
+    if (events != null) {
+      events.onItemLostUpdates(itemName, itemPos, lostUpdates);
+    }
+  }
+
+  @Override
+  public void onListenEnd() {
+    if (events != null) {
+      events.onListenEnd();
+    }
+  }
+
+  @Override
+  public void onListenStart() {
+    if (events != null) {
+      events.onListenStart();
+    }
+  }
+
+  @Override
+  public void onSubscription() {
+    if (events != null) {
+      events.onSubscription();
+    }
+  }
+
+  @Override
+  public void onSubscriptionError(int code, String message) {
+    if (events != null) {
+      events.onSubscriptionError(code, message);
+    }
+  }
+
+  @Override
+  public void onUnsubscription() {
+    if (events != null) {
+      events.onUnsubscription();
+    }
+  }
+
+  @Override
+  public void onRealMaxFrequency(String frequency) {
+    if (events != null) {
+      events.onRealMaxFrequency(frequency);
+    }
+  }
+
+}
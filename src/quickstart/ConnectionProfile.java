@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package quickstart;
+
+import java.util.Locale;
+
+import com.lightstreamer.client.ConnectionOptions;
+import com.lightstreamer.client.LightstreamerClient;
+
+/**
+ * Named sets of connection options, for the typical deployment needs:
+ * - LOW_LATENCY: WebSocket streaming, frequent keepalives and reverse
+ *   heartbeats, so that a broken connection is detected within a couple of
+ *   seconds and reopened at once, and no slowing by the Server;
+ * - HIGH_THROUGHPUT: HTTP streaming with a large content length, so that
+ *   rebinds are rare, and infrequent keepalives;
+ * - FIREWALL_SAFE: HTTP long polling, which crosses any proxy that buffers
+ *   or cuts streaming responses;
+ * - DEFAULT: the library defaults, with the transport chosen automatically.
+ *
+ * The profile of all the quickstart clients is chosen through the
+ * quickstart.profile system property, which Main also sets from its
+ * --profile=NAME option.
+ */
+public enum ConnectionProfile {
+
+  DEFAULT {
+    @Override
+    public void apply(ConnectionOptions options) {
+    }
+  },
+
+  LOW_LATENCY {
+    @Override
+    public void apply(ConnectionOptions options) {
+      options.setForcedTransport("WS-STREAMING");
+      options.setKeepaliveInterval(1000);
+      options.setReverseHeartbeatInterval(1000);
+      options.setStalledTimeout(1000);
+      options.setReconnectTimeout(1500);
+      options.setFirstRetryMaxDelay(100);
+      options.setRetryDelay(1000);
+      options.setSlowingEnabled(false);
+    }
+  },
+
+  HIGH_THROUGHPUT {
+    @Override
+    public void apply(ConnectionOptions options) {
+      options.setForcedTransport("HTTP-STREAMING");
+      options.setContentLength(100000000);
+      options.setKeepaliveInterval(5000);
+      options.setStalledTimeout(2000);
+      options.setReconnectTimeout(3000);
+      options.setSlowingEnabled(false);
+    }
+  },
+
+  FIREWALL_SAFE {
+    @Override
+    public void apply(ConnectionOptions options) {
+      options.setForcedTransport("HTTP-POLLING");
+      options.setPollingInterval(0);
+      options.setIdleTimeout(19000);
+      options.setRetryDelay(4000);
+    }
+  };
+
+  /**
+   * Sets the options of the profile on a client not yet connected.
+   */
+  public abstract void apply(ConnectionOptions options);
+
+  /**
+   * @param name the name of a profile, case-insensitive, with either dashes or underscores
+   */
+  public static ConnectionProfile forName(String name) {
+    return valueOf(name.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+  }
+
+  /**
+   * @return the profile set by the quickstart.profile system property, or DEFAULT
+   */
+  public static ConnectionProfile getConfigured() {
+    String name = System.getProperty("quickstart.profile");
+    return name == null ? DEFAULT : forName(name);
+  }
+
+  /**
+   * Applies the configured profile to a new client.
+   *
+   * @return the same client, for chaining
+   */
+  static LightstreamerClient configure(LightstreamerClient client) {
+    getConfigured().apply(client.connectionOptions);
+    return client;
+  }
+
+}
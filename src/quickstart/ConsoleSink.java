@@ -0,0 +1,534 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package quickstart;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Asynchronous console output shared by the quickstart listeners.
+ *
+ * Listeners never print from the Lightstreamer event thread: they only enqueue
+ * a compact {@link Record} into a bounded ring buffer, and a dedicated writer
+ * thread drains the buffer in batches, renders the records and writes them
+ * to a single buffered stream, flushing it at most every flushInterval
+ * milliseconds.
+ *
+ * When the buffer is full the configured {@link OverflowPolicy} applies.
+ *
+ * The default instance writes to System.out and can be tuned through the
+ * following system properties:
+ *    quickstart.console.capacity   (ring buffer size, default 8192)
+ *    quickstart.console.flushMillis (flush interval, default 100)
+ *    quickstart.console.overflow   (BLOCK, DROP_OLDEST or COALESCE, default BLOCK)
+ *    quickstart.output             (TEXT, JSON or BINARY, default TEXT; see {@link OutputEncoder})
+ *    quickstart.output.file        (file to write to instead of System.out)
+ */
+public class ConsoleSink {
+
+  public enum OverflowPolicy {
+    /**
+     * The producer waits for the writer thread to free a slot
+     */
+    BLOCK,
+    /**
+     * The oldest pending record is discarded to make room for the new one
+     */
+    DROP_OLDEST,
+    /**
+     * The new record is merged into the most recent pending record of the same
+     * class with the same coalescing key; if there is none, the producer waits
+     * as in BLOCK
+     */
+    COALESCE
+  }
+
+  /**
+   * A unit of output. Records are rendered on the writer thread, hence
+   * they should capture the data they need and defer all formatting to
+   * {@link #render(StringBuilder)}.
+   */
+  public static abstract class Record {
+
+    /**
+     * @return the key used by the COALESCE policy, or null if the record
+     * cannot be merged with other records; records of the same class with
+     * the same key are never reordered, hence a record is only merged into
+     * the most recent pending one with its key. The key of a pending record
+     * must not change.
+     */
+    protected Object coalesceKey() {
+      return null;
+    }
+
+    /**
+     * @return whether a newer record, with the same coalescing key, can be
+     * merged into this one
+     */
+    protected boolean canAbsorb(Record newer) {
+      return true;
+    }
+
+    /**
+     * Merges a newer record, with the same coalescing key, into this one,
+     * which is still pending.
+     */
+    protected void absorb(Record newer) {
+    }
+
+    /**
+     * Appends the textual form of the record, including line terminators.
+     */
+    protected abstract void render(StringBuilder out);
+
+    /**
+     * Writes the record through a structured encoder; by default, each
+     * line of the textual form becomes a TEXT record.
+     *
+     * @param scratch a buffer that can be used for rendering
+     */
+    protected void encode(OutputEncoder out, StringBuilder scratch) throws IOException {
+      scratch.setLength(0);
+      render(scratch);
+      int start = 0;
+      for (int i = 0; i < scratch.length(); i++) {
+        if (scratch.charAt(i) == '\n') {
+          out.text(scratch, start, i);
+          start = i + 1;
+        }
+      }
+      if (start < scratch.length()) {
+        out.text(scratch, start, scratch.length());
+      }
+    }
+
+    /**
+     * Invoked when the record has been either written, dropped or absorbed
+     * by another record; pooled records can be given back to their pool here.
+     */
+    protected void recycle() {
+    }
+  }
+
+  private static class TextRecord extends Record {
+    private final String line;
+
+    TextRecord(String line) {
+      this.line = line;
+    }
+
+    @Override
+    protected void render(StringBuilder out) {
+      out.append(line).append('\n');
+    }
+  }
+
+  private static final int MAX_BATCH = 512;
+
+  private static ConsoleSink defaultSink;
+
+  /**
+   * @return the sink shared by all the quickstart clients, writing to System.out
+   * or to the configured output file
+   */
+  public static synchronized ConsoleSink getDefault() {
+    if (defaultSink == null) {
+      int capacity = Integer.getInteger("quickstart.console.capacity", 8192);
+      long flushMillis = Long.getLong("quickstart.console.flushMillis", 100);
+      OverflowPolicy policy = OverflowPolicy.valueOf(System.getProperty("quickstart.console.overflow", "BLOCK"));
+      OutputEncoder.Format format = OutputEncoder.Format.getConfigured();
+      String file = System.getProperty("quickstart.output.file");
+
+      WritableByteChannel channel;
+      if (file != null) {
+        try {
+          channel = FileChannel.open(Paths.get(file), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+              StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException e) {
+          throw new IllegalStateException("Cannot open output file " + file, e);
+        }
+      } else {
+        channel = Channels.newChannel(System.out);
+      }
+      defaultSink = new ConsoleSink(channel, capacity, flushMillis, policy, format);
+
+      final ConsoleSink sink = defaultSink;
+      Runtime.getRuntime().addShutdownHook(new Thread("ConsoleSink shutdown") {
+        @Override
+        public void run() {
+          sink.close();
+        }
+      });
+    }
+    return defaultSink;
+  }
+
+  private final Record[] ring;
+  private int head = 0;
+  private int count = 0;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notEmpty = lock.newCondition();
+  private final Condition notFull = lock.newCondition();
+
+  private final OverflowPolicy policy;
+  private final long flushIntervalNanos;
+  private final Writer out;
+  private final OutputEncoder encoder;
+  private final Thread writerThread;
+
+  //the most recent pending record of each class and coalescing key, for the COALESCE policy; guarded by lock
+  private final Map<Class<?>, Map<Object, Record>> latest = new HashMap<Class<?>, Map<Object, Record>>();
+
+  private boolean closed = false;
+  private long dropped = 0;
+  private long coalesced = 0;
+  private long written = 0;
+
+  public ConsoleSink(OutputStream stream, int capacity, long flushIntervalMillis, OverflowPolicy policy) {
+    this(Channels.newChannel(stream), capacity, flushIntervalMillis, policy, OutputEncoder.Format.TEXT);
+  }
+
+  /**
+   * @param format TEXT renders the records for humans, the other formats
+   * encode them through an {@link OutputEncoder}
+   */
+  public ConsoleSink(WritableByteChannel channel, int capacity, long flushIntervalMillis, OverflowPolicy policy,
+      OutputEncoder.Format format) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity must be positive");
+    }
+    this.ring = new Record[capacity];
+    this.policy = policy;
+    this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+    this.encoder = OutputEncoder.create(format, channel);
+    this.out = encoder != null ? null
+        : new OutputStreamWriter(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16),
+            Charset.defaultCharset());
+
+    this.writerThread = new Thread("ConsoleSink writer") {
+      @Override
+      public void run() {
+        drainLoop();
+      }
+    };
+    this.writerThread.setDaemon(true);
+    this.writerThread.start();
+  }
+
+  /**
+   * Enqueues a line of text; the line terminator is added by the sink.
+   */
+  public void println(String line) {
+    submit(new TextRecord(line));
+  }
+
+  /**
+   * Enqueues a record, applying the overflow policy if the buffer is full.
+   * Records submitted after {@link #close()} are silently discarded.
+   */
+  public void submit(Record record) {
+    Record evicted = null;
+    lock.lock();
+    try {
+      if (count == ring.length && !closed) {
+        if (policy == OverflowPolicy.COALESCE && tryCoalesce(record)) {
+          coalesced++;
+          evicted = record;
+          return;
+        } else if (policy == OverflowPolicy.DROP_OLDEST) {
+          evicted = ring[head];
+          ring[head] = null;
+          unindex(evicted);
+          head = (head + 1) % ring.length;
+          count--;
+          dropped++;
+        } else {
+          while (count == ring.length && !closed) {
+            notFull.awaitUninterruptibly();
+          }
+        }
+      }
+      if (closed) {
+        evicted = record;
+        return;
+      }
+      ring[(head + count) % ring.length] = record;
+      count++;
+      index(record);
+      notEmpty.signal();
+    } finally {
+      lock.unlock();
+      if (evicted != null) {
+        evicted.recycle();
+      }
+    }
+  }
+
+  private boolean tryCoalesce(Record record) {
+    Object key = record.coalesceKey();
+    if (key == null) {
+      return false;
+    }
+    //the sink is shared, hence keys are only meaningful among records of the same kind
+    Map<Object, Record> byKey = latest.get(record.getClass());
+    Record pending = byKey != null ? byKey.get(key) : null;
+    if (pending == null || !pending.canAbsorb(record)) {
+      return false;
+    }
+    pending.absorb(record);
+    return true;
+  }
+
+  private void index(Record record) {
+    if (policy != OverflowPolicy.COALESCE) {
+      return;
+    }
+    Object key = record.coalesceKey();
+    if (key == null) {
+      return;
+    }
+    Map<Object, Record> byKey = latest.get(record.getClass());
+    if (byKey == null) {
+      byKey = new HashMap<Object, Record>();
+      latest.put(record.getClass(), byKey);
+    }
+    byKey.put(key, record);
+  }
+
+  private void unindex(Record record) {
+    if (policy != OverflowPolicy.COALESCE) {
+      return;
+    }
+    Object key = record.coalesceKey();
+    if (key == null) {
+      return;
+    }
+    Map<Object, Record> byKey = latest.get(record.getClass());
+    if (byKey != null && byKey.get(key) == record) {
+      byKey.remove(key);
+    }
+  }
+
+  /**
+   * @return the number of records currently waiting for the writer thread
+   */
+  public int getQueueDepth() {
+    lock.lock();
+    try {
+      return count;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public int getCapacity() {
+    return ring.length;
+  }
+
+  /**
+   * @return the number of records discarded by the DROP_OLDEST policy
+   */
+  public long getDropped() {
+    lock.lock();
+    try {
+      return dropped;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the number of records merged into pending ones by the COALESCE policy
+   */
+  public long getCoalesced() {
+    lock.lock();
+    try {
+      return coalesced;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the number of records written so far
+   */
+  public long getWritten() {
+    lock.lock();
+    try {
+      return written;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Writes all the pending records, flushes the stream and stops the writer
+   * thread. Waits at most a few seconds for the writer thread to complete.
+   */
+  public void close() {
+    lock.lock();
+    try {
+      closed = true;
+      notEmpty.signal();
+      notFull.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    try {
+      writerThread.join(5000);
+    } catch (InterruptedException e) {
+    }
+  }
+
+  private void drainLoop() {
+    Record[] batch = new Record[Math.min(MAX_BATCH, ring.length)];
+    StringBuilder text = new StringBuilder(1 << 14);
+    char[] chars = new char[1 << 14];
+    boolean dirty = false;
+    long lastFlush = System.nanoTime();
+
+    while (true) {
+      int n = 0;
+      lock.lock();
+      try {
+        while (count == 0 && !closed) {
+          if (dirty) {
+            long wait = flushIntervalNanos - (System.nanoTime() - lastFlush);
+            if (wait <= 0) {
+              break;
+            }
+            notEmpty.awaitNanos(wait);
+          } else {
+            notEmpty.awaitUninterruptibly();
+          }
+        }
+        while (count > 0 && n < batch.length) {
+          batch[n++] = ring[head];
+          unindex(ring[head]);
+          ring[head] = null;
+          head = (head + 1) % ring.length;
+          count--;
+        }
+        written += n;
+        if (n > 0) {
+          notFull.signalAll();
+        }
+      } catch (InterruptedException e) {
+        //the writer thread is never interrupted; go on draining
+      } finally {
+        lock.unlock();
+      }
+
+      try {
+        if (n > 0 && encoder != null) {
+          for (int i = 0; i < n; i++) {
+            try {
+              batch[i].encode(encoder, text);
+            } catch (RuntimeException e) {
+              encoder.abort();
+              reportFailure(batch[i], e);
+            } finally {
+              batch[i].recycle();
+              batch[i] = null;
+            }
+          }
+          dirty = true;
+        } else if (n > 0) {
+          for (int i = 0; i < n; i++) {
+            int length = text.length();
+            try {
+              batch[i].render(text);
+            } catch (RuntimeException e) {
+              text.setLength(length);
+              reportFailure(batch[i], e);
+            } finally {
+              batch[i].recycle();
+              batch[i] = null;
+            }
+          }
+          for (int start = 0; start < text.length(); start += chars.length) {
+            int end = Math.min(text.length(), start + chars.length);
+            text.getChars(start, end, chars, 0);
+            out.write(chars, 0, end - start);
+          }
+          text.setLength(0);
+          dirty = true;
+        }
+
+        if (dirty && System.nanoTime() - lastFlush >= flushIntervalNanos) {
+          flush();
+          dirty = false;
+          lastFlush = System.nanoTime();
+        }
+
+        if (n == 0 && isClosed()) {
+          flush();
+          return;
+        }
+      } catch (IOException e) {
+        //nothing we can do if the console is broken; keep draining so that producers never block
+        for (int i = 0; i < n; i++) {
+          if (batch[i] != null) {
+            batch[i].recycle();
+            batch[i] = null;
+          }
+        }
+        text.setLength(0);
+      }
+    }
+  }
+
+  /**
+   * A record that cannot be printed is skipped, so that the writer thread,
+   * and with it the producers, go on.
+   */
+  private static void reportFailure(Record record, RuntimeException e) {
+    System.err.println("Cannot print a " + record.getClass().getName() + ": " + e);
+  }
+
+  private void flush() throws IOException {
+    if (encoder != null) {
+      encoder.drain();
+    } else {
+      out.flush();
+    }
+  }
+
+  private boolean isClosed() {
+    lock.lock();
+    try {
+      return closed && count == 0;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package quickstart;
+
+/**
+ * Allocation-free parsing and formatting of the plain numeric formats
+ * used by the demo adapters (e.g. "-12.34", "1500", "15:04:05").
+ *
+ * Parsing methods never throw; malformed values are reported through
+ * sentinel return values.
+ */
+public class Decimals {
+
+  /**
+   * Returned by {@link #parseLong(CharSequence)} for malformed values
+   */
+  public static final long INVALID_LONG = Long.MIN_VALUE;
+
+  /**
+   * Returned by {@link #parseTime(CharSequence)} for malformed values
+   */
+  public static final int INVALID_TIME = -1;
+
+  private static final int MAX_SCALE = 18;
+
+  private static final double[] POWERS_OF_TEN = new double[MAX_SCALE + 1];
+  private static final long[] LONG_POWERS_OF_TEN = new long[MAX_SCALE + 1];
+  static {
+    double d = 1;
+    long l = 1;
+    for (int i = 0; i <= MAX_SCALE; i++) {
+      POWERS_OF_TEN[i] = d;
+      LONG_POWERS_OF_TEN[i] = l;
+      d *= 10;
+      l *= 10;
+    }
+  }
+
+  /**
+   * Parses a plain decimal number (optional sign, digits, optional dot and
+   * decimals, no exponent).
+   *
+   * @return the value, or NaN if the value is malformed or has too many digits
+   */
+  public static double parseDouble(CharSequence value) {
+    long mantissa = parseUnscaled(value);
+    if (mantissa == INVALID_LONG) {
+      return Double.NaN;
+    }
+    //both operands are exact, hence the quotient is correctly rounded
+    return mantissa / POWERS_OF_TEN[scale(value)];
+  }
+
+  /**
+   * @return the number of decimals of a plain decimal number
+   */
+  public static int scale(CharSequence value) {
+    int len = value.length();
+    for (int i = 0; i < len; i++) {
+      if (value.charAt(i) == '.') {
+        return len - i - 1;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Parses a plain decimal number ignoring the decimal separator, so that
+   * "12.34" yields 1234; see {@link #scale(CharSequence)}.
+   *
+   * @return the digits as a long, or {@link #INVALID_LONG} if the value is malformed
+   */
+  public static long parseUnscaled(CharSequence value) {
+    int len = value.length();
+    int i = 0;
+    boolean negative = false;
+    if (len > 0 && (value.charAt(0) == '-' || value.charAt(0) == '+')) {
+      negative = value.charAt(0) == '-';
+      i++;
+    }
+    long result = 0;
+    int digits = 0;
+    boolean dot = false;
+    for (; i < len; i++) {
+      char c = value.charAt(i);
+      if (c == '.' && !dot) {
+        dot = true;
+      } else if (c >= '0' && c <= '9') {
+        if (++digits > MAX_SCALE) {
+          return INVALID_LONG;
+        }
+        result = result * 10 + (c - '0');
+      } else {
+        return INVALID_LONG;
+      }
+    }
+    if (digits == 0 || (dot && scale(value) == 0)) {
+      return INVALID_LONG;
+    }
+    return negative ? -result : result;
+  }
+
+  /**
+   * Parses an integer number.
+   *
+   * @return the value, or {@link #INVALID_LONG} if the value is malformed
+   */
+  public static long parseLong(CharSequence value) {
+    if (scale(value) > 0) {
+      return INVALID_LONG;
+    }
+    return parseUnscaled(value);
+  }
+
+  /**
+   * Parses a time of day in the HH:mm:ss format.
+   *
+   * @return the seconds from midnight, or {@link #INVALID_TIME} if the value is malformed
+   */
+  public static int parseTime(CharSequence value) {
+    if (value.length() != 8 || value.charAt(2) != ':' || value.charAt(5) != ':') {
+      return INVALID_TIME;
+    }
+    int h = twoDigits(value, 0);
+    int m = twoDigits(value, 3);
+    int s = twoDigits(value, 6);
+    if (h < 0 || h > 23 || m < 0 || m > 59 || s < 0 || s > 59) {
+      return INVALID_TIME;
+    }
+    return h * 3600 + m * 60 + s;
+  }
+
+  private static int twoDigits(CharSequence value, int start) {
+    char c1 = value.charAt(start);
+    char c2 = value.charAt(start + 1);
+    if (c1 < '0' || c1 > '9' || c2 < '0' || c2 > '9') {
+      return -1;
+    }
+    return (c1 - '0') * 10 + (c2 - '0');
+  }
+
+  /**
+   * Appends a value with the given number of decimals, rounding half up.
+   */
+  public static void appendFixed(StringBuilder out, double value, int scale) {
+    if (Double.isNaN(value) || Double.isInfinite(value) || scale > MAX_SCALE) {
+      out.append(value);
+      return;
+    }
+    long unscaled = Math.round(Math.abs(value) * POWERS_OF_TEN[scale]);
+    if (value < 0 && unscaled != 0) {
+      out.append('-');
+    }
+    if (scale == 0) {
+      out.append(unscaled);
+      return;
+    }
+    out.append(unscaled / LONG_POWERS_OF_TEN[scale]).append('.');
+    long decimals = unscaled % LONG_POWERS_OF_TEN[scale];
+    for (int i = scale - 1; i > 0 && decimals < LONG_POWERS_OF_TEN[i]; i--) {
+      out.append('0');
+    }
+    out.append(decimals);
+  }
+
+  /**
+   * Appends seconds from midnight in the HH:mm:ss format.
+   */
+  public static void appendTime(StringBuilder out, int secondsOfDay) {
+    appendTwoDigits(out, secondsOfDay / 3600);
+    out.append(':');
+    appendTwoDigits(out, (secondsOfDay / 60) % 60);
+    out.append(':');
+    appendTwoDigits(out, secondsOfDay % 60);
+  }
+
+  private static void appendTwoDigits(StringBuilder out, int value) {
+    out.append((char) ('0' + value / 10)).append((char) ('0' + value % 10));
+  }
+
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package quickstart;
+
+/**
+ * The field schema of a Subscription, resolved once from the same array
+ * passed to the Subscription constructor.
+ *
+ * Positions are 1-based, as in {@link com.lightstreamer.client.ItemUpdate#getValue(int)},
+ * so that sets of fields can be represented as long bitmaps where bit pos
+ * stands for the field at position pos; hence at most 63 fields are supported.
+ *
+ * Each field is also given a {@link Kind}, which tells how its values should
+ * be decoded into primitive slots.
+ */
+public class FieldLayout {
+
+  public enum Kind {
+    /**
+     * Kept as the original String
+     */
+    TEXT,
+    /**
+     * Decoded as a double, remembering the number of decimals received
+     */
+    DECIMAL,
+    /**
+     * Decoded as a long
+     */
+    INTEGER,
+    /**
+     * Decoded as seconds from midnight, from the HH:mm:ss format
+     */
+    TIME
+  }
+
+  private final String[] names;
+  private final Kind[] kinds;
+
+  public FieldLayout(String[] names) {
+    if (names.length > 63) {
+      throw new IllegalArgumentException("At most 63 fields are supported");
+    }
+    this.names = names.clone();
+    this.kinds = new Kind[names.length + 1];
+    for (int pos = 1; pos <= names.length; pos++) {
+      kinds[pos] = Kind.TEXT;
+    }
+  }
+
+  /**
+   * Assigns a kind to the named fields.
+   *
+   * @return this layout, to allow chaining
+   */
+  public FieldLayout with(Kind kind, String... fieldNames) {
+    for (String name : fieldNames) {
+      int pos = getPosition(name);
+      if (pos < 0) {
+        throw new IllegalArgumentException("Unknown field " + name);
+      }
+      kinds[pos] = kind;
+    }
+    return this;
+  }
+
+  /**
+   * @return the 1-based position of the field, or -1 if the field is not part of the layout
+   */
+  public int getPosition(String name) {
+    for (int i = 0; i < names.length; i++) {
+      if (names[i].equals(name)) {
+        return i + 1;
+      }
+    }
+    return -1;
+  }
+
+  public int size() {
+    return names.length;
+  }
+
+  public String getName(int pos) {
+    return names[pos - 1];
+  }
+
+  public Kind getKind(int pos) {
+    return kinds[pos];
+  }
+
+  /**
+   * @return the field names, in position order
+   */
+  public String[] getNames() {
+    return names.clone();
+  }
+
+  /**
+   * @return the bitmap with the bits of all the positions set
+   */
+  public long allFields() {
+    return ((1L << names.length) - 1) << 1;
+  }
+
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package quickstart;
+
+import java.util.Calendar;
+import java.util.concurrent.TimeUnit;
+
+import com.lightstreamer.client.ItemUpdate;
+import com.lightstreamer.client.SubscriptionListener;
+
+/**
+ * Wraps a SubscriptionListener and records, in an {@link UpdateLatencyStats},
+ * the per-item inter-arrival time of the updates, the time spent in the
+ * wrapped onItemUpdate and, if a {@link TimestampExtractor} is given, the
+ * source-to-consumer latency.
+ *
+ * Instrumentation of the quickstart clients is enabled by the
+ * quickstart.latency system property, which specifies the period, in
+ * seconds, of the console dumps; the statistics are also available via JMX.
+ */
+public class InstrumentedSubscriptionListener implements SubscriptionListener {
+
+  /**
+   * Extracts the time an update was produced at from its payload.
+   */
+  public interface TimestampExtractor {
+
+    /**
+     * @return the source time in milliseconds since the epoch, or -1 if not available
+     */
+    long getSourceTimeMillis(ItemUpdate update);
+  }
+
+  /**
+   * @return an extractor for a field holding milliseconds since the epoch,
+   * like Chat's raw_timestamp
+   */
+  public static TimestampExtractor epochMillis(final String field) {
+    return new TimestampExtractor() {
+      @Override
+      public long getSourceTimeMillis(ItemUpdate update) {
+        String value = update.getValue(field);
+        if (value == null) {
+          return -1;
+        }
+        long millis = Decimals.parseLong(value);
+        return millis == Decimals.INVALID_LONG ? -1 : millis;
+      }
+    };
+  }
+
+  /**
+   * @return an extractor for a field holding the HH:mm:ss time of day, like
+   * Stocklist's time; the source is assumed to be in the local time zone, and
+   * the resulting latency is only accurate to the second
+   */
+  public static TimestampExtractor timeOfDay(final String field) {
+    return new TimestampExtractor() {
+      private long midnight = 0;
+
+      @Override
+      public long getSourceTimeMillis(ItemUpdate update) {
+        String value = update.getValue(field);
+        int seconds = value == null ? Decimals.INVALID_TIME : Decimals.parseTime(value);
+        if (seconds == Decimals.INVALID_TIME) {
+          return -1;
+        }
+        long now = System.currentTimeMillis();
+        if (now - midnight >= TimeUnit.DAYS.toMillis(1) || now < midnight) {
+          Calendar calendar = Calendar.getInstance();
+          calendar.set(Calendar.HOUR_OF_DAY, 0);
+          calendar.set(Calendar.MINUTE, 0);
+          calendar.set(Calendar.SECOND, 0);
+          calendar.set(Calendar.MILLISECOND, 0);
+          midnight = calendar.getTimeInMillis();
+        }
+        long source = midnight + seconds * 1000L;
+        if (source - now > TimeUnit.HOURS.toMillis(12)) {
+          //produced before midnight
+          source -= TimeUnit.DAYS.toMillis(1);
+        }
+        return source;
+      }
+    };
+  }
+
+  /**
+   * @return the listener wrapped in an instrumented one if the
+   * quickstart.latency system property is set, otherwise the listener itself
+   */
+  static SubscriptionListener wrapIfConfigured(SubscriptionListener listener, String name, TimestampExtractor extractor) {
+    Long period = Long.getLong("quickstart.latency");
+    if (period == null) {
+      return listener;
+    }
+    UpdateLatencyStats stats = new UpdateLatencyStats(name);
+    stats.registerMBean();
+    stats.startDumps(ConsoleSink.getDefault(), period);
+    return new InstrumentedSubscriptionListener(listener, stats, extractor);
+  }
+
+  private final SubscriptionListener delegate;
+  private final UpdateLatencyStats stats;
+  private final TimestampExtractor extractor;
+
+  //indexed by item position, only touched by the event thread
+  private long[] lastArrival = new long[16];
+
+  /**
+   * @param extractor may be null if the updates carry no timestamp
+   */
+  public InstrumentedSubscriptionListener(SubscriptionListener delegate, UpdateLatencyStats stats, TimestampExtractor extractor) {
+    this.delegate = delegate;
+    this.stats = stats;
+    this.extractor = extractor;
+  }
+
+  public UpdateLatencyStats getStats() {
+    return stats;
+  }
+
+  @Override
+  public void onItemUpdate(ItemUpdate update) {
+    long arrival = System.nanoTime();
+
+    int itemPos = update.getItemPos();
+    if (itemPos >= lastArrival.length) {
+      long[] larger = new long[Math.max(itemPos + 1, lastArrival.length * 2)];
+      System.arraycopy(lastArrival, 0, larger, 0, lastArrival.length);
+      lastArrival = larger;
+    }
+    if (lastArrival[itemPos] != 0) {
+      stats.recordInterArrival(arrival - lastArrival[itemPos]);
+    }
+    lastArrival[itemPos] = arrival;
+
+    if (extractor != null) {
+      long source = extractor.getSourceTimeMillis(update);
+      if (source >= 0) {
+        stats.recordSourceLatency(TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - source));
+      }
+    }
+
+    delegate.onItemUpdate(update);
+    stats.recordServiceTime(System.nanoTime() - arrival);
+  }
+
+  @Override
+  public void onClearSnapshot(String itemName, int itemPos) {
+    delegate.onClearSnapshot(itemName, itemPos);
+  }
+
+  @Override
+  public void onCommandSecondLevelItemLostUpdates(int lostUpdates, String key) {
+    delegate.onCommandSecondLevelItemLostUpdates(lostUpdates, key);
+  }
+
+  @Override
+  public void onCommandSecondLevelSubscriptionError(int code, String message, String key) {
+    delegate.onCommandSecondLevelSubscriptionError(code, message, key);
+  }
+
+  @Override
+  public void onEndOfSnapshot(String itemName, int itemPos) {
+    delegate.onEndOfSnapshot(itemName, itemPos);
+  }
+
+  @Override
+  public void onItemLostUpdates(String itemName, int itemPos, int lostUpdates) {
+    delegate.onItemLostUpdates(itemName, itemPos, lostUpdates);
+  }
+
+  @Override
+  public void onListenEnd() {
+    delegate.onListenEnd();
+  }
+
+  @Override
+  public void onListenStart() {
+    delegate.onListenStart();
+  }
+
+  @Override
+  public void onSubscription() {
+    delegate.onSubscription();
+  }
+
+  @Override
+  public void onSubscriptionError(int code, String message) {
+    delegate.onSubscriptionError(code, message);
+  }
+
+  @Override
+  public void onUnsubscription() {
+    delegate.onUnsubscription();
+  }
+
+  @Override
+  public void onRealMaxFrequency(String frequency) {
+    delegate.onRealMaxFrequency(frequency);
+  }
+
+}
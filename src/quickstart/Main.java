@@ -15,13 +15,48 @@
  */
 package quickstart;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.Arrays;
+import java.util.Locale;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import com.lightstreamer.client.SubscriptionListener;
 
 public class Main {
 
   public static void main(String[] args) {
     
+    // --profile=NAME selects the connection options of all the clients (see ConnectionProfile)
+    // --output=FORMAT[:FILE] selects the console output format (see OutputEncoder)
+    while (args.length > 0 && args[0].startsWith("--")) {
+      if (args[0].startsWith("--profile=")) {
+        System.setProperty("quickstart.profile", ConnectionProfile.forName(args[0].substring("--profile=".length())).name());
+      } else if (args[0].startsWith("--output=")) {
+        String output = args[0].substring("--output=".length());
+        int colon = output.indexOf(':');
+        if (colon >= 0) {
+          System.setProperty("quickstart.output.file", output.substring(colon + 1));
+          output = output.substring(0, colon);
+        }
+        System.setProperty("quickstart.output", OutputEncoder.Format.valueOf(output.toUpperCase(Locale.ROOT)).name());
+      } else {
+        break;
+      }
+      args = Arrays.copyOfRange(args, 1, args.length);
+    }
+    
     switch (args[0]) {
       case "chat":
         new Chat().start(args[1]);
@@ -37,10 +72,288 @@ public class Main {
       case "orderentry":
         PortfolioOrderEntry.main(Arrays.copyOfRange(args, 1, args.length));
         break;
+      case "mockserver":
+        startMockServer(Arrays.copyOfRange(args, 1, args.length));
+        slumber();
+        break;
+      case "replay":
+        replay(args[1], args[2], args.length > 3 ? args[3] : "1");
+        break;
+      case "orders":
+        submitOrders(args[1], args[2], args.length > 3 ? Integer.parseInt(args[3]) : 32, args.length > 4 ? Integer.parseInt(args[4]) : 1);
+        break;
+      case "loadgen":
+        runLoadGenerator(Arrays.copyOfRange(args, 1, args.length));
+        break;
+      case "profiles":
+        runProfileBenchmark(Arrays.copyOfRange(args, 1, args.length));
+        break;
+      case "sharded":
+        startSharded(args[1], args[2], args.length > 3 ? args[3] : "auto");
+        slumber();
+        break;
+      case "gateway":
+        startGateway(args[1], Integer.parseInt(args[2]), args.length > 3 ? Long.parseLong(args[3]) : 10);
+        slumber();
+        break;
+      case "gatewayclient":
+        connectToGateway(Integer.parseInt(args[1]));
+        slumber();
+        break;
+      case "shmreader":
+        readSharedQuotes(args.length > 1 ? args[1] : SharedQuoteRing.DEFAULT_PATH, args.length > 2 ? args[2] : "park");
+        break;
+      case "soak":
+        runSoak(args[1], args[2], Long.parseLong(args[3]), args.length > 4 ? Long.parseLong(args[4]) : 60);
+        break;
+      case "host":
+        startHost(args[1], args[2], Integer.parseInt(args[3]), args.length > 4 ? Long.parseLong(args[4]) : 10);
+        slumber();
+        break;
     }
     System.exit(0);
   }
   
+  private static void startMockServer(String[] args) {
+    try {
+      MockServer.main(args);
+    } catch (IOException e) {
+      System.err.println("Cannot start the mock server: " + e.getMessage());
+      System.exit(1);
+    }
+  }
+  
+  /**
+   * Plays back a log recorded with -Dquickstart.record=<dir> through the
+   * listener of the given client; speed is a factor over the original pace,
+   * or "max".
+   */
+  private static void replay(String clientName, String log, String speed) {
+    SubscriptionListener listener;
+    switch (clientName) {
+      case "stocklist":
+        listener = new Stocklist.SystemOutSubscriptionListener();
+        break;
+      case "portfolio":
+        listener = new Portfolio.SystemOutSubscriptionListener();
+        break;
+      case "chat":
+        listener = new Chat.SystemOutSubscriptionListener();
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown client " + clientName);
+    }
+    try {
+      UpdateReplayer replayer = new UpdateReplayer(Paths.get(log));
+      replayer.replay(listener, speed.equals("max") ? UpdateReplayer.MAX_SPEED : Double.parseDouble(speed));
+      replayer.close();
+    } catch (IOException e) {
+      System.err.println("Cannot replay " + log + ": " + e.getMessage());
+    }
+  }
+  
+  /**
+   * Submits the orders read from a file, or from the standard input with "-",
+   * over a single session, with up to window orders in flight, spread over
+   * the given number of sequences (0 for no ordering at all).
+   */
+  private static void submitOrders(String serverAddress, String source, int window, int sequences) {
+    final OrderEntryEngine engine = new OrderEntryEngine(serverAddress, window, sequences);
+    final long start = System.nanoTime();
+    ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+    reporter.scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        ConsoleSink.getDefault().println(engine.report((System.nanoTime() - start) / 1e9));
+      }
+    }, 5, 5, TimeUnit.SECONDS);
+    
+    engine.start();
+    try (BufferedReader in = source.equals("-") ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+        : Files.newBufferedReader(Paths.get(source), StandardCharsets.UTF_8)) {
+      engine.submitAll(in);
+      engine.close(OrderEntryEngine.IDLE_TIMEOUT_MILLIS);
+    } catch (IOException e) {
+      System.err.println("Cannot read the orders from " + source + ": " + e.getMessage());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    reporter.shutdownNow();
+    ConsoleSink.getDefault().println(engine.report((System.nanoTime() - start) / 1e9));
+  }
+  
+  private static void runLoadGenerator(String[] args) {
+    try {
+      OrderLoadGenerator.main(args);
+    } catch (IOException e) {
+      System.err.println("Cannot start the mock server: " + e.getMessage());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+  
+  private static void runProfileBenchmark(String[] args) {
+    try {
+      ProfileBenchmark.main(args);
+    } catch (IOException e) {
+      System.err.println("Cannot start the mock server: " + e.getMessage());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+  
+  /**
+   * Subscribes to the items listed in a file, or to item1..itemN, over the
+   * given number of sessions, or one per core with "auto".
+   */
+  private static void startSharded(String serverAddress, String itemsSpec, String shards) {
+    String[] items;
+    try {
+      items = ShardedStocklist.loadItems(itemsSpec);
+    } catch (IOException e) {
+      System.err.println("Cannot read the items from " + itemsSpec + ": " + e.getMessage());
+      System.exit(1);
+      return;
+    }
+    int shardCount = shards.equals("auto") ? ShardedStocklist.defaultShards() : Integer.parseInt(shards);
+    new ShardedStocklist(items, shardCount).start(serverAddress, 5);
+  }
+  
+  /**
+   * Re-serves the Stocklist subscription to the consumers connecting to the
+   * given loopback port.
+   */
+  private static void startGateway(String serverAddress, int port, long reportSeconds) {
+    QuoteGateway gateway = new QuoteGateway();
+    try {
+      gateway.listen(port);
+    } catch (IOException e) {
+      System.err.println("Cannot listen on port " + port + ": " + e.getMessage());
+      System.exit(1);
+    }
+    gateway.start(serverAddress, reportSeconds);
+  }
+  
+  /**
+   * Prints the quotes received from a gateway on the given loopback port.
+   */
+  private static void connectToGateway(int port) {
+    final QuoteGateway.Remote remote;
+    try {
+      remote = QuoteGateway.Remote.connect(port);
+    } catch (IOException e) {
+      System.err.println("Cannot connect to the gateway on port " + port + ": " + e.getMessage());
+      System.exit(1);
+      return;
+    }
+    final ConsoleSink console = ConsoleSink.getDefault();
+    final FieldLayout layout = remote.getQuoteBook().getLayout();
+    remote.start(new QuoteGateway.Listener() {
+      @Override
+      public void onQuote(QuoteBook.Snapshot quote, long changed) {
+        StringBuilder line = new StringBuilder(remote.getItemName(quote.getItemPos()));
+        for (int pos = 1; pos <= layout.size(); pos++) {
+          if ((changed & (1L << pos)) != 0) {
+            line.append(' ').append(layout.getName(pos)).append('=');
+            quote.appendValue(line, pos);
+          }
+        }
+        console.println(line.toString());
+      }
+    });
+  }
+  
+  /**
+   * Reads the quotes published by a Stocklist started with -Dquickstart.shm
+   * and reports the rate, the records lost and the latency from the
+   * publisher; the wait strategy is busy-spin, yield or park.
+   */
+  private static void readSharedQuotes(String path, String waitStrategy) {
+    final SharedQuoteRing.Reader reader;
+    try {
+      reader = new SharedQuoteRing.Reader(Paths.get(path));
+    } catch (IOException e) {
+      System.err.println("Cannot read the quotes from " + path + ": " + e.getMessage());
+      return;
+    }
+    SharedQuoteRing.WaitStrategy strategy = SharedQuoteRing.WaitStrategy.valueOf(waitStrategy.toUpperCase(Locale.ROOT).replace('-', '_'));
+    final Recorder latency = new Recorder(TimeUnit.SECONDS.toNanos(10), 3);
+    final AtomicLong records = new AtomicLong();
+    ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+    reporter.scheduleAtFixedRate(new Runnable() {
+      long last = 0;
+      
+      @Override
+      public void run() {
+        Histogram histogram = latency.getIntervalHistogram();
+        long count = records.get();
+        ConsoleSink.getDefault().println(String.format(Locale.ROOT, "[shm] %.0f records/s, %d lost | latency(us) p50=%.1f p99=%.1f max=%.1f",
+            (count - last) / 5.0, reader.getLost(), histogram.getValueAtPercentile(50) / 1000.0,
+            histogram.getValueAtPercentile(99) / 1000.0, histogram.getMaxValue() / 1000.0));
+        last = count;
+      }
+    }, 5, 5, TimeUnit.SECONDS);
+    
+    reader.run(new QuoteGateway.Listener() {
+      @Override
+      public void onQuote(QuoteBook.Snapshot quote, long changed) {
+        latency.recordValue(Math.max(0, Math.min(TimeUnit.SECONDS.toNanos(10), System.nanoTime() - reader.getPublishNanos())));
+        records.lazySet(records.get() + 1);
+      }
+    }, strategy);
+    reporter.shutdownNow();
+  }
+  
+  /**
+   * Runs the given number of instances of a client, or of all of them in
+   * turn with "mixed", in this JVM.
+   */
+  private static void startHost(String clientName, String serverAddress, int count, long reportSeconds) {
+    ClientHost.Kind[] kinds = clientName.equals("mixed") ? ClientHost.Kind.values()
+        : new ClientHost.Kind[] { ClientHost.Kind.valueOf(clientName.toUpperCase(Locale.ROOT)) };
+    try {
+      new ClientHost(kinds, count).start(serverAddress, reportSeconds);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+  
+  /**
+   * Runs a client for the given number of seconds, with a periodic summary of
+   * the updates received and lost, GC, allocations and console queue, and
+   * exits with 1 if any threshold of SoakMonitor is exceeded.
+   */
+  private static void runSoak(final String clientName, final String serverAddress, long seconds, long reportSeconds) {
+    SoakMonitor monitor = SoakMonitor.start(reportSeconds);
+    // the chat client keeps reading commands from the console, hence the clients are started aside
+    Thread client = new Thread("Main soak client") {
+      @Override
+      public void run() {
+        switch (clientName) {
+          case "stocklist":
+            new Stocklist().start(serverAddress);
+            break;
+          case "portfolio":
+            new Portfolio().start(serverAddress);
+            break;
+          case "chat":
+            new Chat().start(serverAddress);
+            break;
+          default:
+            throw new IllegalArgumentException("Unknown client " + clientName);
+        }
+      }
+    };
+    client.setDaemon(true);
+    client.start();
+    try {
+      Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    System.exit(monitor.finish() ? 0 : 1);
+  }
+  
   private static void slumber() {
     try {
       new CountDownLatch(1).await(); 
@@ -0,0 +1,281 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package quickstart;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Synthetic data served by {@link MockServer}, mimicking the demo adapters:
+ * stock quotes for any item (QUOTE_ADAPTER), portfolios (PORTFOLIO_ADAPTER)
+ * and chat rooms (CHAT_ROOM).
+ *
+ * Stock items are random walks which can be asked for any field name; the
+ * Stocklist field names get plausible values and any other field a number.
+ * The state is shared by all the sessions, as it happens with a real feed.
+ * All methods are invoked under the MockServer lock.
+ */
+class MockDataGenerator {
+
+  private static final int CHAT_HISTORY = 50;
+
+  private static class Stock {
+    double ref;
+    double open;
+    double last;
+    double min;
+    double max;
+    long bidQuantity;
+    long askQuantity;
+    long time;
+  }
+
+  /**
+   * A row of a portfolio, as a COMMAND mode event
+   */
+  static class PortfolioEvent {
+    final String key;
+    final String command;
+    final long qty;
+
+    PortfolioEvent(String key, String command, long qty) {
+      this.key = key;
+      this.command = command;
+      this.qty = qty;
+    }
+  }
+
+  /**
+   * A chat message, as a DISTINCT mode event
+   */
+  static class ChatMessage {
+    final long timestamp;
+    final String message;
+    final String ip;
+
+    ChatMessage(long timestamp, String message, String ip) {
+      this.timestamp = timestamp;
+      this.message = message;
+      this.ip = ip;
+    }
+  }
+
+  private final Random random;
+  private final Map<String, Stock> stocks = new HashMap<String, Stock>();
+  private final Map<String, Map<String, Long>> portfolios = new HashMap<String, Map<String, Long>>();
+  private final Map<String, List<ChatMessage>> rooms = new HashMap<String, List<ChatMessage>>();
+  private final SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss", Locale.ROOT);
+  private long chatCount = 0;
+
+  MockDataGenerator(long seed) {
+    this.random = new Random(seed);
+  }
+
+  private Stock getStock(String item) {
+    Stock stock = stocks.get(item);
+    if (stock == null) {
+      stock = new Stock();
+      stock.ref = 5 + random.nextInt(95) + random.nextInt(100) / 100.0;
+      stock.open = stock.ref;
+      stock.last = stock.ref;
+      stock.min = stock.ref;
+      stock.max = stock.ref;
+      stock.bidQuantity = 500 * (1 + random.nextInt(20));
+      stock.askQuantity = 500 * (1 + random.nextInt(20));
+      stock.time = System.currentTimeMillis();
+      stocks.put(item, stock);
+    }
+    return stock;
+  }
+
+  /**
+   * Moves the price of a stock item by a random step.
+   */
+  void tickStock(String item) {
+    Stock stock = getStock(item);
+    double step = stock.last * (random.nextGaussian() / 500);
+    stock.last = Math.max(0.01, Math.round((stock.last + step) * 100) / 100.0);
+    stock.min = Math.min(stock.min, stock.last);
+    stock.max = Math.max(stock.max, stock.last);
+    if (random.nextBoolean()) {
+      stock.bidQuantity = 500 * (1 + random.nextInt(20));
+    } else {
+      stock.askQuantity = 500 * (1 + random.nextInt(20));
+    }
+    stock.time = System.currentTimeMillis();
+  }
+
+  /**
+   * @return the current value of a field of a stock item
+   */
+  String getStockValue(String item, String field) {
+    Stock stock = getStock(item);
+    switch (field) {
+      case "stock_name":
+        return "Stock " + item;
+      case "last_price":
+        return format(stock.last);
+      case "time":
+        return timeFormat.format(new Date(stock.time));
+      case "timestamp":
+        return String.valueOf(stock.time);
+      case "pct_change":
+        return format((stock.last - stock.ref) / stock.ref * 100);
+      case "bid_quantity":
+        return String.valueOf(stock.bidQuantity);
+      case "ask_quantity":
+        return String.valueOf(stock.askQuantity);
+      case "bid":
+        return format(Math.max(0.01, stock.last - 0.01));
+      case "ask":
+        return format(stock.last + 0.01);
+      case "min":
+        return format(stock.min);
+      case "max":
+        return format(stock.max);
+      case "ref_price":
+        return format(stock.ref);
+      case "open_price":
+        return format(stock.open);
+      default:
+        return String.valueOf(Math.abs(field.hashCode() % 1000) + (long) stock.last);
+    }
+  }
+
+  private static String format(double value) {
+    return String.format(Locale.ROOT, "%.2f", value);
+  }
+
+  private Map<String, Long> getPortfolio(String item) {
+    Map<String, Long> portfolio = portfolios.get(item);
+    if (portfolio == null) {
+      portfolio = new LinkedHashMap<String, Long>();
+      for (int i = 0; i < 5; i++) {
+        portfolio.put("item" + (1 + random.nextInt(15)), (long) 100 * (1 + random.nextInt(20)));
+      }
+      portfolios.put(item, portfolio);
+    }
+    return portfolio;
+  }
+
+  /**
+   * @return the ADD events describing the current content of a portfolio
+   */
+  List<PortfolioEvent> getPortfolioSnapshot(String item) {
+    List<PortfolioEvent> events = new ArrayList<PortfolioEvent>();
+    for (Map.Entry<String, Long> position : getPortfolio(item).entrySet()) {
+      events.add(new PortfolioEvent(position.getKey(), "ADD", position.getValue()));
+    }
+    return events;
+  }
+
+  /**
+   * Applies a buy (positive quantity) or sell (negative quantity) order.
+   *
+   * @return the resulting event, or null if the order cannot be executed
+   */
+  PortfolioEvent applyOrder(String item, String stock, long quantity) {
+    Map<String, Long> portfolio = getPortfolio(item);
+    Long current = portfolio.get(stock);
+    long updated = (current == null ? 0 : current) + quantity;
+    if (updated < 0) {
+      return null;
+    }
+    if (updated == 0) {
+      portfolio.remove(stock);
+      return current == null ? null : new PortfolioEvent(stock, "DELETE", 0);
+    }
+    portfolio.put(stock, updated);
+    return new PortfolioEvent(stock, current == null ? "ADD" : "UPDATE", updated);
+  }
+
+  /**
+   * @return a random order on a portfolio, already applied
+   */
+  PortfolioEvent tickPortfolio(String item) {
+    String stock = "item" + (1 + random.nextInt(15));
+    long quantity = 100 * (random.nextInt(11) - 5);
+    PortfolioEvent event = applyOrder(item, stock, quantity == 0 ? 100 : quantity);
+    return event != null ? event : applyOrder(item, stock, 100);
+  }
+
+  /**
+   * @return the value of a field of a portfolio event; second-level fields are not served here
+   */
+  static String getPortfolioValue(PortfolioEvent event, String field) {
+    switch (field) {
+      case "key":
+        return event.key;
+      case "command":
+        return event.command;
+      case "qty":
+        return event.command.equals("DELETE") ? null : String.valueOf(event.qty);
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Adds a message to a chat room, keeping a bounded history for snapshots.
+   */
+  ChatMessage addChatMessage(String item, String message, String ip) {
+    List<ChatMessage> history = getChatHistory(item);
+    ChatMessage chat = new ChatMessage(System.currentTimeMillis(), message, ip);
+    history.add(chat);
+    if (history.size() > CHAT_HISTORY) {
+      history.remove(0);
+    }
+    return chat;
+  }
+
+  /**
+   * @return a synthetic message, already added to the room
+   */
+  ChatMessage tickChat(String item) {
+    return addChatMessage(item, "synthetic message " + (++chatCount), "127.0.0.1");
+  }
+
+  List<ChatMessage> getChatHistory(String item) {
+    List<ChatMessage> history = rooms.get(item);
+    if (history == null) {
+      history = new ArrayList<ChatMessage>();
+      rooms.put(item, history);
+    }
+    return history;
+  }
+
+  static String getChatValue(ChatMessage chat, String field) {
+    switch (field) {
+      case "raw_timestamp":
+      case "timestamp":
+        return String.valueOf(chat.timestamp);
+      case "message":
+        return chat.message;
+      case "IP":
+        return chat.ip;
+      default:
+        return null;
+    }
+  }
+
+}
@@ -0,0 +1,1002 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package quickstart;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A stand-in for Lightstreamer Server, bound to the loopback interface only,
+ * which allows measuring the end-to-end throughput and latency of
+ * LightstreamerClient and of the quickstart listeners on a single box.
+ *
+ * It implements the subset of the TLCP text protocol used by the quickstart
+ * clients over HTTP transports (WebSockets are refused, so clients fall back
+ * to HTTP streaming or polling): session creation and rebind (with content
+ * length and polling loops), subscriptions in MERGE, DISTINCT and COMMAND
+ * modes with snapshots, reconfiguration of the max frequency, and messages,
+ * acknowledged through REQOK and MSGDONE/MSGFAIL.
+ *
+ * Any item can be subscribed to: the data come from a {@link MockDataGenerator}
+ * and are pushed at a configurable rate of updates per second (over all the
+ * subscribed items), in bursts of a configurable size. Messages follow the
+ * conventions of the demo adapters: "CHAT|text" adds a chat message, while
+ * "BUY|portfolio|stock|qty" and "SELL|portfolio|stock|qty" change a portfolio.
+ *
+ * The test is invoked in this way:
+ *    java quickstart.MockServer [port] [updatesPerSecond] [burstSize]
+ */
+public class MockServer {
+
+  public static void main(String[] args) throws IOException {
+    MockServer server = new MockServer(args.length > 0 ? Integer.parseInt(args[0]) : 8080);
+    if (args.length > 1) {
+      server.setUpdatesPerSecond(Integer.parseInt(args[1]));
+    }
+    if (args.length > 2) {
+      server.setBurstSize(Integer.parseInt(args[2]));
+    }
+    server.start();
+    System.out.println("Mock server listening on " + server.getServerAddress());
+  }
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final Charset ASCII = Charset.forName("US-ASCII");
+
+  private static final String STREAM_HEADERS = "HTTP/1.1 200 OK\r\n"
+      + "Content-Type: text/enriched; charset=UTF-8\r\n"
+      + "Cache-Control: no-store\r\n"
+      + "Connection: close\r\n\r\n";
+
+  private static final long SESSION_TIMEOUT_MILLIS = 60000;
+  private static final int MAX_PENDING_LINES = 100000;
+
+  private final int requestedPort;
+  private volatile int updatesPerSecond = 1000;
+  private volatile int burstSize = 1;
+  private volatile long keepaliveMillis = 5000;
+  private volatile double orderDenyRate = 0;
+
+  //guards all the session state and the generator
+  private final Object lock = new Object();
+  private final Map<String, Session> sessions = new HashMap<String, Session>();
+  private final Map<String, List<Target>> targetsByItem = new HashMap<String, List<Target>>();
+  private final List<String> targetKeys = new ArrayList<String>();
+  private final MockDataGenerator generator = new MockDataGenerator(42);
+  private final Random random = new Random(7);
+  private long sessionCount = 0;
+
+  private final AtomicLong updatesSent = new AtomicLong();
+  private final AtomicLong messagesReceived = new AtomicLong();
+
+  private ServerSocket serverSocket;
+  private volatile boolean running = false;
+  private Thread acceptThread;
+  private Thread feedThread;
+
+  /**
+   * @param port the port to listen on, or 0 for an ephemeral one
+   */
+  public MockServer(int port) {
+    this.requestedPort = port;
+  }
+
+  /**
+   * Sets the rate of the synthetic updates, over all the subscribed items;
+   * 0 stops the feed. Can be changed while running.
+   */
+  public void setUpdatesPerSecond(int updatesPerSecond) {
+    this.updatesPerSecond = updatesPerSecond;
+  }
+
+  /**
+   * Sets how many updates are produced back to back; the average rate is
+   * preserved, so larger bursts mean longer pauses.
+   */
+  public void setBurstSize(int burstSize) {
+    this.burstSize = Math.max(1, burstSize);
+  }
+
+  /**
+   * Sets the keepalive interval used when the client does not request one.
+   */
+  public void setKeepaliveMillis(long keepaliveMillis) {
+    this.keepaliveMillis = keepaliveMillis;
+  }
+
+  /**
+   * Sets the fraction of the orders to be refused regardless of their content,
+   * to exercise the failure path of the clients.
+   */
+  public void setOrderDenyRate(double orderDenyRate) {
+    this.orderDenyRate = orderDenyRate;
+  }
+
+  public void start() throws IOException {
+    serverSocket = new ServerSocket();
+    serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), requestedPort));
+    running = true;
+
+    acceptThread = new Thread("MockServer acceptor") {
+      @Override
+      public void run() {
+        acceptLoop();
+      }
+    };
+    acceptThread.setDaemon(true);
+    acceptThread.start();
+
+    feedThread = new Thread("MockServer feed") {
+      @Override
+      public void run() {
+        feedLoop();
+      }
+    };
+    feedThread.setDaemon(true);
+    feedThread.start();
+  }
+
+  public void stop() {
+    running = false;
+    try {
+      serverSocket.close();
+    } catch (IOException e) {
+    }
+    synchronized (lock) {
+      for (Session session : sessions.values()) {
+        session.detach();
+      }
+      sessions.clear();
+      targetsByItem.clear();
+      targetKeys.clear();
+      lock.notifyAll();
+    }
+  }
+
+  /**
+   * @return the address to be passed to LightstreamerClient
+   */
+  public String getServerAddress() {
+    return "http://127.0.0.1:" + serverSocket.getLocalPort() + "/";
+  }
+
+  public long getUpdatesSent() {
+    return updatesSent.get();
+  }
+
+  public long getMessagesReceived() {
+    return messagesReceived.get();
+  }
+
+  /**
+   * Closes the current stream connections of all the sessions, as a network
+   * failure would do; the sessions survive, hence clients can rebind to them.
+   */
+  public void dropConnections() {
+    synchronized (lock) {
+      for (Session session : sessions.values()) {
+        session.detach();
+      }
+      lock.notifyAll();
+    }
+  }
+
+  //////////////////////// HTTP
+
+  private static class Request {
+    String path;
+    Map<String, String> headers = new HashMap<String, String>();
+    String query = "";
+    String body = "";
+
+    static Request read(InputStream in) throws IOException {
+      String requestLine = readLine(in);
+      while (requestLine != null && requestLine.isEmpty()) {
+        requestLine = readLine(in);
+      }
+      if (requestLine == null) {
+        return null;
+      }
+      Request request = new Request();
+      String[] parts = requestLine.split(" ");
+      if (parts.length < 2) {
+        throw new IOException("Malformed request line");
+      }
+      String target = parts[1];
+      int q = target.indexOf('?');
+      request.path = q < 0 ? target : target.substring(0, q);
+      request.query = q < 0 ? "" : target.substring(q + 1);
+
+      String line;
+      while ((line = readLine(in)) != null && !line.isEmpty()) {
+        int colon = line.indexOf(':');
+        if (colon > 0) {
+          request.headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+        }
+      }
+      String contentLength = request.headers.get("content-length");
+      if (contentLength != null) {
+        byte[] body = new byte[Integer.parseInt(contentLength)];
+        int read = 0;
+        while (read < body.length) {
+          int n = in.read(body, read, body.length - read);
+          if (n < 0) {
+            throw new IOException("Truncated request body");
+          }
+          read += n;
+        }
+        request.body = new String(body, UTF8);
+      }
+      return request;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+      ByteArrayOutputStream line = new ByteArrayOutputStream();
+      int b;
+      while ((b = in.read()) >= 0 && b != '\n') {
+        if (b != '\r') {
+          line.write(b);
+        }
+      }
+      if (b < 0 && line.size() == 0) {
+        return null;
+      }
+      return new String(line.toByteArray(), UTF8);
+    }
+
+    /**
+     * @return the parameters of each request line in the body, merged with the query ones
+     */
+    List<Map<String, String>> getRequests() {
+      Map<String, String> common = parseParams(query);
+      List<Map<String, String>> requests = new ArrayList<Map<String, String>>();
+      for (String line : body.split("\r?\n")) {
+        if (!line.isEmpty()) {
+          Map<String, String> params = new HashMap<String, String>(common);
+          params.putAll(parseParams(line));
+          requests.add(params);
+        }
+      }
+      if (requests.isEmpty()) {
+        requests.add(common);
+      }
+      return requests;
+    }
+  }
+
+  private static Map<String, String> parseParams(String encoded) {
+    Map<String, String> params = new LinkedHashMap<String, String>();
+    for (String pair : encoded.split("&")) {
+      int eq = pair.indexOf('=');
+      if (eq > 0) {
+        try {
+          params.put(pair.substring(0, eq), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+        } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+          //skip malformed parameters
+        }
+      }
+    }
+    return params;
+  }
+
+  private static void respond(OutputStream out, int status, String reason, String body) throws IOException {
+    byte[] content = body.getBytes(UTF8);
+    String head = "HTTP/1.1 " + status + " " + reason + "\r\n"
+        + "Content-Type: text/enriched; charset=UTF-8\r\n"
+        + "Cache-Control: no-store\r\n"
+        + "Content-Length: " + content.length + "\r\n\r\n";
+    out.write(head.getBytes(ASCII));
+    out.write(content);
+    out.flush();
+  }
+
+  private void acceptLoop() {
+    while (running) {
+      try {
+        final Socket socket = serverSocket.accept();
+        socket.setTcpNoDelay(true);
+        Thread connection = new Thread("MockServer connection " + socket.getPort()) {
+          @Override
+          public void run() {
+            serve(socket);
+          }
+        };
+        connection.setDaemon(true);
+        connection.start();
+      } catch (IOException e) {
+        //the server socket was closed
+      }
+    }
+  }
+
+  private void serve(Socket socket) {
+    try {
+      InputStream in = new BufferedInputStream(socket.getInputStream());
+      OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 1 << 16);
+      String clientIp = socket.getInetAddress().getHostAddress();
+      Request request;
+      while (running && (request = Request.read(in)) != null) {
+        String path = request.path;
+        if (path.endsWith("/create_session.txt")) {
+          openStream(null, request, clientIp, out);
+          return;
+        } else if (path.endsWith("/bind_session.txt")) {
+          openStream(request.getRequests().get(0).get("LS_session"), request, clientIp, out);
+          return;
+        } else if (path.endsWith("/control.txt")) {
+          respond(out, 200, "OK", control(request));
+        } else if (path.endsWith("/msg.txt")) {
+          respond(out, 200, "OK", message(request));
+        } else if (path.endsWith("/heartbeat.txt")) {
+          respond(out, 200, "OK", "");
+        } else {
+          //WebSocket upgrades included: the client falls back to HTTP
+          respond(out, 404, "Not Found", "");
+          return;
+        }
+      }
+    } catch (IOException e) {
+      //connection closed by the client
+    } finally {
+      try {
+        socket.close();
+      } catch (IOException e) {
+      }
+    }
+  }
+
+  //////////////////////// sessions
+
+  private static class Sub {
+    final int id;
+    final String mode;
+    final String[] items;
+    final String[] fields;
+    final long minIntervalNanos;
+    final String[][] lastSent;
+    final long[] lastSentNanos;
+    final int[] lost;
+
+    Sub(int id, String mode, String[] items, String[] fields, String maxFrequency) {
+      this.id = id;
+      this.mode = mode;
+      this.items = items;
+      this.fields = fields;
+      this.minIntervalNanos = toInterval(maxFrequency);
+      this.lastSent = new String[items.length + 1][];
+      this.lastSentNanos = new long[items.length + 1];
+      this.lost = new int[items.length + 1];
+    }
+
+    static long toInterval(String maxFrequency) {
+      if (maxFrequency == null || maxFrequency.equals("unlimited") || maxFrequency.equals("unfiltered")) {
+        return 0;
+      }
+      try {
+        return (long) (1000000000L / Double.parseDouble(maxFrequency));
+      } catch (NumberFormatException e) {
+        return 0;
+      }
+    }
+
+    int position(String field) {
+      for (int i = 0; i < fields.length; i++) {
+        if (fields[i].equals(field)) {
+          return i + 1;
+        }
+      }
+      return 0;
+    }
+  }
+
+  /**
+   * An item of a subscription of a session, reached by the feed
+   */
+  private static class Target {
+    final Session session;
+    final Sub sub;
+    final int itemPos;
+
+    Target(Session session, Sub sub, int itemPos) {
+      this.session = session;
+      this.sub = sub;
+      this.itemPos = itemPos;
+    }
+  }
+
+  private class Session {
+    final String id;
+    final String clientIp;
+    final Map<Integer, Sub> subs = new HashMap<Integer, Sub>();
+    final List<String> pending = new ArrayList<String>();
+
+    OutputStream stream;
+    long streamBytes;
+    long contentLength;
+    long lastWrite;
+    long detachedAt = System.currentTimeMillis();
+    boolean polling;
+    boolean dirty;
+
+    Session(String id, String clientIp) {
+      this.id = id;
+      this.clientIp = clientIp;
+    }
+
+    /**
+     * Writes a line on the current stream, or keeps it until the next bind.
+     *
+     * @return false if the line was discarded, as too many lines are pending
+     */
+    boolean send(String line) {
+      if (stream == null) {
+        if (pending.size() >= MAX_PENDING_LINES) {
+          return false;
+        }
+        pending.add(line);
+        return true;
+      }
+      try {
+        byte[] bytes = (line + "\r\n").getBytes(UTF8);
+        stream.write(bytes);
+        streamBytes += bytes.length;
+        lastWrite = System.currentTimeMillis();
+        dirty = true;
+        if (contentLength > 0 && streamBytes >= contentLength && !polling) {
+          loop(0);
+        }
+        return true;
+      } catch (IOException e) {
+        //the line may not have reached the client: it goes to the next bind
+        detach();
+        return send(line);
+      }
+    }
+
+    /**
+     * Asks the client to rebind, and closes the current stream.
+     */
+    void loop(long delayMillis) {
+      try {
+        stream.write(("LOOP," + delayMillis + "\r\n").getBytes(ASCII));
+        stream.flush();
+      } catch (IOException e) {
+      }
+      detach();
+    }
+
+    void flush() {
+      if (stream != null && dirty) {
+        try {
+          stream.flush();
+        } catch (IOException e) {
+          detach();
+        }
+      }
+      dirty = false;
+    }
+
+    void detach() {
+      if (stream != null) {
+        stream = null;
+        detachedAt = System.currentTimeMillis();
+        lock.notifyAll();
+      }
+    }
+  }
+
+  private void openStream(String sessionId, Request request, String clientIp, OutputStream out) throws IOException {
+    Map<String, String> params = request.getRequests().get(0);
+    Session session;
+    synchronized (lock) {
+      if (sessionId == null) {
+        session = new Session("S" + Long.toHexString(System.nanoTime()) + "M" + (++sessionCount), clientIp);
+        sessions.put(session.id, session);
+      } else {
+        session = sessions.get(sessionId);
+        if (session == null) {
+          out.write(STREAM_HEADERS.getBytes(ASCII));
+          out.write("END,41,Session not found\r\n".getBytes(ASCII));
+          out.flush();
+          return;
+        }
+        session.detach();
+      }
+
+      long keepalive = parseLong(params.get("LS_keepalive_millis"), keepaliveMillis);
+      out.write(STREAM_HEADERS.getBytes(ASCII));
+      session.stream = out;
+      session.streamBytes = 0;
+      session.polling = "true".equals(params.get("LS_polling"));
+      session.contentLength = parseLong(params.get("LS_content_length"), 0);
+      session.send("CONOK," + session.id + ",50000," + keepalive + ",*");
+      session.send("SERVNAME,Mock Server");
+      session.send("CLIENTIP," + clientIp);
+      session.send("CONS,unlimited");
+      //sending may end the stream (e.g. with the content length exhausted), which
+      //makes the lines not yet written pending again, in the same order
+      List<String> backlog = new ArrayList<String>(session.pending);
+      session.pending.clear();
+      for (int i = 0; i < backlog.size(); i++) {
+        if (session.stream != out) {
+          session.pending.addAll(backlog.subList(i, backlog.size()));
+          break;
+        }
+        session.send(backlog.get(i));
+      }
+      session.flush();
+
+      if (session.polling) {
+        //a poll returns as soon as there are data, or when the idle time elapses
+        long idle = parseLong(params.get("LS_idle_millis"), 0);
+        long deadline = System.currentTimeMillis() + idle;
+        long headerBytes = session.streamBytes;
+        while (session.stream == out && session.streamBytes == headerBytes && running) {
+          long wait = deadline - System.currentTimeMillis();
+          if (wait <= 0) {
+            break;
+          }
+          waitLock(wait);
+        }
+        if (session.stream == out) {
+          session.loop(parseLong(params.get("LS_polling_millis"), 0));
+        }
+      } else {
+        while (session.stream == out && running) {
+          waitLock(1000);
+        }
+      }
+    }
+  }
+
+  private void waitLock(long millis) {
+    try {
+      lock.wait(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static long parseLong(String value, long defaultValue) {
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return (long) Double.parseDouble(value);
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+
+  //////////////////////// control requests
+
+  private String control(Request request) {
+    StringBuilder response = new StringBuilder();
+    synchronized (lock) {
+      for (Map<String, String> params : request.getRequests()) {
+        String reqId = params.get("LS_reqId");
+        Session session = sessions.get(params.get("LS_session"));
+        if (session == null) {
+          response.append("ERROR,20,Session not found\r\n");
+          continue;
+        }
+        String op = params.get("LS_op");
+        int subId = (int) parseLong(params.get("LS_subId"), -1);
+        if ("add".equals(op)) {
+          response.append("REQOK,").append(reqId).append("\r\n");
+          subscribe(session, subId, params);
+        } else if ("delete".equals(op)) {
+          response.append("REQOK,").append(reqId).append("\r\n");
+          unsubscribe(session, subId);
+          session.send("UNSUB," + subId);
+        } else if ("reconf".equals(op)) {
+          Sub old = session.subs.get(subId);
+          response.append("REQOK,").append(reqId).append("\r\n");
+          if (old != null) {
+            String frequency = params.get("LS_requested_max_frequency");
+            Sub updated = new Sub(old.id, old.mode, old.items, old.fields, frequency);
+            System.arraycopy(old.lastSent, 0, updated.lastSent, 0, old.lastSent.length);
+            System.arraycopy(old.lost, 0, updated.lost, 0, old.lost.length);
+            replaceSub(session, updated);
+            session.send("CONF," + subId + "," + (frequency == null ? "unlimited" : frequency) + ",filtered");
+          }
+        } else if ("destroy".equals(op)) {
+          response.append("REQOK,").append(reqId).append("\r\n");
+          for (Integer id : new ArrayList<Integer>(session.subs.keySet())) {
+            unsubscribe(session, id);
+          }
+          session.send("END,31,Destroyed by the client");
+          session.flush();
+          session.detach();
+          sessions.remove(session.id);
+        } else if ("force_rebind".equals(op)) {
+          response.append("REQOK,").append(reqId).append("\r\n");
+          if (session.stream != null) {
+            session.loop(0);
+          }
+        } else if ("constrain".equals(op)) {
+          response.append("REQOK,").append(reqId).append("\r\n");
+        } else {
+          response.append("REQERR,").append(reqId).append(",22,Unsupported operation\r\n");
+        }
+        session.flush();
+      }
+    }
+    return response.toString();
+  }
+
+  private void subscribe(Session session, int subId, Map<String, String> params) {
+    String mode = params.get("LS_mode");
+    String[] items = params.get("LS_group").trim().split(" +");
+    String[] fields = params.get("LS_schema").trim().split(" +");
+    Sub sub = new Sub(subId, mode, items, fields, params.get("LS_requested_max_frequency"));
+    session.subs.put(subId, sub);
+    for (int i = 1; i <= items.length; i++) {
+      String key = mode + " " + items[i - 1];
+      List<Target> targets = targetsByItem.get(key);
+      if (targets == null) {
+        targets = new ArrayList<Target>();
+        targetsByItem.put(key, targets);
+        targetKeys.add(key);
+      }
+      targets.add(new Target(session, sub, i));
+    }
+
+    if ("COMMAND".equals(mode)) {
+      session.send("SUBCMD," + subId + "," + items.length + "," + fields.length + ","
+          + sub.position("key") + "," + sub.position("command"));
+    } else {
+      session.send("SUBOK," + subId + "," + items.length + "," + fields.length);
+    }
+
+    String snapshot = params.get("LS_snapshot");
+    if (snapshot == null || snapshot.equals("false")) {
+      return;
+    }
+    for (int i = 1; i <= items.length; i++) {
+      String item = items[i - 1];
+      if ("MERGE".equals(mode)) {
+        sendStock(new Target(session, sub, i), item, true);
+      } else if ("DISTINCT".equals(mode)) {
+        List<MockDataGenerator.ChatMessage> history = generator.getChatHistory(item);
+        int length = snapshot.equals("true") ? history.size() : (int) Math.min(history.size(), parseLong(snapshot, 0));
+        for (MockDataGenerator.ChatMessage chat : history.subList(history.size() - length, history.size())) {
+          sendChat(new Target(session, sub, i), chat);
+        }
+        session.send("EOS," + subId + "," + i);
+      } else if ("COMMAND".equals(mode)) {
+        for (MockDataGenerator.PortfolioEvent event : generator.getPortfolioSnapshot(item)) {
+          sendPortfolio(new Target(session, sub, i), event);
+        }
+        session.send("EOS," + subId + "," + i);
+      }
+    }
+  }
+
+  private void unsubscribe(Session session, int subId) {
+    Sub sub = session.subs.remove(subId);
+    if (sub != null) {
+      removeTargets(session, sub);
+    }
+  }
+
+  private void replaceSub(Session session, Sub updated) {
+    Sub old = session.subs.put(updated.id, updated);
+    removeTargets(session, old);
+    for (int i = 1; i <= updated.items.length; i++) {
+      targetsByItem.get(updated.mode + " " + updated.items[i - 1]).add(new Target(session, updated, i));
+    }
+  }
+
+  private void removeTargets(Session session, Sub sub) {
+    for (String item : sub.items) {
+      String key = sub.mode + " " + item;
+      List<Target> targets = targetsByItem.get(key);
+      if (targets == null) {
+        continue;
+      }
+      for (Iterator<Target> i = targets.iterator(); i.hasNext(); ) {
+        Target target = i.next();
+        if (target.session == session && target.sub == sub) {
+          i.remove();
+        }
+      }
+      if (targets.isEmpty()) {
+        targetsByItem.remove(key);
+        targetKeys.remove(key);
+      }
+    }
+  }
+
+  //////////////////////// messages
+
+  private String message(Request request) {
+    StringBuilder response = new StringBuilder();
+    synchronized (lock) {
+      for (Map<String, String> params : request.getRequests()) {
+        String reqId = params.get("LS_reqId");
+        Session session = sessions.get(params.get("LS_session"));
+        if (session == null) {
+          response.append("ERROR,20,Session not found\r\n");
+          continue;
+        }
+        messagesReceived.incrementAndGet();
+        response.append("REQOK,").append(reqId).append("\r\n");
+
+        String sequence = params.get("LS_sequence");
+        if (sequence == null || sequence.equals("UNORDERED_MESSAGES")) {
+          sequence = "*";
+        }
+        String prog = params.get("LS_msg_prog");
+        String outcome = handleMessage(params.get("LS_message"), session.clientIp);
+        if (prog != null && !"false".equals(params.get("LS_outcome"))) {
+          if (outcome != null) {
+            session.send("MSGDONE," + sequence + "," + prog + "," + encodeValue(outcome));
+          } else {
+            session.send("MSGFAIL," + sequence + "," + prog + ",-1," + encodeValue("Message refused"));
+          }
+        }
+        session.flush();
+      }
+    }
+    return response.toString();
+  }
+
+  /**
+   * @return the response for the client, or null if the message is refused
+   */
+  private String handleMessage(String message, String clientIp) {
+    if (message == null) {
+      return null;
+    }
+    String[] parts = message.split("\\|", -1);
+    if (parts[0].equals("CHAT") && parts.length >= 2) {
+      MockDataGenerator.ChatMessage chat = generator.addChatMessage("chat_room", message.substring(5), clientIp);
+      for (Target target : targets("DISTINCT", "chat_room")) {
+        sendChat(target, chat);
+      }
+      flushAll();
+      return "";
+    } else if ((parts[0].equals("BUY") || parts[0].equals("SELL")) && parts.length == 4) {
+      if (orderDenyRate > 0 && random.nextDouble() < orderDenyRate) {
+        return null;
+      }
+      long quantity;
+      try {
+        quantity = Long.parseLong(parts[3]);
+      } catch (NumberFormatException e) {
+        return null;
+      }
+      MockDataGenerator.PortfolioEvent event = generator.applyOrder(parts[1], parts[2], parts[0].equals("BUY") ? quantity : -quantity);
+      if (event == null) {
+        return null;
+      }
+      for (Target target : targets("COMMAND", parts[1])) {
+        sendPortfolio(target, event);
+      }
+      flushAll();
+      return String.valueOf(event.qty);
+    }
+    return null;
+  }
+
+  private List<Target> targets(String mode, String item) {
+    List<Target> targets = targetsByItem.get(mode + " " + item);
+    return targets == null ? new ArrayList<Target>() : targets;
+  }
+
+  //////////////////////// feed
+
+  private void feedLoop() {
+    long next = System.nanoTime();
+    long lastHousekeeping = 0;
+    while (running) {
+      int rate = updatesPerSecond;
+      int burst = burstSize;
+      if (rate <= 0) {
+        LockSupport.parkNanos(10000000);
+        next = System.nanoTime();
+      } else {
+        next += burst * 1000000000L / rate;
+        long wait;
+        while ((wait = next - System.nanoTime()) > 0) {
+          LockSupport.parkNanos(wait);
+        }
+      }
+
+      synchronized (lock) {
+        if (rate > 0) {
+          for (int i = 0; i < burst && !targetKeys.isEmpty(); i++) {
+            produce(targetKeys.get(random.nextInt(targetKeys.size())));
+          }
+          flushAll();
+        }
+
+        long now = System.currentTimeMillis();
+        if (now - lastHousekeeping >= 100) {
+          lastHousekeeping = now;
+          housekeeping(now);
+        }
+      }
+    }
+  }
+
+  private void produce(String key) {
+    int space = key.indexOf(' ');
+    String mode = key.substring(0, space);
+    String item = key.substring(space + 1);
+    List<Target> targets = targetsByItem.get(key);
+    if (mode.equals("MERGE")) {
+      generator.tickStock(item);
+      for (Target target : targets) {
+        sendStock(target, item, false);
+      }
+    } else if (mode.equals("DISTINCT")) {
+      MockDataGenerator.ChatMessage chat = generator.tickChat(item);
+      for (Target target : targets) {
+        sendChat(target, chat);
+      }
+    } else if (mode.equals("COMMAND")) {
+      MockDataGenerator.PortfolioEvent event = generator.tickPortfolio(item);
+      for (Target target : targets) {
+        sendPortfolio(target, event);
+      }
+    }
+  }
+
+  private void housekeeping(long now) {
+    for (Iterator<Session> i = sessions.values().iterator(); i.hasNext(); ) {
+      Session session = i.next();
+      if (session.stream != null) {
+        if (now - session.lastWrite >= keepaliveMillis) {
+          session.send("PROBE");
+          session.flush();
+        }
+      } else if (now - session.detachedAt > SESSION_TIMEOUT_MILLIS) {
+        for (Integer id : new ArrayList<Integer>(session.subs.keySet())) {
+          unsubscribe(session, id);
+        }
+        i.remove();
+      }
+    }
+  }
+
+  private void flushAll() {
+    for (Session session : sessions.values()) {
+      session.flush();
+    }
+  }
+
+  private void sendStock(Target target, String item, boolean snapshot) {
+    Sub sub = target.sub;
+    long now = System.nanoTime();
+    if (!snapshot && sub.minIntervalNanos > 0 && now - sub.lastSentNanos[target.itemPos] < sub.minIntervalNanos) {
+      //filtered: the next update will carry the changes anyway
+      return;
+    }
+    String[] values = new String[sub.fields.length];
+    for (int f = 0; f < values.length; f++) {
+      values[f] = generator.getStockValue(item, sub.fields[f]);
+    }
+    sendUpdate(target, values, true);
+    sub.lastSentNanos[target.itemPos] = now;
+  }
+
+  private void sendChat(Target target, MockDataGenerator.ChatMessage chat) {
+    String[] values = new String[target.sub.fields.length];
+    for (int f = 0; f < values.length; f++) {
+      values[f] = MockDataGenerator.getChatValue(chat, target.sub.fields[f]);
+    }
+    sendUpdate(target, values, false);
+  }
+
+  private void sendPortfolio(Target target, MockDataGenerator.PortfolioEvent event) {
+    String[] values = new String[target.sub.fields.length];
+    for (int f = 0; f < values.length; f++) {
+      values[f] = MockDataGenerator.getPortfolioValue(event, target.sub.fields[f]);
+    }
+    sendUpdate(target, values, false);
+  }
+
+  /**
+   * Sends an U line; with diff set, the values equal to the ones last sent
+   * for the item are sent as unchanged.
+   *
+   * If an update cannot be sent, the next one is preceded by an OV line
+   * with the number of updates lost and carries all the values.
+   */
+  private void sendUpdate(Target target, String[] values, boolean diff) {
+    Sub sub = target.sub;
+    if (sub.lost[target.itemPos] > 0) {
+      if (!target.session.send("OV," + sub.id + "," + target.itemPos + "," + sub.lost[target.itemPos])) {
+        sub.lost[target.itemPos]++;
+        return;
+      }
+      sub.lost[target.itemPos] = 0;
+    }
+    String[] last = sub.lastSent[target.itemPos];
+    StringBuilder line = new StringBuilder("U,");
+    line.append(sub.id).append(',').append(target.itemPos).append(',');
+    for (int f = 0; f < values.length; f++) {
+      if (f > 0) {
+        line.append('|');
+      }
+      if (diff && last != null && (values[f] == null ? last[f] == null : values[f].equals(last[f]))) {
+        continue;
+      }
+      if (values[f] == null) {
+        line.append('#');
+      } else if (values[f].isEmpty()) {
+        line.append('$');
+      } else {
+        line.append(encodeValue(values[f]));
+      }
+    }
+    if (!target.session.send(line.toString())) {
+      //the client missed these values, hence the next update cannot be a diff
+      sub.lost[target.itemPos]++;
+      sub.lastSent[target.itemPos] = null;
+      return;
+    }
+    if (diff) {
+      sub.lastSent[target.itemPos] = values;
+    }
+    updatesSent.incrementAndGet();
+  }
+
+  /**
+   * Percent-encodes the characters that are special in TLCP notifications.
+   */
+  private static String encodeValue(String value) {
+    StringBuilder encoded = null;
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      boolean special = c == '%' || c == '|' || c == ',' || c == '\r' || c == '\n'
+          || (i == 0 && (c == '#' || c == '$'));
+      if (special && encoded == null) {
+        encoded = new StringBuilder(value.substring(0, i));
+      }
+      if (special) {
+        encoded.append('%').append(Character.toUpperCase(Character.forDigit(c >> 4, 16)))
+            .append(Character.toUpperCase(Character.forDigit(c & 0xF, 16)));
+      } else if (encoded != null) {
+        encoded.append(c);
+      }
+    }
+    return encoded == null ? value : encoded.toString();
+  }
+
+}
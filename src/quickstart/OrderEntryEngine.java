@@ -0,0 +1,413 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package quickstart;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import com.lightstreamer.client.ClientMessageListener;
+import com.lightstreamer.client.LightstreamerClient;
+
+/**
+ * Long-lived order entry for the portfolio demo: unlike
+ * {@link PortfolioOrderEntry}, which opens a session per order, it keeps one
+ * session open and pipelines the orders, with up to a configurable number of
+ * them in flight, i.e. sent and not yet acknowledged.
+ *
+ * The outcome of each order is correlated through its own
+ * ClientMessageListener and counted, while the ack latency, from submission
+ * to outcome, is recorded in an HdrHistogram per outcome type.
+ *
+ * Orders are normally sent on the "orders" sequence, where the Server
+ * processes them one at a time in submission order. When the order across
+ * different stocks is not relevant, they can be spread over several
+ * sequences, by stock, so that orders on the same stock are still processed
+ * in order; or they can be sent with no ordering at all.
+ */
+public class OrderEntryEngine {
+
+  /**
+   * The possible outcomes of an order, mirroring the ClientMessageListener events.
+   */
+  public enum Outcome {
+    PROCESSED, DENIED, DISCARDED, ERROR, ABORTED
+  }
+
+  /**
+   * Number of sequences meaning that orders are sent with no ordering at all.
+   */
+  public static final int UNORDERED = 0;
+
+  private static final String SEQUENCE = "orders";
+  private static final int DELAY_TIMEOUT_MILLIS = 500;
+  private static final long HIGHEST_NANOS = TimeUnit.MINUTES.toNanos(10);
+  private static final int MAX_REPORTED_ORDERS = 10;
+
+  /**
+   * A reasonable time to wait for the orders in flight, when closing.
+   */
+  public static final long IDLE_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+  /**
+   * Notified of the outcome of each order, on the client event thread.
+   */
+  public interface OutcomeListener {
+    void onOutcome(Order order, Outcome outcome, String detail, long latencyNanos);
+  }
+
+  /**
+   * A buy (positive quantity) or sell (negative quantity) order.
+   */
+  public static class Order {
+    final long id;
+    final String portfolio;
+    final String stock;
+    final long quantity;
+
+    public Order(long id, String portfolio, String stock, long quantity) {
+      this.id = id;
+      this.portfolio = portfolio;
+      this.stock = stock;
+      this.quantity = quantity;
+    }
+
+    public long getId() {
+      return id;
+    }
+
+    public String getStock() {
+      return stock;
+    }
+
+    public long getQuantity() {
+      return quantity;
+    }
+
+    /**
+     * @return the message expected by the portfolio demo Metadata Adapter
+     */
+    String toMessage() {
+      return (quantity >= 0 ? "BUY|" : "SELL|") + portfolio + "|" + stock + "|" + Math.abs(quantity);
+    }
+
+    @Override
+    public String toString() {
+      return "#" + id + " " + toMessage();
+    }
+  }
+
+  private final LightstreamerClient client;
+  private final int window;
+  private final int sequences;
+  private final Semaphore inFlight;
+  private final ConcurrentHashMap<Long, Order> pending = new ConcurrentHashMap<Long, Order>();
+  private final AtomicLong nextId = new AtomicLong();
+  private final AtomicLong submitted = new AtomicLong();
+  private final AtomicLongArray outcomes = new AtomicLongArray(Outcome.values().length);
+  private final Recorder[] latencies = new Recorder[Outcome.values().length];
+  private final Histogram[] totals = new Histogram[Outcome.values().length];
+  private final Histogram[] intervals = new Histogram[Outcome.values().length];
+  private volatile OutcomeListener outcomeListener;
+
+  /**
+   * @param window maximum number of orders in flight
+   * @param sequences number of sequences to spread the orders on, or
+   * {@link #UNORDERED}; 1 keeps all the orders in submission order
+   */
+  public OrderEntryEngine(String serverAddress, int window, int sequences) {
+    //see PortfolioOrderEntry about the adapter set
+    String adapterSet = serverAddress.contains("push.lightstreamer.com") ? "DEMO" : "FULLPORTFOLIODEMO";
+    this.client = ConnectionProfile.configure(new LightstreamerClient(serverAddress, adapterSet));
+    this.window = window;
+    this.sequences = sequences;
+    this.inFlight = new Semaphore(window);
+    for (int i = 0; i < latencies.length; i++) {
+      latencies[i] = new Recorder(HIGHEST_NANOS, 3);
+      totals[i] = new Histogram(HIGHEST_NANOS, 3);
+    }
+  }
+
+  public void setOutcomeListener(OutcomeListener outcomeListener) {
+    this.outcomeListener = outcomeListener;
+  }
+
+  public LightstreamerClient getClient() {
+    return client;
+  }
+
+  public int getWindow() {
+    return window;
+  }
+
+  public void start() {
+    client.addListener(new SystemOutClientListener());
+    client.connect();
+  }
+
+  /**
+   * Waits until the session is established, so that the first orders are not
+   * delayed by the connection.
+   *
+   * @return whether the session was established within the timeout
+   */
+  public boolean awaitConnected(long timeoutMillis) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    while (!String.valueOf(client.getStatus()).startsWith("CONNECTED:")) {
+      if (System.currentTimeMillis() >= deadline) {
+        return false;
+      }
+      Thread.sleep(10);
+    }
+    return true;
+  }
+
+  /**
+   * Waits for all the orders in flight, up to the given time, then closes the
+   * session; the orders still in flight are reported on System.err.
+   *
+   * @return whether no order was left in flight
+   */
+  public boolean close(long timeoutMillis) throws InterruptedException {
+    boolean idle = awaitIdle(timeoutMillis);
+    if (!idle) {
+      reportPending();
+    }
+    try {
+      client.disconnectFuture().get();
+    } catch (ExecutionException e) {
+      e.printStackTrace();
+    }
+    return idle;
+  }
+
+  private void reportPending() {
+    StringBuilder orders = new StringBuilder();
+    int listed = 0;
+    for (Order order : pending.values()) {
+      if (listed++ == MAX_REPORTED_ORDERS) {
+        orders.append(" ...");
+        break;
+      }
+      orders.append(' ').append(order);
+    }
+    System.err.println(getInFlight() + " orders still in flight, without an outcome:" + orders);
+  }
+
+  /**
+   * @return a new order with a unique id
+   */
+  public Order newOrder(String portfolio, String stock, long quantity) {
+    return new Order(nextId.incrementAndGet(), portfolio, stock, quantity);
+  }
+
+  /**
+   * Sends an order, waiting if the window is full.
+   */
+  public void submit(Order order) throws InterruptedException {
+    inFlight.acquire();
+    send(order, System.nanoTime());
+  }
+
+  /**
+   * Sends an order, waiting if the window is full, and measures its latency
+   * from the given time, rather than from the actual submission; this allows
+   * callers to account for the time the order waited to be sent.
+   */
+  public void submit(Order order, long intendedNanos) throws InterruptedException {
+    inFlight.acquire();
+    send(order, intendedNanos);
+  }
+
+  private void send(Order order, long startNanos) {
+    submitted.incrementAndGet();
+    pending.put(order.id, order);
+    client.sendMessage(order.toMessage(), sequenceFor(order), DELAY_TIMEOUT_MILLIS, new OrderListener(order, startNanos), true);
+  }
+
+  private String sequenceFor(Order order) {
+    if (sequences == UNORDERED) {
+      return "UNORDERED_MESSAGES";
+    } else if (sequences == 1) {
+      return SEQUENCE;
+    }
+    return SEQUENCE + "_" + ((order.stock.hashCode() & Integer.MAX_VALUE) % sequences);
+  }
+
+  /**
+   * Waits until no order is in flight, up to the given time.
+   *
+   * @return whether no order is in flight
+   */
+  public boolean awaitIdle(long timeoutMillis) throws InterruptedException {
+    if (!inFlight.tryAcquire(window, timeoutMillis, TimeUnit.MILLISECONDS)) {
+      return false;
+    }
+    inFlight.release(window);
+    return true;
+  }
+
+  /**
+   * @return the orders currently waiting for their outcome
+   */
+  public int getInFlight() {
+    return window - inFlight.availablePermits();
+  }
+
+  public long getSubmitted() {
+    return submitted.get();
+  }
+
+  public long getCompleted(Outcome outcome) {
+    return outcomes.get(outcome.ordinal());
+  }
+
+  public long getCompleted() {
+    long completed = 0;
+    for (int i = 0; i < outcomes.length(); i++) {
+      completed += outcomes.get(i);
+    }
+    return completed;
+  }
+
+  private void complete(Order order, Outcome outcome, String detail, long startNanos) {
+    long latency = System.nanoTime() - startNanos;
+    latencies[outcome.ordinal()].recordValue(Math.max(0, Math.min(HIGHEST_NANOS, latency)));
+    outcomes.incrementAndGet(outcome.ordinal());
+    pending.remove(order.id);
+    inFlight.release();
+    OutcomeListener listener = outcomeListener;
+    if (listener != null) {
+      listener.onOutcome(order, outcome, detail, latency);
+    }
+  }
+
+  /**
+   * @return a copy of the latencies of all the orders with the given outcome so far
+   */
+  public synchronized Histogram getLatencies(Outcome outcome) {
+    collect();
+    return totals[outcome.ordinal()].copy();
+  }
+
+  private synchronized void collect() {
+    for (int i = 0; i < latencies.length; i++) {
+      intervals[i] = latencies[i].getIntervalHistogram(intervals[i]);
+      totals[i].add(intervals[i]);
+    }
+  }
+
+  /**
+   * @return a one-line summary of the orders so far
+   */
+  public synchronized String report(double elapsedSeconds) {
+    collect();
+    Histogram all = new Histogram(HIGHEST_NANOS, 3);
+    StringBuilder counts = new StringBuilder();
+    for (Outcome outcome : Outcome.values()) {
+      all.add(totals[outcome.ordinal()]);
+      long count = outcomes.get(outcome.ordinal());
+      if (count > 0) {
+        counts.append(' ').append(outcome.name().toLowerCase(Locale.ROOT)).append('=').append(count);
+      }
+    }
+    return String.format(Locale.ROOT,
+        "[orders] submitted=%d in-flight=%d%s | %.1f orders/s | ack(ms) p50=%.2f p99=%.2f p99.9=%.2f max=%.2f",
+        submitted.get(), getInFlight(), counts, all.getTotalCount() / elapsedSeconds,
+        millis(all, 50), millis(all, 99), millis(all, 99.9), millis(all, 100));
+  }
+
+  static double millis(Histogram histogram, double percentile) {
+    if (histogram.getTotalCount() == 0) {
+      return 0;
+    }
+    return (percentile >= 100 ? histogram.getMaxValue() : histogram.getValueAtPercentile(percentile)) / 1000000.0;
+  }
+
+  /**
+   * Submits the orders read from a stream, one per line, as
+   *    stock quantity [portfolio]
+   * where a positive quantity buys and a negative one sells, and the portfolio
+   * defaults to portfolio1; empty lines and lines starting with # are ignored.
+   *
+   * @return the number of orders submitted
+   */
+  public long submitAll(BufferedReader in) throws IOException, InterruptedException {
+    long count = 0;
+    String line;
+    while ((line = in.readLine()) != null) {
+      line = line.trim();
+      if (line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      String[] parts = line.split("\\s+");
+      long quantity = parts.length >= 2 ? Decimals.parseLong(parts[1]) : Decimals.INVALID_LONG;
+      if (quantity == Decimals.INVALID_LONG || quantity == 0) {
+        System.err.println("Skipping malformed order: " + line);
+        continue;
+      }
+      submit(newOrder(parts.length >= 3 ? parts[2] : "portfolio1", parts[0], quantity));
+      count++;
+    }
+    return count;
+  }
+
+  private class OrderListener implements ClientMessageListener {
+
+    private final Order order;
+    private final long startNanos;
+
+    OrderListener(Order order, long startNanos) {
+      this.order = order;
+      this.startNanos = startNanos;
+    }
+
+    @Override
+    public void onAbort(String originalMessage, boolean sentOnNetwork) {
+      complete(order, Outcome.ABORTED, sentOnNetwork ? "sent" : "not sent", startNanos);
+    }
+
+    @Override
+    public void onDeny(String originalMessage, int code, String message) {
+      complete(order, Outcome.DENIED, code + ": " + message, startNanos);
+    }
+
+    @Override
+    public void onDiscarded(String originalMessage) {
+      complete(order, Outcome.DISCARDED, null, startNanos);
+    }
+
+    @Override
+    public void onError(String originalMessage) {
+      complete(order, Outcome.ERROR, null, startNanos);
+    }
+
+    @Override
+    public void onProcessed(String originalMessage, String response) {
+      complete(order, Outcome.PROCESSED, response, startNanos);
+    }
+  }
+
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package quickstart;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.HdrHistogram.Histogram;
+
+/**
+ * Measures the order path of the portfolio demo by issuing synthetic orders
+ * over the stock universe through an {@link OrderEntryEngine}, in one of two
+ * ways:
+ * - open loop: orders are issued at a fixed rate, regardless of the outcomes;
+ *   the latency of each order is measured from the time it was due to be
+ *   sent, so that, when the client falls behind, the waiting time is counted
+ *   too (i.e. the results are not affected by coordinated omission);
+ * - closed loop: a fixed number of orders is kept outstanding, and a new one
+ *   is sent as soon as an outcome is received.
+ *
+ * At the end, the throughput and the latency histogram of each outcome type
+ * are printed.
+ *
+ * The test is invoked in this way:
+ *    java quickstart.OrderLoadGenerator <serverAddress|mock> open <ordersPerSecond> <seconds> [sequences]
+ *    java quickstart.OrderLoadGenerator <serverAddress|mock> closed <concurrency> <seconds> [sequences]
+ * where "mock" starts an embedded {@link MockServer}.
+ */
+public class OrderLoadGenerator {
+
+  private static final int STOCKS = 30;
+  private static final int OPEN_LOOP_WINDOW = 100000;
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    String serverAddress = args[0];
+    boolean openLoop = args[1].equals("open");
+    int load = Integer.parseInt(args[2]);
+    int seconds = Integer.parseInt(args[3]);
+    int sequences = args.length > 4 ? Integer.parseInt(args[4]) : 1;
+
+    MockServer mock = null;
+    if (serverAddress.equals("mock")) {
+      mock = new MockServer(0);
+      mock.setUpdatesPerSecond(0);
+      mock.setOrderDenyRate(Double.parseDouble(System.getProperty("quickstart.loadgen.denyRate", "0")));
+      mock.start();
+      serverAddress = mock.getServerAddress();
+    }
+
+    OrderLoadGenerator generator = new OrderLoadGenerator(serverAddress, openLoop ? OPEN_LOOP_WINDOW : load, sequences);
+    if (openLoop) {
+      generator.runOpenLoop(load, seconds);
+    } else {
+      generator.runClosedLoop(seconds);
+    }
+    generator.printResults(System.out);
+
+    if (mock != null) {
+      mock.stop();
+    }
+  }
+
+  private final OrderEntryEngine engine;
+  private final Random random = new Random();
+  private long startNanos;
+  private long endNanos;
+
+  /**
+   * @param window maximum number of outstanding orders; in closed loop, the concurrency
+   */
+  public OrderLoadGenerator(String serverAddress, int window, int sequences) {
+    this.engine = new OrderEntryEngine(serverAddress, window, sequences);
+  }
+
+  private OrderEntryEngine.Order nextOrder() {
+    String stock = "item" + (1 + random.nextInt(STOCKS));
+    long quantity = 100 * (1 + random.nextInt(10));
+    //slightly more buys than sells, so that most sells can be executed
+    return engine.newOrder("portfolio1", stock, random.nextInt(5) < 3 ? quantity : -quantity);
+  }
+
+  private void connect() throws InterruptedException {
+    engine.start();
+    if (!engine.awaitConnected(TimeUnit.SECONDS.toMillis(30))) {
+      throw new IllegalStateException("Cannot connect to the Server");
+    }
+  }
+
+  /**
+   * Issues orders at a fixed rate for the given time.
+   */
+  public void runOpenLoop(int ordersPerSecond, int seconds) throws InterruptedException {
+    connect();
+    long interval = TimeUnit.SECONDS.toNanos(1) / ordersPerSecond;
+    startNanos = System.nanoTime();
+    long end = startNanos + TimeUnit.SECONDS.toNanos(seconds);
+    for (long due = startNanos; due < end; due += interval) {
+      long now;
+      while ((now = System.nanoTime()) < due) {
+        LockSupport.parkNanos(due - now);
+      }
+      //if we are late, the order is sent at once, but its latency still starts from when it was due
+      engine.submit(nextOrder(), due);
+    }
+    engine.awaitIdle(OrderEntryEngine.IDLE_TIMEOUT_MILLIS);
+    endNanos = System.nanoTime();
+    //the orders left in flight, if any, are reported
+    engine.close(0);
+  }
+
+  /**
+   * Keeps the window of the engine full for the given time.
+   */
+  public void runClosedLoop(int seconds) throws InterruptedException {
+    connect();
+    startNanos = System.nanoTime();
+    long end = startNanos + TimeUnit.SECONDS.toNanos(seconds);
+    while (System.nanoTime() < end) {
+      engine.submit(nextOrder());
+    }
+    engine.awaitIdle(OrderEntryEngine.IDLE_TIMEOUT_MILLIS);
+    endNanos = System.nanoTime();
+    //the orders left in flight, if any, are reported
+    engine.close(0);
+  }
+
+  /**
+   * Prints the throughput and the latency distribution of each outcome type.
+   */
+  public void printResults(PrintStream out) {
+    double elapsed = (endNanos - startNanos) / 1e9;
+    out.println(engine.report(elapsed));
+    for (OrderEntryEngine.Outcome outcome : OrderEntryEngine.Outcome.values()) {
+      Histogram histogram = engine.getLatencies(outcome);
+      if (histogram.getTotalCount() == 0) {
+        continue;
+      }
+      out.println(String.format(Locale.ROOT,
+          "%-9s count=%d %.1f/s latency(ms) p50=%.2f p90=%.2f p99=%.2f p99.9=%.2f max=%.2f",
+          outcome, histogram.getTotalCount(), histogram.getTotalCount() / elapsed,
+          OrderEntryEngine.millis(histogram, 50), OrderEntryEngine.millis(histogram, 90),
+          OrderEntryEngine.millis(histogram, 99), OrderEntryEngine.millis(histogram, 99.9),
+          OrderEntryEngine.millis(histogram, 100)));
+      if (Boolean.getBoolean("quickstart.loadgen.histograms")) {
+        //the full distribution, in milliseconds, in the format of HdrHistogram plotters
+        histogram.outputPercentileDistribution(out, 1000000.0);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package quickstart;
+
+import java.io.IOException;
+
+/**
+ * The outcome of a message sent to the Server, as notified to a
+ * ClientMessageListener; only its parts are kept, and the line of text is
+ * built by the console writer thread, when the output is text.
+ */
+public class OutcomeRecord extends ConsoleSink.Record {
+
+  private final String outcome;
+  private final String message;
+  private final int code;
+  private final String detail;
+  //whether the text mentions the response of a processed message, or that the message reached the server, if aborted
+  private final boolean verbose;
+
+  private OutcomeRecord(String outcome, String message, int code, String detail, boolean verbose) {
+    this.outcome = outcome;
+    this.message = message;
+    this.code = code;
+    this.detail = detail;
+    this.verbose = verbose;
+  }
+
+  public static OutcomeRecord aborted(String message, boolean sentOnNetwork) {
+    return new OutcomeRecord("ABORTED", message, 0, null, sentOnNetwork);
+  }
+
+  public static OutcomeRecord denied(String message, int code, String reason) {
+    return new OutcomeRecord("DENIED", message, code, reason, false);
+  }
+
+  public static OutcomeRecord discarded(String message) {
+    return new OutcomeRecord("DISCARDED", message, 0, null, false);
+  }
+
+  public static OutcomeRecord error(String message) {
+    return new OutcomeRecord("ERROR", message, 0, null, false);
+  }
+
+  /**
+   * @param showResponse whether the text reports the response, rather than just the success
+   */
+  public static OutcomeRecord processed(String message, String response, boolean showResponse) {
+    return new OutcomeRecord("PROCESSED", message, 0, response, showResponse);
+  }
+
+  @Override
+  protected void render(StringBuilder out) {
+    out.append("message \"").append(message).append('"');
+    switch (outcome) {
+      case "ABORTED":
+        out.append(verbose ? " was aborted; is not known if it reached the server" : " was aborted and will not be sent to the server");
+        break;
+      case "DENIED":
+        out.append(" was denied by the server because of error ").append(code).append(": ").append(detail);
+        break;
+      case "DISCARDED":
+        out.append(" was discarded by the server because it was too late when it was received");
+        break;
+      case "ERROR":
+        out.append(" was not correctly processed by the server");
+        break;
+      default:
+        if (verbose) {
+          out.append(" sent with response: ").append(detail);
+        } else {
+          out.append(" processed correctly");
+        }
+        break;
+    }
+    out.append('\n');
+  }
+
+  @Override
+  protected void encode(OutputEncoder out, StringBuilder scratch) throws IOException {
+    out.begin(OutputEncoder.Type.OUTCOME);
+    out.string("outcome", outcome);
+    out.string("message", message);
+    out.integer("code", code);
+    out.string("detail", detail);
+    out.end();
+  }
+}
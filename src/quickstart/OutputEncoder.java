@@ -0,0 +1,429 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package quickstart;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Locale;
+
+/**
+ * Machine-readable forms of the console output, for the tools downstream of
+ * the quickstart clients, as an alternative to the text for humans.
+ *
+ * Each {@link ConsoleSink.Record} describes itself as a record of a given
+ * {@link Type} with named fields (see {@link ConsoleSink.Record#encode}),
+ * and the encoder writes it straight into a reused byte buffer, with no
+ * intermediate Strings; the buffer is written to a channel when it fills up
+ * and when the console is flushed. The forms are:
+ * - JSON: one object per line, e.g.
+ *     {"type":"stock","item":"item3","changed":6,"last_price":12.35,"time":"10:31:07"}
+ * - BINARY: one frame per record, as
+ *     [int length][byte type code] followed, for each field in order, by
+ *     [byte 0] for null, [byte 1][int length][UTF-8 bytes] for strings,
+ *     [byte 2][long] for integers, [byte 3][double] for decimals;
+ *   field names are not sent, as the fields of each type always come in
+ *   the same order, except that STOCK records only carry the fields whose
+ *   bits are set in "changed".
+ *
+ * The format of the console is chosen through the quickstart.output system
+ * property, which Main also sets from its --output=FORMAT option, and the
+ * output goes to the file named by quickstart.output.file, if set.
+ */
+public abstract class OutputEncoder {
+
+  public enum Format {
+    TEXT, JSON, BINARY;
+
+    /**
+     * @return the format set by the quickstart.output system property, or TEXT
+     */
+    public static Format getConfigured() {
+      String name = System.getProperty("quickstart.output");
+      return name == null ? TEXT : valueOf(name.trim().toUpperCase(Locale.ROOT));
+    }
+  }
+
+  public enum Type {
+    /**
+     * A line of free text: text
+     */
+    TEXT(0),
+    /**
+     * A Stocklist update: item, changed (bitmap of the field positions),
+     * then the changed fields
+     */
+    STOCK(1),
+    /**
+     * A Portfolio update: command, key, qty, stock_name, last_price
+     */
+    PORTFOLIO(2),
+    /**
+     * A Chat message: timestamp (milliseconds since the epoch), ip, message
+     */
+    CHAT(3),
+    /**
+     * The outcome of a message sent to the server, such as an order:
+     * outcome (PROCESSED, DENIED, DISCARDED, ERROR or ABORTED), message,
+     * code (0 unless denied), detail (the response or the deny reason)
+     */
+    OUTCOME(4);
+
+    final byte code;
+    final String jsonName;
+
+    Type(int code) {
+      this.code = (byte) code;
+      this.jsonName = name().toLowerCase(Locale.ROOT);
+    }
+  }
+
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  /**
+   * @return an encoder of the given format, or null for TEXT, which is rendered by the records
+   */
+  public static OutputEncoder create(Format format, WritableByteChannel channel) {
+    switch (format) {
+      case JSON:
+        return new Json(channel);
+      case BINARY:
+        return new Binary(channel);
+      default:
+        return null;
+    }
+  }
+
+  private final WritableByteChannel channel;
+  protected ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+  protected int recordStart = 0;
+  protected boolean inRecord;
+
+  protected OutputEncoder(WritableByteChannel channel) {
+    this.channel = channel;
+  }
+
+  public abstract void begin(Type type) throws IOException;
+
+  /**
+   * Writes the chars from start to end of a value
+   */
+  public abstract void string(String name, CharSequence value, int start, int end) throws IOException;
+
+  public abstract void integer(String name, long value) throws IOException;
+
+  /**
+   * @param scale the number of decimals to use where a textual form is needed,
+   * or -1 for the shortest form
+   */
+  public abstract void decimal(String name, double value, int scale) throws IOException;
+
+  public abstract void nul(String name) throws IOException;
+
+  public abstract void end() throws IOException;
+
+  /**
+   * Discards the record in progress, if any, e.g. after a failure while encoding it.
+   */
+  public void abort() {
+    if (inRecord) {
+      buffer.position(recordStart);
+      inRecord = false;
+    }
+  }
+
+  /**
+   * Writes a value, or null.
+   */
+  public void string(String name, CharSequence value) throws IOException {
+    if (value == null) {
+      nul(name);
+    } else {
+      string(name, value, 0, value.length());
+    }
+  }
+
+  /**
+   * Writes a line of free text as a TEXT record.
+   */
+  public void text(CharSequence chars, int start, int end) throws IOException {
+    begin(Type.TEXT);
+    string("text", chars, start, end);
+    end();
+  }
+
+  /**
+   * Makes room for the given number of bytes; the complete records are
+   * written to the channel, while the one in progress is moved to the start
+   * of the buffer, which grows if the record does not fit.
+   */
+  protected void ensure(int bytes) throws IOException {
+    if (buffer.remaining() >= bytes) {
+      return;
+    }
+    writeUpTo(recordStart);
+    if (buffer.remaining() < bytes) {
+      ByteBuffer larger = ByteBuffer.allocateDirect(Math.max(2 * buffer.capacity(), buffer.position() + bytes));
+      buffer.flip();
+      larger.put(buffer);
+      buffer = larger;
+    }
+  }
+
+  /**
+   * Writes all the records to the channel; it must be called between records.
+   */
+  public void drain() throws IOException {
+    writeUpTo(buffer.position());
+  }
+
+  private void writeUpTo(int end) throws IOException {
+    int position = buffer.position();
+    buffer.flip();
+    buffer.limit(end);
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    buffer.limit(position);
+    buffer.compact();
+    recordStart = 0;
+  }
+
+  /**
+   * Puts the UTF-8 bytes of the chars from start to end.
+   */
+  protected void putUtf8(CharSequence chars, int start, int end) throws IOException {
+    for (int i = start; i < end; i++) {
+      char c = chars.charAt(i);
+      if (c < 0x80) {
+        ensure(1);
+        buffer.put((byte) c);
+      } else {
+        putCodePoint(chars, i, end);
+        if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(chars.charAt(i + 1))) {
+          i++;
+        }
+      }
+    }
+  }
+
+  private void putCodePoint(CharSequence chars, int i, int end) throws IOException {
+    ensure(4);
+    int cp = chars.charAt(i);
+    if (Character.isHighSurrogate((char) cp) && i + 1 < end && Character.isLowSurrogate(chars.charAt(i + 1))) {
+      cp = Character.toCodePoint((char) cp, chars.charAt(i + 1));
+    } else if (Character.isSurrogate((char) cp)) {
+      buffer.put((byte) '?');
+      return;
+    }
+    if (cp < 0x800) {
+      buffer.put((byte) (0xC0 | (cp >> 6)));
+    } else if (cp < 0x10000) {
+      buffer.put((byte) (0xE0 | (cp >> 12)));
+      buffer.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+    } else {
+      buffer.put((byte) (0xF0 | (cp >> 18)));
+      buffer.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+      buffer.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+    }
+    buffer.put((byte) (0x80 | (cp & 0x3F)));
+  }
+
+  /**
+   * One JSON object per line.
+   */
+  static class Json extends OutputEncoder {
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes(UpdateRecorder.UTF8);
+
+    private final byte[] digits = new byte[20];
+    private final StringBuilder number = new StringBuilder(32);
+
+    Json(WritableByteChannel channel) {
+      super(channel);
+    }
+
+    private void putAscii(String s) throws IOException {
+      ensure(s.length());
+      for (int i = 0; i < s.length(); i++) {
+        buffer.put((byte) s.charAt(i));
+      }
+    }
+
+    private void name(String name) throws IOException {
+      ensure(3);
+      buffer.put((byte) ',').put((byte) '"');
+      putAscii(name);
+      ensure(2);
+      buffer.put((byte) '"').put((byte) ':');
+    }
+
+    @Override
+    public void begin(Type type) throws IOException {
+      recordStart = buffer.position();
+      inRecord = true;
+      putAscii("{\"type\":\"");
+      putAscii(type.jsonName);
+      ensure(1);
+      buffer.put((byte) '"');
+    }
+
+    @Override
+    public void string(String name, CharSequence value, int start, int end) throws IOException {
+      name(name);
+      ensure(1);
+      buffer.put((byte) '"');
+      for (int i = start; i < end; i++) {
+        char c = value.charAt(i);
+        if (c == '"' || c == '\\') {
+          ensure(2);
+          buffer.put((byte) '\\').put((byte) c);
+        } else if (c < 0x20) {
+          ensure(6);
+          buffer.put((byte) '\\').put((byte) 'u').put((byte) '0').put((byte) '0')
+              .put(HEX[c >> 4]).put(HEX[c & 0xF]);
+        } else if (c < 0x80) {
+          ensure(1);
+          buffer.put((byte) c);
+        } else {
+          int next = Character.isHighSurrogate(c) && i + 1 < end ? i + 2 : i + 1;
+          putUtf8(value, i, next);
+          i = next - 1;
+        }
+      }
+      ensure(1);
+      buffer.put((byte) '"');
+    }
+
+    @Override
+    public void integer(String name, long value) throws IOException {
+      name(name);
+      putLong(value);
+    }
+
+    private void putLong(long value) throws IOException {
+      ensure(20);
+      if (value == Long.MIN_VALUE) {
+        putAscii("-9223372036854775808");
+        return;
+      }
+      if (value < 0) {
+        buffer.put((byte) '-');
+        value = -value;
+      }
+      int n = 0;
+      do {
+        digits[n++] = (byte) ('0' + value % 10);
+        value /= 10;
+      } while (value > 0);
+      while (n > 0) {
+        buffer.put(digits[--n]);
+      }
+    }
+
+    @Override
+    public void decimal(String name, double value, int scale) throws IOException {
+      if (Double.isNaN(value) || Double.isInfinite(value)) {
+        nul(name);
+        return;
+      }
+      name(name);
+      number.setLength(0);
+      if (scale >= 0) {
+        Decimals.appendFixed(number, value, scale);
+      } else {
+        number.append(value);
+      }
+      ensure(number.length());
+      for (int i = 0; i < number.length(); i++) {
+        buffer.put((byte) number.charAt(i));
+      }
+    }
+
+    @Override
+    public void nul(String name) throws IOException {
+      name(name);
+      putAscii("null");
+    }
+
+    @Override
+    public void end() throws IOException {
+      ensure(2);
+      buffer.put((byte) '}').put((byte) '\n');
+      inRecord = false;
+    }
+  }
+
+  /**
+   * Length-prefixed frames with positional fields.
+   */
+  static class Binary extends OutputEncoder {
+
+    static final byte NULL = 0;
+    static final byte STRING = 1;
+    static final byte INTEGER = 2;
+    static final byte DECIMAL = 3;
+
+    Binary(WritableByteChannel channel) {
+      super(channel);
+    }
+
+    @Override
+    public void begin(Type type) throws IOException {
+      ensure(5);
+      recordStart = buffer.position();
+      inRecord = true;
+      buffer.putInt(0).put(type.code);
+    }
+
+    @Override
+    public void string(String name, CharSequence value, int start, int end) throws IOException {
+      ensure(5);
+      buffer.put(STRING);
+      int lengthAt = buffer.position() - recordStart;
+      buffer.putInt(0);
+      int from = buffer.position() - recordStart;
+      putUtf8(value, start, end);
+      //the buffer may have been compacted meanwhile, hence offsets are relative to the record
+      buffer.putInt(recordStart + lengthAt, buffer.position() - recordStart - from);
+    }
+
+    @Override
+    public void integer(String name, long value) throws IOException {
+      ensure(9);
+      buffer.put(INTEGER).putLong(value);
+    }
+
+    @Override
+    public void decimal(String name, double value, int scale) throws IOException {
+      ensure(9);
+      buffer.put(DECIMAL).putDouble(value);
+    }
+
+    @Override
+    public void nul(String name) throws IOException {
+      ensure(1);
+      buffer.put(NULL);
+    }
+
+    @Override
+    public void end() throws IOException {
+      buffer.putInt(recordStart, buffer.position() - recordStart - 4);
+      inRecord = false;
+    }
+  }
+
+}
@@ -15,7 +15,13 @@
  */
 package quickstart;
 
+import java.io.IOException;
+import java.util.Locale;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import com.lightstreamer.client.ClientListener;
 import com.lightstreamer.client.ItemUpdate;
@@ -28,6 +34,13 @@ import com.lightstreamer.client.SubscriptionListener;
  */
 public class Portfolio {
  
+  /**
+   * Current positions and valuation, readable from any thread
+   */
+  private final PortfolioBook portfolioBook = new PortfolioBook();
+  
+  private ScheduledExecutorService valuation;
+ 
   /* 
   * @param args Should specify the address the Server
   */
@@ -43,117 +56,302 @@ public class Portfolio {
  }
 
   void start(String serverAddress) {
+    LightstreamerClient client = ConnectionProfile.configure(new LightstreamerClient(serverAddress, adapterSet(serverAddress)));
+    
+    ClientListener clientListener = new SystemOutClientListener();
+    client.addListener(clientListener);
+    RecoveryTracker recovery = RecoveryTracker.attachIfConfigured(client, "portfolio");
+    
+    Subscription sub = newSubscription();
+    
+    SubscriptionListener subListener = InstrumentedSubscriptionListener.wrapIfConfigured(
+        new SystemOutSubscriptionListener(ConsoleSink.getDefault(), portfolioBook), "portfolio", null);
+    subListener = AdaptiveFrequencyController.wrapIfConfigured(client, sub, subListener, "portfolio");
+    //the book comes first, so that the console renders each update with the merged position
+    if (recovery != null) {
+      //after a reconnection, the console and the book only get what changed in the meantime,
+      //including the removal of the positions closed
+      sub.addListener(recovery.reconcile(sub, portfolioBook, subListener));
+    } else {
+      sub.addListener(portfolioBook);
+      sub.addListener(subListener);
+    }
+    UpdateRecorder.attachIfConfigured(sub, "portfolio");
+    SoakMonitor.attachIfConfigured(sub, "portfolio");
+    
+    client.subscribe(sub);
+    client.connect();
+    
+    long valuationSeconds = Long.getLong("quickstart.portfolio.valuation", 0);
+    if (valuationSeconds > 0) {
+      startValuation(ConsoleSink.getDefault(), valuationSeconds);
+      Runtime.getRuntime().addShutdownHook(new Thread("Portfolio shutdown") {
+        @Override
+        public void run() {
+          stopValuation();
+        }
+      });
+    }
+  }
+  
+  /**
+   * Prints the valuation of the portfolio periodically, whenever it changed,
+   * as read from a consistent snapshot of the book.
+   */
+  void startValuation(final ConsoleSink console, long periodSeconds) {
+    final PortfolioBook book = getPortfolioBook();
+    final PortfolioBook.Snapshot snapshot = new PortfolioBook.Snapshot();
+    valuation = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "Portfolio valuation");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    valuation.scheduleWithFixedDelay(new Runnable() {
+      private long lastVersion = -1;
+
+      @Override
+      public void run() {
+        book.read(snapshot);
+        if (snapshot.getVersion() == lastVersion) {
+          return;
+        }
+        lastVersion = snapshot.getVersion();
+        int unpriced = 0;
+        for (int i = 0; i < snapshot.size(); i++) {
+          if (Double.isNaN(snapshot.getValue(i))) {
+            unpriced++;
+          }
+        }
+        console.println(String.format(Locale.ROOT, "[valuation] %d positions, market value %.2f%s%s",
+            snapshot.size(), snapshot.getTotalValue(),
+            unpriced > 0 ? " (" + unpriced + " not priced yet)" : "",
+            snapshot.isSnapshotComplete() ? "" : ", initial portfolio not received yet"));
+      }
+    }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+  }
+  
+  void stopValuation() {
+    if (valuation != null) {
+      valuation.shutdownNow();
+    }
+  }
+  
+  static String adapterSet(String serverAddress) {
     // the portfolio demo available @ http://demos.lightstreamer.com/PortfolioDemo/
     // connects to the DEMO adapter set on push.lightstreamer.com rather than 
     // to a FULLPORTFOLIODEMO one (obviously that DEMO adapter set contains the 
     // needed adapters). 
     // For this reason, when connecting to push.lightstreamer.com we use the DEMO
     // adapter set.
-    
-    String adapterSet = serverAddress.contains("push.lightstreamer.com") ? "DEMO" : "FULLPORTFOLIODEMO";
-    LightstreamerClient client = new LightstreamerClient(serverAddress, adapterSet);
-    
-    ClientListener clientListener = new SystemOutClientListener();
-    client.addListener(clientListener);
-    
+    return serverAddress.contains("push.lightstreamer.com") ? "DEMO" : "FULLPORTFOLIODEMO";
+  }
+  
+  /**
+   * @return the subscription of the example, with no listeners
+   */
+  static Subscription newSubscription() {
     Subscription sub = new Subscription("COMMAND", "portfolio1", new String[]{"key", "command", "qty"});
     sub.setRequestedSnapshot("yes");
     sub.setDataAdapter("PORTFOLIO_ADAPTER");
     sub.setCommandSecondLevelDataAdapter("QUOTE_ADAPTER");
     sub.setCommandSecondLevelFields(new String[]{"stock_name", "last_price"}); //the key values from the 1st level are used as item names for the second level
-    
-    SubscriptionListener subListener = new SystemOutSubscriptionListener();
-    sub.addListener(subListener);
-    
-    client.subscribe(sub);
-    client.connect();
-    
-    
+    return sub;
+  }
+  
+  PortfolioBook getPortfolioBook() {
+    return portfolioBook;
   }
   
-  private static class SystemOutSubscriptionListener implements SubscriptionListener {
+  public static class SystemOutSubscriptionListener implements SubscriptionListener {
+
+    private final ConsoleSink console;
+    private final PortfolioBook book;
+    //only used by the console writer thread
+    private final PortfolioBook.Position position = new PortfolioBook.Position();
+
+    public SystemOutSubscriptionListener() {
+      this(ConsoleSink.getDefault());
+    }
+
+    public SystemOutSubscriptionListener(ConsoleSink console) {
+      this(console, null);
+    }
+
+    /**
+     * @param book the state of the portfolio, to be updated before this
+     * listener, or null to print the values of each update as they come
+     */
+    public SystemOutSubscriptionListener(ConsoleSink console, PortfolioBook book) {
+      this.console = console;
+      this.book = book;
+    }
 
     @Override
     public void onClearSnapshot(String itemName, int itemPos) {
-      System.out.println("Server has cleared the current status of the portfolio");
+      console.println("Server has cleared the current status of the portfolio");
     }
   
     @Override
     public void onCommandSecondLevelItemLostUpdates(int lostUpdates, String key) {
-      System.out.println(lostUpdates + " messages were lost ("+key+")");
+      console.println(lostUpdates + " messages were lost ("+key+")");
     }
   
     @Override
     public void onCommandSecondLevelSubscriptionError(int code, String message, String key) {
-      System.out.println("Cannot subscribe (2nd-level item "+key+") because of error " + code + ": " + message); 
+      console.println("Cannot subscribe (2nd-level item "+key+") because of error " + code + ": " + message); 
     }
   
     @Override
     public void onEndOfSnapshot(String itemName, int itemPos) {
-      System.out.println("Initial portfolio received");
+      console.println("Initial portfolio received");
     }
   
     @Override
     public void onItemLostUpdates(String itemName, int itemPos, int lostUpdates) {
-      System.out.println(lostUpdates + " messages were lost");
+      console.println(lostUpdates + " messages were lost");
     }
     
     @Override
     public void onItemUpdate(ItemUpdate update) {
-      
-      
-      
-      String command = update.getValue("command");
-      if (command.equals("ADD")) {
-        System.out.println("first update for this key ("+update.getValue("key")+"), the library is now automatically subscribing the second level item for it"); 
-      } else if (command.equals("UPDATE")) {
-        StringBuilder updateString = new StringBuilder("Update for ");
-        updateString.append(update.getValue("stock_name")); //2nd level field
-        updateString.append(", last price is ");
-        updateString.append(update.getValue("last_price")); //2nd level field
-        updateString.append(", we own ");
-        updateString.append(update.getValue("qty")); //1st level field
-        
-        System.out.println(updateString);
-        
-        //there is the possibility that a second update for the first level is received before the first update for the second level
-        //thus we might print a message that contains a few NULLs 
-      } else if (command.equals("DELETE")) {
-        System.out.println("key ("+update.getValue("key")+"), was removed, the library is now automatically unsubscribing the second level item for it");
-      }
-      
+      //formatting and printing are left to the console writer thread
+      console.submit(new UpdateRecord(update, book, position));
     }
   
     @Override
     public void onListenEnd() {
-      System.out.println("Stop listeneing to subscription events");
+      console.println("Stop listeneing to subscription events");
     }
   
     @Override
     public void onListenStart() {
-      System.out.println("Start listeneing to subscription events");
+      console.println("Start listeneing to subscription events");
     }
   
     @Override
     public void onSubscription() {
-      System.out.println("Now subscribed to the portfolio item");
+      console.println("Now subscribed to the portfolio item");
     }
   
     @Override
     public void onSubscriptionError(int code, String message) {
-      System.out.println("Cannot subscribe because of error " + code + ": " + message); 
+      console.println("Cannot subscribe because of error " + code + ": " + message); 
     }
   
     @Override
     public void onUnsubscription() {
-      System.out.println("Now unsubscribed from portfolio item");
+      console.println("Now unsubscribed from portfolio item");
     }
     
     @Override
     public void onRealMaxFrequency(String frequency) {
-        System.out.println("Frequency is " + frequency);
+        console.println("Frequency is " + frequency);
     }
     
   }
   
+  /**
+   * A portfolio update; if the console falls behind, successive UPDATEs for
+   * the same key are merged into the latest one. With a book, UPDATEs are
+   * printed with the position of their key, where the second-level values
+   * that raced ahead of the first level have been merged.
+   */
+  private static class UpdateRecord extends ConsoleSink.Record {
+
+    private ItemUpdate update;
+    private final PortfolioBook book;
+    private final PortfolioBook.Position position;
+
+    UpdateRecord(ItemUpdate update, PortfolioBook book, PortfolioBook.Position position) {
+      this.update = update;
+      this.book = book;
+      this.position = position;
+    }
+
+    /**
+     * @return whether the position of the key of an UPDATE has been read
+     */
+    private boolean readPosition() {
+      String key = update.getValue("key");
+      return book != null && key != null && "UPDATE".equals(update.getValue("command")) && book.read(key, position);
+    }
+
+    @Override
+    protected Object coalesceKey() {
+      //ADDs and DELETEs are never merged, but no UPDATE may be merged across them
+      return update.getValue("key");
+    }
+
+    @Override
+    protected boolean canAbsorb(ConsoleSink.Record newer) {
+      return "UPDATE".equals(update.getValue("command"))
+          && "UPDATE".equals(((UpdateRecord) newer).update.getValue("command"));
+    }
+
+    @Override
+    protected void absorb(ConsoleSink.Record newer) {
+      update = ((UpdateRecord) newer).update;
+    }
+
+    @Override
+    protected void render(StringBuilder out) {
+      String command = update.getValue("command");
+      if (command.equals("ADD")) {
+        out.append("first update for this key (").append(update.getValue("key")).append("), the library is now automatically subscribing the second level item for it"); 
+      } else if (command.equals("UPDATE")) {
+        boolean known = readPosition();
+        String name = known && position.getStockName() != null ? position.getStockName() : update.getValue("stock_name"); //2nd level field
+        out.append("Update for ").append(name != null ? name : update.getValue("key"));
+        out.append(", last price is ");
+        if (known && position.hasLastPrice()) {
+          Decimals.appendFixed(out, position.getLastPrice(), position.getPriceScale());
+        } else {
+          String lastPrice = update.getValue("last_price"); //2nd level field
+          out.append(lastPrice != null ? lastPrice : "not received yet");
+        }
+        out.append(", we own ");
+        if (known && position.hasQuantity()) {
+          out.append(position.getQuantity());
+        } else {
+          String qty = update.getValue("qty"); //1st level field
+          out.append(qty != null ? qty : "not received yet");
+        }
+      } else if (command.equals("DELETE")) {
+        out.append("key (").append(update.getValue("key")).append("), was removed, the library is now automatically unsubscribing the second level item for it");
+      } else {
+        return;
+      }
+      out.append('\n');
+    }
+
+    @Override
+    protected void encode(OutputEncoder out, StringBuilder scratch) throws IOException {
+      boolean known = readPosition();
+      out.begin(OutputEncoder.Type.PORTFOLIO);
+      out.string("command", update.getValue("command"));
+      out.string("key", update.getValue("key"));
+      String qty = update.getValue("qty");
+      long quantity = known && position.hasQuantity() ? position.getQuantity()
+          : qty != null ? Decimals.parseLong(qty) : Decimals.INVALID_LONG;
+      if (quantity != Decimals.INVALID_LONG) {
+        out.integer("qty", quantity);
+      } else {
+        out.string("qty", qty);
+      }
+      out.string("stock_name", known && position.getStockName() != null ? position.getStockName() : update.getValue("stock_name"));
+      String lastPrice = update.getValue("last_price");
+      double price = lastPrice != null ? Decimals.parseDouble(lastPrice) : Double.NaN;
+      if (known && position.hasLastPrice()) {
+        out.decimal("last_price", position.getLastPrice(), position.getPriceScale());
+      } else if (!Double.isNaN(price)) {
+        out.decimal("last_price", price, Decimals.scale(lastPrice));
+      } else {
+        out.string("last_price", lastPrice);
+      }
+      out.end();
+    }
+  }
+  
 }
@@ -0,0 +1,599 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package quickstart;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.lightstreamer.client.ItemUpdate;
+import com.lightstreamer.client.SubscriptionListener;
+
+/**
+ * Current state of a portfolio, kept up to date with the updates of the
+ * two-level COMMAND subscription of the Portfolio example: one position per
+ * key, with the quantity from the first level and the stock name and last
+ * price from the second level, and the total market value of the portfolio.
+ *
+ * Positions live in an open-addressing hash table keyed by the key field, and
+ * the total value is adjusted by the contribution of the changed position only,
+ * hence each update costs O(1). Prices are kept as fixed-point numbers with
+ * {@link #PRICE_SCALE} decimals, so that the total does not drift.
+ *
+ * Second-level values received for a key which is not in the table (because
+ * they overtook its ADD) are buffered and applied upon the ADD. A position
+ * only contributes to the total once both its quantity and its price are known.
+ *
+ * Like {@link QuoteBook}, the table is written by the client event thread only,
+ * under a seqlock, and readers take consistent snapshots of the whole portfolio
+ * through {@link #read(Snapshot)}, or of a single position through
+ * {@link #read(String, Position)}, without locking.
+ */
+public class PortfolioBook implements SubscriptionListener {
+
+  public static final int PRICE_SCALE = 4;
+  private static final long PRICE_UNIT = 10000;
+
+  private static final int INITIAL_CAPACITY = 16;
+  private static final int MAX_PENDING = 256;
+
+  //per-slot data layout
+  private static final int QTY = 0;
+  private static final int PRICE = 1;
+  private static final int FLAGS = 2;
+  private static final int SCALE = 3; //of the last price, as received
+  private static final int STRIDE = 4;
+
+  private static final long HAS_QTY = 1;
+  private static final long HAS_PRICE = 2;
+
+  private static class Table {
+    final AtomicReferenceArray<String> keys;
+    final AtomicReferenceArray<String> names;
+    final AtomicLongArray data;
+    final int mask;
+
+    Table(int capacity) {
+      this.keys = new AtomicReferenceArray<String>(capacity);
+      this.names = new AtomicReferenceArray<String>(capacity);
+      this.data = new AtomicLongArray(capacity * STRIDE);
+      this.mask = capacity - 1;
+    }
+  }
+
+  private final AtomicLong version = new AtomicLong();
+  private volatile Table table = new Table(INITIAL_CAPACITY);
+  private volatile int size;
+  private volatile boolean snapshotComplete;
+  private final AtomicLong totalValue = new AtomicLong(); //in price units
+  private final AtomicLong lostUpdates = new AtomicLong();
+
+  //second-level values for keys not in the table, only touched by the event thread
+  private final Map<String, String[]> pending = new LinkedHashMap<String, String[]>() {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, String[]> eldest) {
+      return size() > MAX_PENDING;
+    }
+  };
+
+  /**
+   * @return the number of positions
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return the total market value of the positions whose quantity and price are known
+   */
+  public double getTotalValue() {
+    return totalValue.get() / (double) PRICE_UNIT;
+  }
+
+  /**
+   * @return whether the initial portfolio has been fully received
+   */
+  public boolean isSnapshotComplete() {
+    return snapshotComplete;
+  }
+
+  /**
+   * @return the updates notified as lost, at either level
+   */
+  public long getLostUpdates() {
+    return lostUpdates.get();
+  }
+
+  /**
+   * @return a number that changes whenever the portfolio changes
+   */
+  public long getVersion() {
+    return version.get();
+  }
+
+  private static int hash(String key, int mask) {
+    int h = key.hashCode();
+    return (h ^ (h >>> 16)) & mask;
+  }
+
+  private static int find(Table t, String key) {
+    int i = hash(key, t.mask);
+    while (true) {
+      String k = t.keys.get(i);
+      if (k == null) {
+        return -1;
+      }
+      if (k.equals(key)) {
+        return i;
+      }
+      i = (i + 1) & t.mask;
+    }
+  }
+
+  private long contribution(Table t, int slot) {
+    int base = slot * STRIDE;
+    if (t.data.get(base + FLAGS) != (HAS_QTY | HAS_PRICE)) {
+      return 0;
+    }
+    return t.data.get(base + QTY) * t.data.get(base + PRICE);
+  }
+
+  /**
+   * @return the slot of the key, inserting an empty position if needed;
+   * to be called within a write
+   */
+  private int insert(String key) {
+    Table t = table;
+    int slot = find(t, key);
+    if (slot >= 0) {
+      return slot;
+    }
+    if ((size + 1) * 2 > t.mask + 1) {
+      t = resize(t, (t.mask + 1) * 2);
+    }
+    slot = hash(key, t.mask);
+    while (t.keys.get(slot) != null) {
+      slot = (slot + 1) & t.mask;
+    }
+    t.keys.set(slot, key);
+    size++;
+    return slot;
+  }
+
+  private Table resize(Table old, int capacity) {
+    Table t = new Table(capacity);
+    for (int i = 0; i <= old.mask; i++) {
+      String key = old.keys.get(i);
+      if (key != null) {
+        int slot = hash(key, t.mask);
+        while (t.keys.get(slot) != null) {
+          slot = (slot + 1) & t.mask;
+        }
+        move(old, i, t, slot);
+      }
+    }
+    table = t;
+    return t;
+  }
+
+  private static void move(Table from, int i, Table to, int j) {
+    to.keys.set(j, from.keys.get(i));
+    to.names.set(j, from.names.get(i));
+    for (int f = 0; f < STRIDE; f++) {
+      to.data.set(j * STRIDE + f, from.data.get(i * STRIDE + f));
+    }
+  }
+
+  /**
+   * Removes a key by shifting back the following entries of its cluster,
+   * so that no tombstones are needed; to be called within a write.
+   */
+  private void remove(String key) {
+    Table t = table;
+    int slot = find(t, key);
+    if (slot < 0) {
+      return;
+    }
+    totalValue.set(totalValue.get() - contribution(t, slot));
+    int hole = slot;
+    int j = slot;
+    while (true) {
+      j = (j + 1) & t.mask;
+      String k = t.keys.get(j);
+      if (k == null) {
+        break;
+      }
+      int home = hash(k, t.mask);
+      //the entry can fill the hole if its home is not cyclically within (hole, j]
+      boolean movable = hole <= j ? (home <= hole || home > j) : (home <= hole && home > j);
+      if (movable) {
+        move(t, j, t, hole);
+        hole = j;
+      }
+    }
+    t.keys.set(hole, null);
+    t.names.set(hole, null);
+    for (int f = 0; f < STRIDE; f++) {
+      t.data.set(hole * STRIDE + f, 0);
+    }
+    size--;
+  }
+
+  private long beginWrite() {
+    long v = version.get();
+    version.set(v + 1);
+    return v;
+  }
+
+  private void endWrite(long v) {
+    version.set(v + 2);
+  }
+
+  /**
+   * @return the price as a number of price units, or -1 if malformed
+   */
+  private static long parsePrice(String value) {
+    long unscaled = Decimals.parseUnscaled(value);
+    int scale = Decimals.scale(value);
+    if (unscaled == Decimals.INVALID_LONG || unscaled < 0) {
+      return -1;
+    }
+    long factor = 1;
+    for (; scale < PRICE_SCALE; scale++) {
+      unscaled *= 10;
+    }
+    for (; scale > PRICE_SCALE; scale--) {
+      factor *= 10;
+    }
+    //rounded half up
+    return (unscaled + factor / 2) / factor;
+  }
+
+  /**
+   * Applies the non-null values given to a position and adjusts the total;
+   * to be called within a write.
+   */
+  private void apply(int slot, String qty, String stockName, String lastPrice) {
+    Table t = table;
+    int base = slot * STRIDE;
+    long before = contribution(t, slot);
+    long flags = t.data.get(base + FLAGS);
+    if (qty != null) {
+      long q = Decimals.parseLong(qty);
+      if (q != Decimals.INVALID_LONG) {
+        t.data.set(base + QTY, q);
+        flags |= HAS_QTY;
+      }
+    }
+    if (lastPrice != null) {
+      long p = parsePrice(lastPrice);
+      if (p >= 0) {
+        t.data.set(base + PRICE, p);
+        t.data.set(base + SCALE, Decimals.scale(lastPrice));
+        flags |= HAS_PRICE;
+      }
+    }
+    if (stockName != null) {
+      t.names.set(slot, stockName);
+    }
+    t.data.set(base + FLAGS, flags);
+    totalValue.set(totalValue.get() - before + contribution(t, slot));
+  }
+
+  @Override
+  public void onItemUpdate(ItemUpdate update) {
+    String key = update.getValue("key");
+    String command = update.getValue("command");
+    if (key == null || command == null) {
+      return;
+    }
+    String qty = update.isValueChanged("qty") ? update.getValue("qty") : null;
+    String stockName = update.isValueChanged("stock_name") ? update.getValue("stock_name") : null;
+    String lastPrice = update.isValueChanged("last_price") ? update.getValue("last_price") : null;
+
+    if (command.equals("DELETE")) {
+      long v = beginWrite();
+      remove(key);
+      endWrite(v);
+      pending.remove(key);
+      return;
+    }
+
+    boolean known = find(table, key) >= 0;
+    if (!known && !command.equals("ADD") && qty == null) {
+      //second-level values ahead of the ADD of their key
+      String[] values = pending.get(key);
+      if (values == null) {
+        values = new String[2];
+        pending.put(key, values);
+      }
+      if (stockName != null) {
+        values[0] = stockName;
+      }
+      if (lastPrice != null) {
+        values[1] = lastPrice;
+      }
+      return;
+    }
+
+    long v = beginWrite();
+    int slot = insert(key);
+    if (!known) {
+      String[] values = pending.remove(key);
+      if (values != null) {
+        apply(slot, null, values[0], values[1]);
+      }
+    }
+    apply(slot, qty, stockName, lastPrice);
+    endWrite(v);
+  }
+
+  @Override
+  public void onClearSnapshot(String itemName, int itemPos) {
+    long v = beginWrite();
+    table = new Table(INITIAL_CAPACITY);
+    size = 0;
+    totalValue.set(0);
+    snapshotComplete = false;
+    endWrite(v);
+    pending.clear();
+  }
+
+  @Override
+  public void onEndOfSnapshot(String itemName, int itemPos) {
+    snapshotComplete = true;
+  }
+
+  @Override
+  public void onUnsubscription() {
+    //values are retained, but they are no longer guaranteed to be current
+    snapshotComplete = false;
+  }
+
+  @Override
+  public void onItemLostUpdates(String itemName, int itemPos, int lostUpdates) {
+    this.lostUpdates.addAndGet(lostUpdates);
+  }
+
+  @Override
+  public void onCommandSecondLevelItemLostUpdates(int lostUpdates, String key) {
+    this.lostUpdates.addAndGet(lostUpdates);
+  }
+
+  @Override
+  public void onCommandSecondLevelSubscriptionError(int code, String message, String key) {
+  }
+
+  @Override
+  public void onListenEnd() {
+  }
+
+  @Override
+  public void onListenStart() {
+  }
+
+  @Override
+  public void onSubscription() {
+  }
+
+  @Override
+  public void onSubscriptionError(int code, String message) {
+  }
+
+  @Override
+  public void onRealMaxFrequency(String frequency) {
+  }
+
+  /**
+   * Copies a consistent view of the whole portfolio into a reusable snapshot;
+   * it never blocks the writer.
+   */
+  public void read(Snapshot into) {
+    int spins = 0;
+    while (true) {
+      long before = version.get();
+      if ((before & 1) == 0) {
+        Table t = table;
+        into.ensureCapacity(t.mask + 1);
+        int n = 0;
+        for (int i = 0; i <= t.mask; i++) {
+          String key = t.keys.get(i);
+          if (key != null) {
+            into.keys[n] = key;
+            into.names[n] = t.names.get(i);
+            into.quantities[n] = t.data.get(i * STRIDE + QTY);
+            into.prices[n] = t.data.get(i * STRIDE + PRICE);
+            into.flags[n] = t.data.get(i * STRIDE + FLAGS);
+            n++;
+          }
+        }
+        into.total = totalValue.get();
+        into.complete = snapshotComplete;
+        if (version.get() == before) {
+          for (int i = n; i < into.size; i++) {
+            into.keys[i] = null;
+            into.names[i] = null;
+          }
+          into.size = n;
+          into.version = before;
+          return;
+        }
+      }
+      if (++spins % 100 == 0) {
+        Thread.yield();
+      }
+    }
+  }
+
+  /**
+   * Copies a consistent view of the position of a key into a reusable holder;
+   * it never blocks the writer.
+   *
+   * @return false if the key is not in the portfolio
+   */
+  public boolean read(String key, Position into) {
+    int spins = 0;
+    while (true) {
+      long before = version.get();
+      if ((before & 1) == 0) {
+        Table t = table;
+        int slot = find(t, key);
+        if (slot >= 0) {
+          into.name = t.names.get(slot);
+          into.quantity = t.data.get(slot * STRIDE + QTY);
+          into.price = t.data.get(slot * STRIDE + PRICE);
+          into.flags = t.data.get(slot * STRIDE + FLAGS);
+          into.scale = (int) t.data.get(slot * STRIDE + SCALE);
+        }
+        if (version.get() == before) {
+          return slot >= 0;
+        }
+      }
+      if (++spins % 100 == 0) {
+        Thread.yield();
+      }
+    }
+  }
+
+  /**
+   * A consistent copy of a position, filled by {@link PortfolioBook#read(String, Position)}.
+   */
+  public static class Position {
+
+    private String name;
+    private long quantity;
+    private long price;
+    private long flags;
+    private int scale;
+
+    /**
+     * @return the stock name, or null if not received yet
+     */
+    public String getStockName() {
+      return name;
+    }
+
+    public boolean hasQuantity() {
+      return (flags & HAS_QTY) != 0;
+    }
+
+    public long getQuantity() {
+      return quantity;
+    }
+
+    public boolean hasLastPrice() {
+      return (flags & HAS_PRICE) != 0;
+    }
+
+    /**
+     * @return the last price, or NaN if not received yet
+     */
+    public double getLastPrice() {
+      return hasLastPrice() ? price / (double) PRICE_UNIT : Double.NaN;
+    }
+
+    /**
+     * @return the number of decimals the last price was received with, up to {@link #PRICE_SCALE}
+     */
+    public int getPriceScale() {
+      return Math.min(scale, PRICE_SCALE);
+    }
+  }
+
+  /**
+   * A consistent copy of the portfolio, filled by {@link PortfolioBook#read(Snapshot)};
+   * positions are in no particular order.
+   */
+  public static class Snapshot {
+
+    private String[] keys = new String[0];
+    private String[] names = new String[0];
+    private long[] quantities = new long[0];
+    private long[] prices = new long[0];
+    private long[] flags = new long[0];
+    private int size;
+    private long total;
+    private long version;
+    private boolean complete;
+
+    private void ensureCapacity(int capacity) {
+      if (keys.length < capacity) {
+        String[] oldKeys = keys;
+        String[] oldNames = names;
+        keys = new String[capacity];
+        names = new String[capacity];
+        System.arraycopy(oldKeys, 0, keys, 0, oldKeys.length);
+        System.arraycopy(oldNames, 0, names, 0, oldNames.length);
+        quantities = new long[capacity];
+        prices = new long[capacity];
+        flags = new long[capacity];
+      }
+    }
+
+    public int size() {
+      return size;
+    }
+
+    public long getVersion() {
+      return version;
+    }
+
+    public boolean isSnapshotComplete() {
+      return complete;
+    }
+
+    public double getTotalValue() {
+      return total / (double) PRICE_UNIT;
+    }
+
+    public String getKey(int i) {
+      return keys[i];
+    }
+
+    /**
+     * @return the stock name, or null if not received yet
+     */
+    public String getStockName(int i) {
+      return names[i];
+    }
+
+    /**
+     * @return the quantity, or -1 if not received yet
+     */
+    public long getQuantity(int i) {
+      return (flags[i] & HAS_QTY) != 0 ? quantities[i] : -1;
+    }
+
+    /**
+     * @return the last price, or NaN if not received yet
+     */
+    public double getLastPrice(int i) {
+      return (flags[i] & HAS_PRICE) != 0 ? prices[i] / (double) PRICE_UNIT : Double.NaN;
+    }
+
+    /**
+     * @return the market value of the position, or NaN if not known yet
+     */
+    public double getValue(int i) {
+      return flags[i] == (HAS_QTY | HAS_PRICE) ? quantities[i] * prices[i] / (double) PRICE_UNIT : Double.NaN;
+    }
+  }
+
+}
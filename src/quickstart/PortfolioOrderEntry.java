@@ -62,7 +62,7 @@ public class PortfolioOrderEntry {
     // adapter set.
     
     String adapterSet = serverAddress.contains("push.lightstreamer.com") ? "DEMO" : "FULLPORTFOLIODEMO";
-    LightstreamerClient client = new LightstreamerClient(serverAddress, adapterSet);
+    LightstreamerClient client = ConnectionProfile.configure(new LightstreamerClient(serverAddress, adapterSet));
     
     ClientListener clientListener = new SystemOutClientListener();
     client.addListener(clientListener);
@@ -95,47 +95,50 @@ public class PortfolioOrderEntry {
   public static class SystemOutClientMessageListener implements ClientMessageListener {
       
     private final CountDownLatch cdl;
+    private final ConsoleSink console;
 
     public SystemOutClientMessageListener(CountDownLatch cdl) {
-        this.cdl = cdl;
+      this(cdl, ConsoleSink.getDefault());
+    }
+
+    public SystemOutClientMessageListener(CountDownLatch cdl, ConsoleSink console) {
+      this.cdl = cdl;
+      this.console = console;
     }
   
     @Override
     public void onAbort(String originalMessage, boolean sentOnNetwork) {
       if (sentOnNetwork) {
-        System.out.println("message \""+originalMessage+"\" was aborted; is not known if it reached the server");
+        console.submit(OutcomeRecord.aborted(originalMessage, true));
       } else {
-        System.out.println("message \""+originalMessage+"\" was aborted and will not be sent to the server");
+        console.submit(OutcomeRecord.aborted(originalMessage, false));
       }
       cdl.countDown();
     }
   
     @Override
     public void onDeny(String originalMessage, int code, String message) {
-      System.out.println("message \""+originalMessage+"\" was denied by the server because of error " + code + ": " + message);
+      console.submit(OutcomeRecord.denied(originalMessage, code, message));
       cdl.countDown();
     }
   
     @Override
     public void onDiscarded(String originalMessage) {
-      System.out.println("message \""+originalMessage+"\" was discarded by the server because it was too late when it was received");
+      console.submit(OutcomeRecord.discarded(originalMessage));
       cdl.countDown();
     }
   
     @Override
     public void onError(String originalMessage) {
-      System.out.println("message \""+originalMessage+"\" was not correctly processed by the server");
+      console.submit(OutcomeRecord.error(originalMessage));
       cdl.countDown();
     }
   
     @Override
     public void onProcessed(String originalMessage, String response) {
-      System.out.println("message \""+originalMessage+"\" sent with response: " + response);
+      console.submit(OutcomeRecord.processed(originalMessage, response, true));
       cdl.countDown();
     }
   }
-  
-  
-  
-  
+
 }
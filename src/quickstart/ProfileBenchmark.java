@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package quickstart;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import com.lightstreamer.client.ItemUpdate;
+import com.lightstreamer.client.LightstreamerClient;
+import com.lightstreamer.client.Subscription;
+import com.lightstreamer.client.SubscriptionListener;
+
+/**
+ * Runs the same Stocklist workload under each {@link ConnectionProfile}
+ * against an embedded {@link MockServer}, and reports, for each profile:
+ * - the time from connect to the first update;
+ * - the update throughput and the latency percentiles, based on the
+ *   "timestamp" field (milliseconds since the epoch) supplied by the mock;
+ * - the time to recover, i.e. from a drop of all the connections by the
+ *   mock server to the first update afterwards.
+ *
+ * The mock server refuses WebSockets, hence profiles forcing a WebSocket
+ * transport are run over the HTTP one of the same kind instead, with all
+ * their other options (keepalives, heartbeats, timeouts, retry delays), and
+ * their report line says so.
+ *
+ * The test is invoked in this way:
+ *    java quickstart.ProfileBenchmark [seconds] [updatesPerSecond]
+ */
+public class ProfileBenchmark {
+
+  private static final String[] ITEMS = {
+      "item1", "item2", "item3", "item4", "item5", "item6", "item7", "item8",
+      "item9", "item10", "item11", "item12", "item13", "item14", "item15"
+  };
+
+  private static final long CONNECT_TIMEOUT_MILLIS = 10000;
+  private static final long WARMUP_MILLIS = 2000;
+  private static final long HIGHEST_MICROS = TimeUnit.MINUTES.toMicros(1);
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+    int updatesPerSecond = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+
+    MockServer mock = new MockServer(0);
+    mock.setUpdatesPerSecond(updatesPerSecond);
+    mock.setBurstSize(10);
+    mock.start();
+
+    PrintStream out = System.out;
+    out.println(String.format(Locale.ROOT, "%d items, %d updates/s offered, %d s per profile", ITEMS.length, updatesPerSecond, seconds));
+    for (ConnectionProfile profile : ConnectionProfile.values()) {
+      out.println(new ProfileBenchmark(mock, profile).run(seconds));
+    }
+    mock.stop();
+  }
+
+  private final MockServer mock;
+  private final ConnectionProfile profile;
+  private final String[] fields;
+
+  private final Recorder latency = new Recorder(HIGHEST_MICROS, 3);
+  private final AtomicLong updates = new AtomicLong();
+  private final Object firstUpdate = new Object();
+  private volatile long firstUpdateNanos;
+  //only updates produced by the mock after this time count as first update; 0 for any
+  private volatile long producedAfterMillis;
+
+  public ProfileBenchmark(MockServer mock, ConnectionProfile profile) {
+    this.mock = mock;
+    this.profile = profile;
+    String[] names = Stocklist.layout.getNames();
+    this.fields = new String[names.length + 1];
+    System.arraycopy(names, 0, fields, 0, names.length);
+    fields[names.length] = "timestamp";
+  }
+
+  /**
+   * @return a one-line report
+   */
+  public String run(int seconds) throws InterruptedException {
+    LightstreamerClient client = new LightstreamerClient(mock.getServerAddress(), "DEMO");
+    profile.apply(client.connectionOptions);
+    String note = "";
+    String transport = client.connectionOptions.getForcedTransport();
+    if (transport != null && transport.startsWith("WS")) {
+      String http = transport.replace("WS", "HTTP");
+      client.connectionOptions.setForcedTransport(http);
+      note = " | over " + http + " in place of " + transport + ", which the mock does not support";
+    }
+
+    Subscription sub = new Subscription("MERGE", ITEMS, fields);
+    sub.setRequestedSnapshot("yes");
+    sub.setDataAdapter("QUOTE_ADAPTER");
+    sub.addListener(new Listener(Stocklist.layout, fields.length));
+    client.subscribe(sub);
+
+    try {
+      firstUpdateNanos = 0;
+      producedAfterMillis = 0;
+      long start = System.nanoTime();
+      client.connect();
+      long connectNanos = awaitUpdate(start);
+      if (connectNanos < 0) {
+        return String.format(Locale.ROOT, "%-15s could not connect within %d s (status %s)%s",
+            profile, TimeUnit.MILLISECONDS.toSeconds(CONNECT_TIMEOUT_MILLIS), client.getStatus(), note);
+      }
+
+      Thread.sleep(WARMUP_MILLIS);
+      latency.reset();
+      long count = updates.get();
+      long measureStart = System.nanoTime();
+      Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+      double elapsed = (System.nanoTime() - measureStart) / 1e9;
+      double throughput = (updates.get() - count) / elapsed;
+      Histogram histogram = latency.getIntervalHistogram();
+
+      //the updates still in flight in the client, received after the drop, must not count
+      producedAfterMillis = System.currentTimeMillis();
+      firstUpdateNanos = 0;
+      long dropped = System.nanoTime();
+      mock.dropConnections();
+      long recoverNanos = awaitUpdate(dropped);
+
+      return String.format(Locale.ROOT,
+          "%-15s first update %.0f ms | %.0f updates/s | latency(ms) p50=%.2f p99=%.2f max=%.2f | recovery %s%s",
+          profile, connectNanos / 1e6, throughput,
+          histogram.getValueAtPercentile(50) / 1000.0, histogram.getValueAtPercentile(99) / 1000.0, histogram.getMaxValue() / 1000.0,
+          recoverNanos < 0 ? "timed out" : String.format(Locale.ROOT, "%.0f ms", recoverNanos / 1e6), note);
+    } finally {
+      client.unsubscribe(sub);
+      client.disconnect();
+    }
+  }
+
+  /**
+   * Waits for the first update received since firstUpdateNanos was reset,
+   * among those produced after producedAfterMillis.
+   *
+   * @return the nanoseconds from that time, or -1 on timeout
+   */
+  private long awaitUpdate(long since) throws InterruptedException {
+    long deadline = since + TimeUnit.MILLISECONDS.toNanos(CONNECT_TIMEOUT_MILLIS);
+    synchronized (firstUpdate) {
+      while (firstUpdateNanos == 0) {
+        long now = System.nanoTime();
+        if (now >= deadline) {
+          return -1;
+        }
+        TimeUnit.NANOSECONDS.timedWait(firstUpdate, deadline - now);
+      }
+      return firstUpdateNanos - since;
+    }
+  }
+
+  /**
+   * Decodes the updates as Stocklist does and records their latency.
+   */
+  private class Listener implements SubscriptionListener {
+
+    private final StockQuote[] quotes = new StockQuote[ITEMS.length + 1];
+    private final int timestampPos;
+
+    Listener(FieldLayout layout, int timestampPos) {
+      for (int i = 1; i < quotes.length; i++) {
+        quotes[i] = new StockQuote(layout);
+      }
+      this.timestampPos = timestampPos;
+    }
+
+    @Override
+    public void onItemUpdate(ItemUpdate update) {
+      quotes[update.getItemPos()].apply(update);
+      String timestamp = update.getValue(timestampPos);
+      long sent = timestamp == null ? Decimals.INVALID_LONG : Decimals.parseLong(timestamp);
+      if (sent != Decimals.INVALID_LONG) {
+        long micros = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis() - sent);
+        latency.recordValue(Math.max(0, Math.min(HIGHEST_MICROS, micros)));
+      }
+      updates.lazySet(updates.get() + 1);
+      if (firstUpdateNanos == 0 && (producedAfterMillis == 0 || sent > producedAfterMillis)) {
+        synchronized (firstUpdate) {
+          if (firstUpdateNanos == 0) {
+            firstUpdateNanos = System.nanoTime();
+            firstUpdate.notifyAll();
+          }
+        }
+      }
+    }
+
+    @Override
+    public void onClearSnapshot(String itemName, int itemPos) {
+    }
+
+    @Override
+    public void onCommandSecondLevelItemLostUpdates(int lostUpdates, String key) {
+      //not on this subscription
+    }
+
+    @Override
+    public void onCommandSecondLevelSubscriptionError(int code, String message, String key) {
+      //not on this subscription
+    }
+
+    @Override
+    public void onEndOfSnapshot(String itemName, int itemPos) {
+    }
+
+    @Override
+    public void onItemLostUpdates(String itemName, int itemPos, int lostUpdates) {
+    }
+
+    @Override
+    public void onListenEnd() {
+    }
+
+    @Override
+    public void onListenStart() {
+    }
+
+    @Override
+    public void onSubscription() {
+    }
+
+    @Override
+    public void onSubscriptionError(int code, String message) {
+      System.err.println(profile + ": cannot subscribe because of error " + code + ": " + message);
+    }
+
+    @Override
+    public void onUnsubscription() {
+    }
+
+    @Override
+    public void onRealMaxFrequency(String frequency) {
+    }
+  }
+
+}
@@ -0,0 +1,389 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package quickstart;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.lightstreamer.client.ItemUpdate;
+import com.lightstreamer.client.SubscriptionListener;
+
+/**
+ * In-memory book with the latest value of every field of every item of a
+ * MERGE subscription, such as the Stocklist one.
+ *
+ * All the values live in a single flat array, one fixed-size block per item:
+ *    [version][flags][present fields bitmap][field 1]...[field n]
+ * where field values are stored as their primitive slot (see {@link StockQuote});
+ * TEXT fields are not stored.
+ *
+ * Each item block is written by a single thread (normally the client event
+ * thread, through a {@link Feeder}) under a seqlock: the version is odd while
+ * the block is being written. Any number of reader threads can take consistent
+ * per-item snapshots through {@link #read(int, Snapshot)} without locking,
+ * retrying only if they overlap with a write.
+ */
+public class QuoteBook {
+
+  private static final int VERSION = 0;
+  private static final int FLAGS = 1;
+  private static final int PRESENT = 2;
+
+  private static final long SNAPSHOT_COMPLETE = 1;
+
+  private final FieldLayout layout;
+  private final int items;
+  private final int stride;
+  private final AtomicLongArray slots;
+
+  /**
+   * @param items number of items; item positions range from 1 to items
+   */
+  public QuoteBook(FieldLayout layout, int items) {
+    this.layout = layout;
+    this.items = items;
+    this.stride = PRESENT + 1 + layout.size();
+    this.slots = new AtomicLongArray((items + 1) * stride);
+  }
+
+  public FieldLayout getLayout() {
+    return layout;
+  }
+
+  public int getItemCount() {
+    return items;
+  }
+
+  private int base(int itemPos) {
+    if (itemPos < 1 || itemPos > items) {
+      throw new IllegalArgumentException("Item position out of range: " + itemPos);
+    }
+    return itemPos * stride;
+  }
+
+  /**
+   * Stores the changed fields of a quote and marks the item snapshot as complete.
+   * Only one thread at a time may write the same item.
+   */
+  public void write(int itemPos, StockQuote quote, long changed) {
+    int base = base(itemPos);
+    long version = slots.get(base + VERSION);
+    slots.set(base + VERSION, version + 1);
+
+    long present = slots.get(base + PRESENT);
+    for (int pos = 1; pos <= layout.size(); pos++) {
+      long bit = 1L << pos;
+      if ((changed & bit) == 0) {
+        continue;
+      }
+      if (!quote.isDecoded(pos)) {
+        present &= ~bit;
+        continue;
+      }
+      present |= bit;
+      switch (layout.getKind(pos)) {
+        case DECIMAL:
+          slots.set(base + PRESENT + pos, Double.doubleToRawLongBits(quote.getDouble(pos)));
+          break;
+        case INTEGER:
+          slots.set(base + PRESENT + pos, quote.getLong(pos));
+          break;
+        case TIME:
+          slots.set(base + PRESENT + pos, quote.getTime(pos));
+          break;
+        default:
+          present &= ~bit;
+      }
+    }
+    slots.set(base + PRESENT, present);
+    slots.set(base + FLAGS, slots.get(base + FLAGS) | SNAPSHOT_COMPLETE);
+
+    slots.set(base + VERSION, version + 2);
+  }
+
+  /**
+   * Stores values already in slot form, as taken from a snapshot of another
+   * book (e.g. received from a {@link QuoteGateway}), and sets the snapshot
+   * flag; only the changed fields are touched.
+   * Only one thread at a time may write the same item.
+   */
+  void writeSlots(int itemPos, long changed, long present, long[] values, boolean complete) {
+    int base = base(itemPos);
+    long version = slots.get(base + VERSION);
+    slots.set(base + VERSION, version + 1);
+
+    for (int pos = 1; pos <= layout.size(); pos++) {
+      if ((changed & present & (1L << pos)) != 0) {
+        slots.set(base + PRESENT + pos, values[pos]);
+      }
+    }
+    slots.set(base + PRESENT, (slots.get(base + PRESENT) & ~changed) | (present & changed));
+    long flags = slots.get(base + FLAGS);
+    slots.set(base + FLAGS, complete ? flags | SNAPSHOT_COMPLETE : flags & ~SNAPSHOT_COMPLETE);
+
+    slots.set(base + VERSION, version + 2);
+  }
+
+  /**
+   * Empties an item and marks its snapshot as not complete, as required
+   * upon onClearSnapshot.
+   */
+  public void clear(int itemPos) {
+    int base = base(itemPos);
+    long version = slots.get(base + VERSION);
+    slots.set(base + VERSION, version + 1);
+    slots.set(base + PRESENT, 0);
+    slots.set(base + FLAGS, 0);
+    slots.set(base + VERSION, version + 2);
+  }
+
+  /**
+   * Sets the snapshot flag of an item, leaving its values untouched.
+   */
+  public void setSnapshotComplete(int itemPos, boolean complete) {
+    int base = base(itemPos);
+    long version = slots.get(base + VERSION);
+    slots.set(base + VERSION, version + 1);
+    long flags = slots.get(base + FLAGS);
+    slots.set(base + FLAGS, complete ? flags | SNAPSHOT_COMPLETE : flags & ~SNAPSHOT_COMPLETE);
+    slots.set(base + VERSION, version + 2);
+  }
+
+  /**
+   * @return whether the snapshot of the item has been fully received;
+   * until then the item values may be partial
+   */
+  public boolean isSnapshotComplete(int itemPos) {
+    return (slots.get(base(itemPos) + FLAGS) & SNAPSHOT_COMPLETE) != 0;
+  }
+
+  /**
+   * @return a number that changes whenever the item is written
+   */
+  public long getVersion(int itemPos) {
+    return slots.get(base(itemPos) + VERSION);
+  }
+
+  /**
+   * Copies a consistent view of an item into a reusable snapshot;
+   * it never blocks the writer.
+   */
+  public void read(int itemPos, Snapshot into) {
+    int base = base(itemPos);
+    int spins = 0;
+    while (true) {
+      long before = slots.get(base + VERSION);
+      if ((before & 1) == 0) {
+        into.flags = slots.get(base + FLAGS);
+        into.present = slots.get(base + PRESENT);
+        for (int pos = 1; pos <= layout.size(); pos++) {
+          into.values[pos] = slots.get(base + PRESENT + pos);
+        }
+        if (slots.get(base + VERSION) == before) {
+          into.itemPos = itemPos;
+          into.version = before;
+          return;
+        }
+      }
+      if (++spins % 100 == 0) {
+        Thread.yield();
+      }
+    }
+  }
+
+  /**
+   * @return a snapshot holder suitable for this book, to be reused across reads
+   */
+  public Snapshot newSnapshot() {
+    return new Snapshot(layout);
+  }
+
+  /**
+   * A consistent copy of one item, filled by {@link QuoteBook#read(int, Snapshot)}.
+   */
+  public static class Snapshot {
+
+    private final FieldLayout layout;
+    private final long[] values;
+    private int itemPos;
+    private long version;
+    private long flags;
+    private long present;
+
+    Snapshot(FieldLayout layout) {
+      this.layout = layout;
+      this.values = new long[layout.size() + 1];
+    }
+
+    public int getItemPos() {
+      return itemPos;
+    }
+
+    public long getVersion() {
+      return version;
+    }
+
+    public boolean isSnapshotComplete() {
+      return (flags & SNAPSHOT_COMPLETE) != 0;
+    }
+
+    /**
+     * @return whether the field holds a value
+     */
+    public boolean isPresent(int pos) {
+      return (present & (1L << pos)) != 0;
+    }
+
+    public double getDouble(int pos) {
+      return Double.longBitsToDouble(values[pos]);
+    }
+
+    public long getLong(int pos) {
+      return values[pos];
+    }
+
+    /**
+     * @return the slot of a field as stored, whatever its kind
+     */
+    long getSlot(int pos) {
+      return values[pos];
+    }
+
+    /**
+     * @return the TIME value as seconds from midnight
+     */
+    public int getTime(int pos) {
+      return (int) values[pos];
+    }
+
+    /**
+     * Appends the value of a field, or "null" if the field holds no value.
+     */
+    public void appendValue(StringBuilder out, int pos) {
+      if (!isPresent(pos)) {
+        out.append("null");
+        return;
+      }
+      switch (layout.getKind(pos)) {
+        case DECIMAL:
+          out.append(getDouble(pos));
+          break;
+        case TIME:
+          Decimals.appendTime(out, getTime(pos));
+          break;
+        default:
+          out.append(getLong(pos));
+      }
+    }
+  }
+
+  /**
+   * Keeps a QuoteBook up to date with the updates of a MERGE subscription.
+   *
+   * In MERGE mode the snapshot is a single update, hence an item snapshot is
+   * considered complete upon the first update after subscription or after
+   * onClearSnapshot, as well as upon onEndOfSnapshot.
+   */
+  public static class Feeder implements SubscriptionListener {
+
+    private final QuoteBook book;
+    private final int[] positions;
+    private final StockQuote[] quotes;
+
+    public Feeder(QuoteBook book) {
+      this(book, null);
+    }
+
+    /**
+     * @param positions book position of each subscription item position, for
+     * a subscription covering only part of the book; null if they coincide
+     */
+    public Feeder(QuoteBook book, int[] positions) {
+      this.book = book;
+      this.positions = positions;
+      this.quotes = new StockQuote[positions != null ? positions.length : book.getItemCount() + 1];
+      for (int i = 1; i < quotes.length; i++) {
+        quotes[i] = new StockQuote(book.getLayout());
+      }
+    }
+
+    private int bookPos(int itemPos) {
+      return positions != null ? positions[itemPos] : itemPos;
+    }
+
+    @Override
+    public void onItemUpdate(ItemUpdate update) {
+      int itemPos = update.getItemPos();
+      StockQuote quote = quotes[itemPos];
+      long changed = quote.apply(update);
+      book.write(bookPos(itemPos), quote, changed);
+    }
+
+    @Override
+    public void onClearSnapshot(String itemName, int itemPos) {
+      quotes[itemPos].clear();
+      book.clear(bookPos(itemPos));
+    }
+
+    @Override
+    public void onEndOfSnapshot(String itemName, int itemPos) {
+      book.setSnapshotComplete(bookPos(itemPos), true);
+    }
+
+    @Override
+    public void onUnsubscription() {
+      //values are retained, but they are no longer guaranteed to be current
+      for (int i = 1; i < quotes.length; i++) {
+        book.setSnapshotComplete(bookPos(i), false);
+      }
+    }
+
+    @Override
+    public void onCommandSecondLevelItemLostUpdates(int lostUpdates, String key) {
+      //not on this subscription
+    }
+
+    @Override
+    public void onCommandSecondLevelSubscriptionError(int code, String message, String key) {
+      //not on this subscription
+    }
+
+    @Override
+    public void onItemLostUpdates(String itemName, int itemPos, int lostUpdates) {
+      //in MERGE mode the next update carries the current values anyway
+    }
+
+    @Override
+    public void onListenEnd() {
+    }
+
+    @Override
+    public void onListenStart() {
+    }
+
+    @Override
+    public void onSubscription() {
+    }
+
+    @Override
+    public void onSubscriptionError(int code, String message) {
+    }
+
+    @Override
+    public void onRealMaxFrequency(String frequency) {
+    }
+  }
+
+}
@@ -0,0 +1,665 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package quickstart;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.lightstreamer.client.ItemUpdate;
+import com.lightstreamer.client.LightstreamerClient;
+import com.lightstreamer.client.Subscription;
+import com.lightstreamer.client.SubscriptionListener;
+
+/**
+ * Holds a single upstream session with the Stocklist subscription and
+ * re-serves its updates to any number of local consumers, either in-process,
+ * through {@link #attach(String, Listener)}, or on the loopback interface,
+ * through {@link #listen(int)} and {@link Remote}.
+ *
+ * The upstream updates are kept in a {@link QuoteBook}; each consumer only
+ * gets a note of the items and fields changed, while the values are read
+ * from the book when the consumer is ready for them. Hence:
+ * - a consumer that falls behind gets, for each item, the latest values
+ *   of all the fields changed in the meantime, rather than a backlog
+ *   (updates conflated in this way are counted);
+ * - a consumer that joins late first gets all the items held by the book,
+ *   as a snapshot.
+ * Each consumer is served by its own thread, so that a slow one does not
+ * hold back the others, nor the upstream.
+ *
+ * On the loopback socket, frames are [int length][byte type][body]:
+ * - HELLO, sent once: [int magic][byte field count]
+ *   ([byte kind][short length][UTF-8 name]) for each field,
+ *   [int item count] ([short length][UTF-8 name]) for each item;
+ * - QUOTE: [int item position][byte flags][long changed][long present]
+ *   [long slot] for each changed field that holds a value, where slots are
+ *   those of {@link QuoteBook}, and flags tell whether the item snapshot
+ *   is complete.
+ */
+public class QuoteGateway {
+
+  /**
+   * Receives the changes of the items of the gateway.
+   */
+  public interface Listener {
+
+    /**
+     * @param quote the current values of the item, only valid during the call
+     * @param changed the bitmap of the fields changed since the previous
+     * call for the same item; 0 if only the snapshot flag changed
+     */
+    void onQuote(QuoteBook.Snapshot quote, long changed);
+  }
+
+  static final int MAGIC = 0x51475731; //"QGW1"
+  static final byte HELLO = 'H';
+  static final byte QUOTE = 'Q';
+  static final byte SNAPSHOT_COMPLETE = 1;
+
+  private static final int BUFFER_SIZE = 1 << 16;
+  private static final int BATCH = 256;
+
+  /**
+   * Marks a queued item in the pending bitmaps; field positions start from 1
+   */
+  private static final long QUEUED = 1;
+
+  private final String[] items;
+  private final QuoteBook book;
+  private final ConsoleSink console;
+  private final List<Session> sessions = new CopyOnWriteArrayList<Session>();
+  private final AtomicLong upstreamUpdates = new AtomicLong();
+
+  private LightstreamerClient client;
+  private ServerSocketChannel server;
+  private ScheduledExecutorService reporter;
+
+  public QuoteGateway() {
+    this(ConsoleSink.getDefault());
+  }
+
+  public QuoteGateway(ConsoleSink console) {
+    this.items = Stocklist.newSubscription().getItems();
+    this.book = new QuoteBook(Stocklist.layout, items.length);
+    this.console = console;
+  }
+
+  public QuoteBook getQuoteBook() {
+    return book;
+  }
+
+  /**
+   * Opens the upstream session and starts the periodic report, if reportSeconds is positive.
+   */
+  public void start(String serverAddress, long reportSeconds) {
+    client = ConnectionProfile.configure(new LightstreamerClient(serverAddress, "DEMO"));
+    client.addListener(new SystemOutClientListener());
+    Subscription sub = Stocklist.newSubscription();
+    sub.addListener(new Upstream(new QuoteBook.Feeder(book)));
+    client.subscribe(sub);
+    client.connect();
+
+    if (reportSeconds > 0) {
+      reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "QuoteGateway reporter");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      reporter.scheduleAtFixedRate(new Runnable() {
+        @Override
+        public void run() {
+          console.println(report());
+        }
+      }, reportSeconds, reportSeconds, TimeUnit.SECONDS);
+    }
+  }
+
+  /**
+   * Accepts consumers on the given port of the loopback interface (0 for any free port).
+   *
+   * @return the port
+   */
+  public int listen(int port) throws IOException {
+    server = ServerSocketChannel.open();
+    server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    Thread acceptor = new Thread("QuoteGateway acceptor") {
+      @Override
+      public void run() {
+        while (true) {
+          SocketChannel channel;
+          try {
+            channel = server.accept();
+          } catch (IOException e) {
+            return; //closed
+          }
+          try {
+            channel.socket().setTcpNoDelay(true);
+            serve(new SocketSession(channel));
+          } catch (IOException e) {
+            console.println("[gateway] cannot serve a consumer: " + e.getMessage());
+          }
+        }
+      }
+    };
+    acceptor.setDaemon(true);
+    acceptor.start();
+    return ((InetSocketAddress) server.getLocalAddress()).getPort();
+  }
+
+  /**
+   * Adds an in-process consumer, which first gets the items held by the book.
+   *
+   * @return a handle to detach the consumer
+   */
+  public Closeable attach(String name, final Listener listener) {
+    return serve(new Session(name) {
+      @Override
+      void deliver(QuoteBook.Snapshot quote, long changed) {
+        listener.onQuote(quote, changed);
+      }
+    });
+  }
+
+  private Session serve(Session session) {
+    //registered before the book is scanned, so that no change can be missed
+    sessions.add(session);
+    for (int itemPos = 1; itemPos <= items.length; itemPos++) {
+      if (book.getVersion(itemPos) != 0) {
+        session.offer(itemPos, book.getLayout().allFields());
+      }
+    }
+    Thread thread = new Thread(session, "QuoteGateway consumer " + session.name);
+    thread.setDaemon(true);
+    thread.start();
+    return session;
+  }
+
+  public void stop() throws IOException {
+    if (reporter != null) {
+      reporter.shutdownNow();
+    }
+    if (server != null) {
+      server.close();
+    }
+    for (Session session : sessions) {
+      session.close();
+    }
+    if (client != null) {
+      client.disconnect();
+    }
+  }
+
+  private void publish(int itemPos, long changed) {
+    for (Session session : sessions) {
+      session.offer(itemPos, changed);
+    }
+  }
+
+  /**
+   * @return a one-line report of the consumers
+   */
+  public String report() {
+    StringBuilder out = new StringBuilder();
+    out.append(String.format(Locale.ROOT, "[gateway] %d updates from upstream, %d consumers", upstreamUpdates.get(), sessions.size()));
+    for (Session session : sessions) {
+      out.append(String.format(Locale.ROOT, " | %s: %d sent, %d conflated, %d pending",
+          session.name, session.sent.get(), session.conflated.get(), session.getPending()));
+    }
+    return out.toString();
+  }
+
+  /**
+   * Feeds the book, then tells the consumers what changed.
+   */
+  private class Upstream implements SubscriptionListener {
+
+    private final QuoteBook.Feeder feeder;
+    private final int fields = book.getLayout().size();
+
+    Upstream(QuoteBook.Feeder feeder) {
+      this.feeder = feeder;
+    }
+
+    @Override
+    public void onItemUpdate(ItemUpdate update) {
+      feeder.onItemUpdate(update);
+      long changed = 0;
+      for (int pos = 1; pos <= fields; pos++) {
+        if (update.isValueChanged(pos)) {
+          changed |= 1L << pos;
+        }
+      }
+      upstreamUpdates.lazySet(upstreamUpdates.get() + 1);
+      publish(update.getItemPos(), changed);
+    }
+
+    @Override
+    public void onClearSnapshot(String itemName, int itemPos) {
+      feeder.onClearSnapshot(itemName, itemPos);
+      publish(itemPos, book.getLayout().allFields());
+    }
+
+    @Override
+    public void onEndOfSnapshot(String itemName, int itemPos) {
+      feeder.onEndOfSnapshot(itemName, itemPos);
+      publish(itemPos, 0);
+    }
+
+    @Override
+    public void onUnsubscription() {
+      feeder.onUnsubscription();
+      for (int itemPos = 1; itemPos <= items.length; itemPos++) {
+        publish(itemPos, 0);
+      }
+    }
+
+    @Override
+    public void onCommandSecondLevelItemLostUpdates(int lostUpdates, String key) {
+      //not on this subscription
+    }
+
+    @Override
+    public void onCommandSecondLevelSubscriptionError(int code, String message, String key) {
+      //not on this subscription
+    }
+
+    @Override
+    public void onItemLostUpdates(String itemName, int itemPos, int lostUpdates) {
+      console.println("[gateway] " + lostUpdates + " updates lost upstream for " + itemName);
+    }
+
+    @Override
+    public void onListenEnd() {
+    }
+
+    @Override
+    public void onListenStart() {
+    }
+
+    @Override
+    public void onSubscription() {
+    }
+
+    @Override
+    public void onSubscriptionError(int code, String message) {
+      console.println("[gateway] cannot subscribe upstream because of error " + code + ": " + message);
+    }
+
+    @Override
+    public void onRealMaxFrequency(String frequency) {
+    }
+  }
+
+  /**
+   * The pending changes of one consumer: a bitmap of the changed fields for
+   * each item and a FIFO of the items with changes; an item already queued
+   * only gets its bitmap extended.
+   */
+  private abstract class Session implements Runnable, Closeable {
+
+    final String name;
+    final AtomicLong sent = new AtomicLong();
+    final AtomicLong conflated = new AtomicLong();
+
+    private final long[] pending = new long[items.length + 1];
+    private final int[] queue = new int[items.length];
+    private int head = 0;
+    private int count = 0;
+    private boolean closed = false;
+
+    Session(String name) {
+      this.name = name;
+    }
+
+    synchronized void offer(int itemPos, long changed) {
+      if ((pending[itemPos] & QUEUED) != 0) {
+        pending[itemPos] |= changed;
+        conflated.lazySet(conflated.get() + 1);
+        return;
+      }
+      pending[itemPos] = changed | QUEUED;
+      queue[(head + count) % queue.length] = itemPos;
+      if (count++ == 0) {
+        notifyAll();
+      }
+    }
+
+    synchronized int getPending() {
+      return count;
+    }
+
+    /**
+     * Moves up to positions.length queued items into the arrays, waiting for one if needed.
+     *
+     * @return the number of items taken, or -1 if closed
+     */
+    private synchronized int take(int[] positions, long[] changes) throws InterruptedException {
+      while (count == 0 && !closed) {
+        wait();
+      }
+      if (closed) {
+        return -1;
+      }
+      int taken = Math.min(count, positions.length);
+      for (int i = 0; i < taken; i++) {
+        int itemPos = queue[head];
+        head = (head + 1) % queue.length;
+        positions[i] = itemPos;
+        changes[i] = pending[itemPos] & ~QUEUED;
+        pending[itemPos] = 0;
+      }
+      count -= taken;
+      return taken;
+    }
+
+    @Override
+    public void run() {
+      int[] positions = new int[BATCH];
+      long[] changes = new long[BATCH];
+      QuoteBook.Snapshot quote = book.newSnapshot();
+      try {
+        int taken;
+        while ((taken = take(positions, changes)) >= 0) {
+          for (int i = 0; i < taken; i++) {
+            book.read(positions[i], quote);
+            deliver(quote, changes[i]);
+          }
+          flush();
+          sent.lazySet(sent.get() + taken);
+        }
+      } catch (InterruptedException e) {
+        //stopped
+      } catch (IOException e) {
+        console.println("[gateway] consumer " + name + " left: " + e.getMessage());
+      } finally {
+        close();
+      }
+    }
+
+    abstract void deliver(QuoteBook.Snapshot quote, long changed) throws IOException;
+
+    void flush() throws IOException {
+    }
+
+    @Override
+    public void close() {
+      synchronized (this) {
+        closed = true;
+        notifyAll();
+      }
+      sessions.remove(this);
+    }
+  }
+
+  /**
+   * A consumer on the loopback socket, served with the binary framing.
+   */
+  private class SocketSession extends Session {
+
+    private final SocketChannel channel;
+    private final ByteBuffer out = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final int maxFrame;
+
+    SocketSession(SocketChannel channel) throws IOException {
+      super(String.valueOf(channel.getRemoteAddress()));
+      this.channel = channel;
+      FieldLayout layout = book.getLayout();
+      this.maxFrame = 4 + 1 + 4 + 1 + 8 + 8 + 8 * layout.size();
+
+      //the hello frame may exceed the buffer only with a huge number of items
+      ByteBuffer hello = ByteBuffer.allocate(64 + 260 * (layout.size() + items.length) + 4);
+      hello.putInt(0).put(HELLO).putInt(MAGIC).put((byte) layout.size());
+      for (int pos = 1; pos <= layout.size(); pos++) {
+        hello.put((byte) layout.getKind(pos).ordinal());
+        putString(hello, layout.getName(pos));
+      }
+      hello.putInt(items.length);
+      for (String item : items) {
+        putString(hello, item);
+      }
+      hello.putInt(0, hello.position() - 4);
+      hello.flip();
+      while (hello.hasRemaining()) {
+        channel.write(hello);
+      }
+    }
+
+    @Override
+    void deliver(QuoteBook.Snapshot quote, long changed) throws IOException {
+      if (out.remaining() < maxFrame) {
+        flush();
+      }
+      int start = out.position();
+      out.putInt(0).put(QUOTE).putInt(quote.getItemPos())
+          .put(quote.isSnapshotComplete() ? SNAPSHOT_COMPLETE : 0);
+      long present = 0;
+      for (int pos = 1; pos <= book.getLayout().size(); pos++) {
+        if ((changed & (1L << pos)) != 0 && quote.isPresent(pos)) {
+          present |= 1L << pos;
+        }
+      }
+      out.putLong(changed).putLong(present);
+      for (int pos = 1; pos <= book.getLayout().size(); pos++) {
+        if ((present & (1L << pos)) != 0) {
+          out.putLong(quote.getSlot(pos));
+        }
+      }
+      out.putInt(start, out.position() - start - 4);
+    }
+
+    @Override
+    void flush() throws IOException {
+      out.flip();
+      while (out.hasRemaining()) {
+        channel.write(out);
+      }
+      out.clear();
+    }
+
+    @Override
+    public void close() {
+      super.close();
+      try {
+        channel.close();
+      } catch (IOException e) {
+      }
+    }
+  }
+
+  private static void putString(ByteBuffer buffer, String value) {
+    byte[] bytes = value.getBytes(UpdateRecorder.UTF8);
+    buffer.putShort((short) bytes.length).put(bytes);
+  }
+
+  private static String getString(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+    buffer.get(bytes);
+    return new String(bytes, UpdateRecorder.UTF8);
+  }
+
+  /**
+   * A consumer in another process: keeps a mirror of the book of the
+   * gateway, up to date with the frames received, and notifies a listener
+   * of each change from a dedicated thread.
+   */
+  public static class Remote implements Closeable {
+
+    /**
+     * Connects to a gateway on the loopback interface and reads its hello
+     * frame; the quotes are only read after {@link #start(Listener)}.
+     */
+    public static Remote connect(int port) throws IOException {
+      SocketChannel channel = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+      channel.socket().setTcpNoDelay(true);
+      return new Remote(channel);
+    }
+
+    private final SocketChannel channel;
+    private final ByteBuffer in = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final String[] items;
+    private final QuoteBook book;
+    private Listener listener;
+
+    private Remote(SocketChannel channel) throws IOException {
+      this.channel = channel;
+      in.limit(0);
+
+      ByteBuffer hello = ByteBuffer.allocate(readFrameLength());
+      fill(hello);
+      if (hello.get() != HELLO || hello.getInt() != MAGIC) {
+        throw new IOException("Not a quote gateway");
+      }
+      int fieldCount = hello.get();
+      FieldLayout.Kind[] kinds = new FieldLayout.Kind[fieldCount];
+      String[] fields = new String[fieldCount];
+      for (int i = 0; i < fieldCount; i++) {
+        kinds[i] = FieldLayout.Kind.values()[hello.get()];
+        fields[i] = getString(hello);
+      }
+      FieldLayout layout = new FieldLayout(fields);
+      for (int i = 0; i < fieldCount; i++) {
+        layout.with(kinds[i], fields[i]);
+      }
+      items = new String[hello.getInt()];
+      for (int i = 0; i < items.length; i++) {
+        items[i] = getString(hello);
+      }
+      book = new QuoteBook(layout, items.length);
+    }
+
+    public QuoteBook getQuoteBook() {
+      return book;
+    }
+
+    /**
+     * @return the name of the item at the given 1-based position
+     */
+    public String getItemName(int itemPos) {
+      return items[itemPos - 1];
+    }
+
+    /**
+     * Starts the thread that applies the quotes to the book and notifies the listener.
+     */
+    public void start(Listener listener) {
+      this.listener = listener;
+      Thread thread = new Thread(reader, "QuoteGateway remote");
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    private final Runnable reader = new Runnable() {
+      @Override
+      public void run() {
+        int size = book.getLayout().size();
+        long[] values = new long[size + 1];
+        QuoteBook.Snapshot quote = book.newSnapshot();
+        try {
+          while (true) {
+            int length = readFrameLength();
+            if (length > BUFFER_SIZE) {
+              throw new IOException("Bad frame length " + length);
+            }
+            ensure(length);
+            int end = in.position() + length;
+            if (in.get() != QUOTE) {
+              in.position(end); //unknown frames are skipped
+              continue;
+            }
+            int itemPos = in.getInt();
+            boolean complete = (in.get() & SNAPSHOT_COMPLETE) != 0;
+            long changed = in.getLong();
+            long present = in.getLong();
+            for (int pos = 1; pos <= size; pos++) {
+              if ((present & (1L << pos)) != 0) {
+                values[pos] = in.getLong();
+              }
+            }
+            in.position(end);
+            book.writeSlots(itemPos, changed, present, values, complete);
+            book.read(itemPos, quote);
+            listener.onQuote(quote, changed);
+          }
+        } catch (IOException e) {
+          //closed
+        }
+      }
+    };
+
+    private int readFrameLength() throws IOException {
+      ensure(4);
+      int length = in.getInt();
+      if (length <= 0) {
+        throw new IOException("Bad frame length " + length);
+      }
+      return length;
+    }
+
+    /**
+     * Makes at least n bytes available in the input buffer.
+     */
+    private void ensure(int n) throws IOException {
+      if (in.remaining() >= n) {
+        return;
+      }
+      in.compact();
+      while (in.position() < n) {
+        if (channel.read(in) < 0) {
+          throw new EOFException();
+        }
+      }
+      in.flip();
+    }
+
+    /**
+     * Fills a buffer larger than the input buffer, for the hello frame.
+     */
+    private void fill(ByteBuffer frame) throws IOException {
+      while (frame.hasRemaining() && in.hasRemaining()) {
+        frame.put(in.get());
+      }
+      while (frame.hasRemaining()) {
+        if (channel.read(frame) < 0) {
+          throw new EOFException();
+        }
+      }
+      frame.flip();
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+  }
+
+}
@@ -0,0 +1,615 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package quickstart;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.HdrHistogram.Histogram;
+
+import com.lightstreamer.client.ClientListener;
+import com.lightstreamer.client.ItemUpdate;
+import com.lightstreamer.client.LightstreamerClient;
+import com.lightstreamer.client.Subscription;
+import com.lightstreamer.client.SubscriptionListener;
+
+/**
+ * Follows the connection of a client through its status transitions and
+ * measures how long it takes to recover from each interruption: from the
+ * first status out of CONNECTED:* (STALLED, DISCONNECTED:WILL-RETRY, ...) to
+ * the next CONNECTED:* one, and to the first update received afterwards.
+ *
+ * Through {@link #reconcile(Subscription, SubscriptionListener...)}, it also
+ * keeps the local state of the listeners warm across the interruption: when a
+ * subscription is restarted, as it happens on a new session, the Server sends
+ * the whole snapshot again, which the listeners would re-apply and re-render
+ * as new. Instead, the snapshot is compared with the last values received:
+ * - in MERGE mode, only the fields that differ are marked as changed, and an
+ *   item whose values did not change is not forwarded at all;
+ * - in COMMAND mode, the ADD of a key already known is forwarded as an UPDATE
+ *   of the fields that differ, or not at all, and the keys missing from the
+ *   new snapshot are removed through a DELETE at the end of the snapshot;
+ *   the second-level values of such a key come later, as an UPDATE, and the
+ *   first ones are compared in the same way.
+ * A line with the outcome is printed at each recovery, and a summary of all
+ * the recoveries, with the distributions of the times to connect again and
+ * to receive data, every quickstart.recovery.report seconds (60 by default).
+ *
+ * The tracker is enabled by the quickstart.recovery system property.
+ */
+public class RecoveryTracker implements ClientListener {
+
+  private static final long HIGHEST_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+  /**
+   * @return a tracker added to the client if the quickstart.recovery system
+   * property is set, otherwise null
+   */
+  static RecoveryTracker attachIfConfigured(LightstreamerClient client, String name) {
+    if (!Boolean.getBoolean("quickstart.recovery")) {
+      return null;
+    }
+    RecoveryTracker tracker = new RecoveryTracker(name, ConsoleSink.getDefault());
+    client.addListener(tracker);
+    tracker.start(Long.getLong("quickstart.recovery.report", 60));
+    return tracker;
+  }
+
+  private final String name;
+  private final ConsoleSink console;
+
+  //guarded by this
+  private final Map<String, Long> transitions = new HashMap<String, Long>();
+  private final Histogram reconnectTimes = new Histogram(HIGHEST_MILLIS, 3);
+  private final Histogram dataTimes = new Histogram(HIGHEST_MILLIS, 3);
+  private final StringBuilder path = new StringBuilder();
+  private boolean connected;
+  private long gapStart;
+  private long reconnectMillis;
+  private long fieldsReapplied;
+  private long fieldsUnchanged;
+  private long keysDeleted;
+
+  private volatile boolean awaitingData;
+  private ScheduledExecutorService reporter;
+
+  public RecoveryTracker(String name, ConsoleSink console) {
+    this.name = name;
+    this.console = console;
+  }
+
+  /**
+   * Starts the periodic report, if reportSeconds is positive.
+   */
+  public void start(long reportSeconds) {
+    if (reportSeconds <= 0) {
+      return;
+    }
+    reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "RecoveryTracker reporter " + name);
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    reporter.scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        console.println(report());
+      }
+    }, reportSeconds, reportSeconds, TimeUnit.SECONDS);
+  }
+
+  public void stop() {
+    if (reporter != null) {
+      reporter.shutdownNow();
+    }
+  }
+
+  @Override
+  public synchronized void onStatusChange(String status) {
+    Long count = transitions.get(status);
+    transitions.put(status, count == null ? 1 : count + 1);
+    long now = System.nanoTime();
+
+    if (status.startsWith("CONNECTED:")) {
+      if (!connected && gapStart != 0) {
+        reconnectMillis = TimeUnit.NANOSECONDS.toMillis(now - gapStart);
+        reconnectTimes.recordValue(Math.min(HIGHEST_MILLIS, reconnectMillis));
+        awaitingData = true;
+      }
+      connected = true;
+    } else {
+      if (connected) {
+        //the interruption starts
+        gapStart = now;
+        path.setLength(0);
+        awaitingData = false;
+      }
+      connected = false;
+    }
+    if (gapStart != 0) {
+      path.append(path.length() == 0 ? "" : " > ").append(status);
+    }
+  }
+
+  /**
+   * Called on every update of the reconciled subscriptions.
+   */
+  void onData() {
+    if (!awaitingData) {
+      return;
+    }
+    synchronized (this) {
+      if (!awaitingData) {
+        return;
+      }
+      awaitingData = false;
+      long dataMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - gapStart);
+      dataTimes.recordValue(Math.min(HIGHEST_MILLIS, dataMillis));
+      console.println(String.format(Locale.ROOT, "[recovery] %s connected again in %d ms, data after %d ms (%s)",
+          name, reconnectMillis, dataMillis, path));
+      gapStart = 0;
+    }
+  }
+
+  synchronized void onResynced(int items, long reapplied, long unchanged, long deleted, int awaiting) {
+    fieldsReapplied += reapplied;
+    fieldsUnchanged += unchanged;
+    keysDeleted += deleted;
+    console.println(String.format(Locale.ROOT, "[recovery] %s %d items resynchronized: %d fields re-applied, %d unchanged, %d keys removed%s",
+        name, items, reapplied, unchanged, deleted,
+        awaiting > 0 ? ", second-level values of " + awaiting + " keys still to be compared" : ""));
+  }
+
+  /**
+   * Accounts for the second-level values compared after the end of the resync.
+   */
+  synchronized void onCompared(long reapplied, long unchanged) {
+    fieldsReapplied += reapplied;
+    fieldsUnchanged += unchanged;
+  }
+
+  /**
+   * @return a one-line summary of the recoveries so far
+   */
+  public synchronized String report() {
+    return String.format(Locale.ROOT,
+        "[recovery] %s recoveries=%d reconnect(ms) p50=%d max=%d data(ms) p50=%d max=%d | fields re-applied=%d unchanged=%d keys removed=%d | transitions %s",
+        name, reconnectTimes.getTotalCount(), reconnectTimes.getValueAtPercentile(50), reconnectTimes.getMaxValue(),
+        dataTimes.getValueAtPercentile(50), dataTimes.getMaxValue(), fieldsReapplied, fieldsUnchanged, keysDeleted, transitions);
+  }
+
+  /**
+   * @return a listener that forwards the events of a MERGE or COMMAND
+   * subscription to the given listeners, reconciling the snapshots received
+   * after a restart of the subscription with the values already known
+   */
+  public SubscriptionListener reconcile(Subscription sub, SubscriptionListener... delegates) {
+    return new Reconciler(sub, delegates);
+  }
+
+  @Override
+  public void onListenEnd() {
+  }
+
+  @Override
+  public void onListenStart() {
+  }
+
+  @Override
+  public void onPropertyChange(String property) {
+  }
+
+  @Override
+  public void onServerError(int code, String message) {
+  }
+
+  /**
+   * Keeps the last values received, by item in MERGE mode and by key in
+   * COMMAND mode; only touched by the client event thread.
+   */
+  private class Reconciler implements SubscriptionListener {
+
+    private final SubscriptionListener[] delegates;
+    private final String[] fieldNames;
+    private final boolean command;
+    private final int firstLevel; //the second-level fields follow
+    private final int keyIndex;
+    private final int commandIndex;
+
+    private final List<String[]> itemValues = new ArrayList<String[]>();
+    private final List<Map<String, String[]>> keyValues = new ArrayList<Map<String, String[]>>();
+    private final List<Set<String>> seenKeys = new ArrayList<Set<String>>();
+    //keys resynced by their ADD, with the positions of the second-level values still to be compared
+    private final List<Map<String, Long>> awaitingKeys = new ArrayList<Map<String, Long>>();
+    private boolean[] resyncing = new boolean[0];
+
+    //figures of the resync in progress
+    private int resyncItems;
+    private int resyncPending;
+    private long reapplied;
+    private long unchanged;
+    private long deleted;
+    private int compared; //fields compared by the last diff
+
+    Reconciler(Subscription sub, SubscriptionListener[] delegates) {
+      this.delegates = delegates.clone();
+      this.fieldNames = UpdateRecorder.allFields(sub);
+      this.command = "COMMAND".equals(sub.getMode());
+      this.firstLevel = sub.getFields().length;
+      int key = -1;
+      int cmd = -1;
+      for (int i = 0; i < fieldNames.length; i++) {
+        if (fieldNames[i].equals("key")) {
+          key = i;
+        } else if (fieldNames[i].equals("command")) {
+          cmd = i;
+        }
+      }
+      this.keyIndex = key;
+      this.commandIndex = cmd;
+    }
+
+    private void ensureItem(int itemPos) {
+      while (itemValues.size() <= itemPos) {
+        itemValues.add(null);
+        keyValues.add(new HashMap<String, String[]>());
+        seenKeys.add(new HashSet<String>());
+        awaitingKeys.add(new HashMap<String, Long>());
+      }
+      if (resyncing.length <= itemPos) {
+        resyncing = Arrays.copyOf(resyncing, itemPos + 1);
+      }
+    }
+
+    private void forward(ItemUpdate update) {
+      for (SubscriptionListener delegate : delegates) {
+        delegate.onItemUpdate(update);
+      }
+    }
+
+    /**
+     * Copies the changed values of an update into the retained ones.
+     */
+    private void retain(ItemUpdate update, String[] values) {
+      for (int pos = 1; pos <= fieldNames.length; pos++) {
+        if (update.isValueChanged(pos)) {
+          values[pos - 1] = update.getValue(pos);
+        }
+      }
+    }
+
+    /**
+     * Stores the values of an update and compares them with the retained ones;
+     * the number of fields compared is left in {@link #compared}.
+     *
+     * @return the bitmap of the fields that differ
+     */
+    private long diff(ItemUpdate update, String[] retained, String[] values) {
+      long changed = 0;
+      compared = 0;
+      for (int pos = 1; pos <= fieldNames.length; pos++) {
+        String value = update.getValue(pos);
+        values[pos - 1] = value;
+        if (pos - 1 == commandIndex) {
+          continue;
+        }
+        String old = retained[pos - 1];
+        if (value == null && command && pos > firstLevel) {
+          //a second-level field, not yet received again
+          values[pos - 1] = old;
+          continue;
+        }
+        compared++;
+        if (value == null ? old != null : !value.equals(old)) {
+          changed |= 1L << pos;
+        }
+        retained[pos - 1] = value;
+      }
+      return changed;
+    }
+
+    /**
+     * @return the bitmap of the second-level fields with a value retained
+     * but not in the given update
+     */
+    private long missingSecondLevel(ItemUpdate update, String[] retained) {
+      long missing = 0;
+      for (int pos = firstLevel + 1; pos <= fieldNames.length; pos++) {
+        if (update.getValue(pos) == null && retained[pos - 1] != null) {
+          missing |= 1L << pos;
+        }
+      }
+      return missing;
+    }
+
+    @Override
+    public void onItemUpdate(ItemUpdate update) {
+      onData();
+      int itemPos = update.getItemPos();
+      ensureItem(itemPos);
+      if (command) {
+        onCommandUpdate(itemPos, update);
+        return;
+      }
+
+      String[] retained = itemValues.get(itemPos);
+      if (retained == null) {
+        retained = new String[fieldNames.length];
+        itemValues.set(itemPos, retained);
+      }
+      if (!update.isSnapshot() || !resyncing[itemPos]) {
+        retain(update, retained);
+        forward(update);
+        return;
+      }
+
+      //the snapshot of a MERGE item is a single update
+      String[] values = new String[fieldNames.length];
+      long changed = diff(update, retained, values);
+      int differ = Long.bitCount(changed);
+      reapplied += differ;
+      unchanged += fieldNames.length - differ;
+      if (differ > 0) {
+        forward(new SyntheticItemUpdate(update.getItemName(), itemPos, fieldNames, values, changed, true));
+      }
+      resynced(itemPos);
+    }
+
+    private void resynced(int itemPos) {
+      resyncing[itemPos] = false;
+      if (--resyncPending == 0) {
+        int awaiting = 0;
+        for (Map<String, Long> keys : awaitingKeys) {
+          awaiting += keys.size();
+        }
+        onResynced(resyncItems, reapplied, unchanged, deleted, awaiting);
+      }
+    }
+
+    private void onCommandUpdate(int itemPos, ItemUpdate update) {
+      String key = keyIndex < 0 ? null : update.getValue(keyIndex + 1);
+      String cmd = commandIndex < 0 ? null : update.getValue(commandIndex + 1);
+      if (key == null || cmd == null) {
+        forward(update);
+        return;
+      }
+      Map<String, String[]> keys = keyValues.get(itemPos);
+      String[] retained = keys.get(key);
+      if (resyncing[itemPos]) {
+        seenKeys.get(itemPos).add(key);
+      }
+
+      if (cmd.equals("DELETE")) {
+        keys.remove(key);
+        awaitingKeys.get(itemPos).remove(key);
+        forward(update);
+        return;
+      }
+      if (retained == null) {
+        retained = new String[fieldNames.length];
+        keys.put(key, retained);
+        retain(update, retained);
+        forward(update);
+        return;
+      }
+      Long awaiting = awaitingKeys.get(itemPos).get(key);
+      if (awaiting != null && cmd.equals("UPDATE")) {
+        onSecondLevel(itemPos, key, update, retained, awaiting);
+        return;
+      }
+      if (!resyncing[itemPos] || !cmd.equals("ADD")) {
+        retain(update, retained);
+        forward(update);
+        return;
+      }
+
+      //a key already known, sent again by the new snapshot; its second-level
+      //values, if any, are compared when they come again
+      long missing = missingSecondLevel(update, retained);
+      if (missing != 0) {
+        awaitingKeys.get(itemPos).put(key, missing);
+      }
+      String[] values = new String[fieldNames.length];
+      long changed = diff(update, retained, values);
+      int differ = Long.bitCount(changed);
+      reapplied += differ;
+      unchanged += compared - differ;
+      if (differ > 0) {
+        values[commandIndex] = "UPDATE";
+        changed |= 1L << (commandIndex + 1);
+        forward(new SyntheticItemUpdate(update.getItemName(), itemPos, fieldNames, values, changed, true));
+      }
+    }
+
+    /**
+     * Forwards an UPDATE of a resynced key, where the second-level values
+     * received again for the first time are only marked as changed if they
+     * differ from the retained ones.
+     */
+    private void onSecondLevel(int itemPos, String key, ItemUpdate update, String[] retained, long awaiting) {
+      String[] values = new String[fieldNames.length];
+      long changed = 0;
+      long differ = 0;
+      long same = 0;
+      for (int pos = 1; pos <= fieldNames.length; pos++) {
+        String value = update.getValue(pos);
+        values[pos - 1] = value;
+        if (!update.isValueChanged(pos)) {
+          continue;
+        }
+        long bit = 1L << pos;
+        if ((awaiting & bit) != 0) {
+          awaiting &= ~bit;
+          String old = retained[pos - 1];
+          if (value == null ? old == null : value.equals(old)) {
+            same++;
+            continue;
+          }
+          differ++;
+        }
+        changed |= bit;
+      }
+      retain(update, retained);
+      if (awaiting == 0) {
+        awaitingKeys.get(itemPos).remove(key);
+      } else {
+        awaitingKeys.get(itemPos).put(key, awaiting);
+      }
+      if (resyncing[itemPos]) {
+        reapplied += differ;
+        unchanged += same;
+      } else {
+        onCompared(differ, same);
+      }
+      long identity = (1L << (keyIndex + 1)) | (1L << (commandIndex + 1));
+      if ((changed & ~identity) != 0) {
+        forward(same == 0 ? update : new SyntheticItemUpdate(update.getItemName(), itemPos, fieldNames, values, changed, update.isSnapshot()));
+      }
+    }
+
+    @Override
+    public void onEndOfSnapshot(String itemName, int itemPos) {
+      ensureItem(itemPos);
+      if (command && resyncing[itemPos]) {
+        //the keys not in the new snapshot are gone
+        Set<String> seen = seenKeys.get(itemPos);
+        Iterator<Map.Entry<String, String[]>> entries = keyValues.get(itemPos).entrySet().iterator();
+        while (entries.hasNext()) {
+          Map.Entry<String, String[]> entry = entries.next();
+          if (seen.contains(entry.getKey())) {
+            continue;
+          }
+          entries.remove();
+          String[] values = entry.getValue().clone();
+          values[commandIndex] = "DELETE";
+          long changed = (1L << (keyIndex + 1)) | (1L << (commandIndex + 1));
+          forward(new SyntheticItemUpdate(itemName, itemPos, fieldNames, values, changed, true));
+          deleted++;
+        }
+        seen.clear();
+        resynced(itemPos);
+      }
+      for (SubscriptionListener delegate : delegates) {
+        delegate.onEndOfSnapshot(itemName, itemPos);
+      }
+    }
+
+    @Override
+    public void onUnsubscription() {
+      //the values are kept, to be compared with the next snapshot
+      resyncItems = 0;
+      reapplied = unchanged = deleted = 0;
+      for (int i = 1; i < resyncing.length; i++) {
+        boolean known = command ? !keyValues.get(i).isEmpty() : itemValues.get(i) != null;
+        if (known && !resyncing[i]) {
+          resyncing[i] = true;
+          resyncItems++;
+        }
+        seenKeys.get(i).clear();
+        awaitingKeys.get(i).clear();
+      }
+      resyncPending = resyncItems;
+      for (SubscriptionListener delegate : delegates) {
+        delegate.onUnsubscription();
+      }
+    }
+
+    @Override
+    public void onClearSnapshot(String itemName, int itemPos) {
+      ensureItem(itemPos);
+      itemValues.set(itemPos, null);
+      keyValues.get(itemPos).clear();
+      awaitingKeys.get(itemPos).clear();
+      if (resyncing[itemPos]) {
+        resynced(itemPos);
+      }
+      for (SubscriptionListener delegate : delegates) {
+        delegate.onClearSnapshot(itemName, itemPos);
+      }
+    }
+
+    @Override
+    public void onCommandSecondLevelItemLostUpdates(int lostUpdates, String key) {
+      for (SubscriptionListener delegate : delegates) {
+        delegate.onCommandSecondLevelItemLostUpdates(lostUpdates, key);
+      }
+    }
+
+    @Override
+    public void onCommandSecondLevelSubscriptionError(int code, String message, String key) {
+      for (SubscriptionListener delegate : delegates) {
+        delegate.onCommandSecondLevelSubscriptionError(code, message, key);
+      }
+    }
+
+    @Override
+    public void onItemLostUpdates(String itemName, int itemPos, int lostUpdates) {
+      for (SubscriptionListener delegate : delegates) {
+        delegate.onItemLostUpdates(itemName, itemPos, lostUpdates);
+      }
+    }
+
+    @Override
+    public void onListenEnd() {
+      for (SubscriptionListener delegate : delegates) {
+        delegate.onListenEnd();
+      }
+    }
+
+    @Override
+    public void onListenStart() {
+      for (SubscriptionListener delegate : delegates) {
+        delegate.onListenStart();
+      }
+    }
+
+    @Override
+    public void onSubscription() {
+      for (SubscriptionListener delegate : delegates) {
+        delegate.onSubscription();
+      }
+    }
+
+    @Override
+    public void onSubscriptionError(int code, String message) {
+      for (SubscriptionListener delegate : delegates) {
+        delegate.onSubscriptionError(code, message);
+      }
+    }
+
+    @Override
+    public void onRealMaxFrequency(String frequency) {
+      for (SubscriptionListener delegate : delegates) {
+        delegate.onRealMaxFrequency(frequency);
+      }
+    }
+  }
+
+}
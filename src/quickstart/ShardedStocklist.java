@@ -0,0 +1,395 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package quickstart;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.lightstreamer.client.ItemUpdate;
+import com.lightstreamer.client.LightstreamerClient;
+import com.lightstreamer.client.Subscription;
+import com.lightstreamer.client.SubscriptionListener;
+
+/**
+ * Subscribes to a large universe of Stocklist items by partitioning it across
+ * several LightstreamerClient sessions (shards), each with its own MERGE
+ * subscription.
+ *
+ * Items are assigned to the shards round-robin. The listener of each shard
+ * only hands the events over to a queue consumed by a dedicated processing
+ * thread, which decodes them and writes them into a single {@link QuoteBook}
+ * covering all the items, so that consumers get one merged view regardless
+ * of the number of shards. Each item is always handled by the same thread,
+ * which preserves the single writer per item required by the book.
+ *
+ * The throughput of each shard is reported periodically on the console.
+ */
+public class ShardedStocklist {
+
+  private static final int QUEUE_CAPACITY = 16384;
+
+  /**
+   * @param itemsSpec either a file with one item name per line (empty lines
+   * and lines starting with # are ignored) or a number n, for item1..itemn
+   */
+  public static String[] loadItems(String itemsSpec) throws IOException {
+    if (itemsSpec.matches("\\d+")) {
+      String[] items = new String[Integer.parseInt(itemsSpec)];
+      for (int i = 0; i < items.length; i++) {
+        items[i] = "item" + (i + 1);
+      }
+      return items;
+    }
+    List<String> items = new ArrayList<String>();
+    for (String line : Files.readAllLines(Paths.get(itemsSpec), StandardCharsets.UTF_8)) {
+      line = line.trim();
+      if (!line.isEmpty() && !line.startsWith("#")) {
+        items.add(line);
+      }
+    }
+    return items.toArray(new String[items.size()]);
+  }
+
+  /**
+   * @return the number of shards to use when not specified: one per available core
+   */
+  public static int defaultShards() {
+    return Runtime.getRuntime().availableProcessors();
+  }
+
+  private final String[] items;
+  private final QuoteBook quoteBook;
+  private final Map<String, Integer> positions = new HashMap<String, Integer>();
+  private final Shard[] shards;
+  private final StockAnalytics analytics;
+  private final ConsoleSink console;
+  private ScheduledExecutorService reporter;
+
+  public ShardedStocklist(String[] items, int shardCount) {
+    this(items, shardCount, ConsoleSink.getDefault());
+  }
+
+  public ShardedStocklist(String[] items, int shardCount, ConsoleSink console) {
+    if (shardCount < 1) {
+      throw new IllegalArgumentException("At least one shard is needed");
+    }
+    this.items = items.clone();
+    this.quoteBook = new QuoteBook(Stocklist.layout, items.length);
+    this.console = console;
+    for (int i = 0; i < items.length; i++) {
+      if (positions.put(items[i], i + 1) != null) {
+        throw new IllegalArgumentException("Duplicate item " + items[i]);
+      }
+    }
+
+    this.analytics = StockAnalytics.startIfConfigured(items, console);
+
+    shardCount = Math.min(shardCount, Math.max(1, items.length));
+    this.shards = new Shard[shardCount];
+    for (int s = 0; s < shardCount; s++) {
+      int size = (items.length - s + shardCount - 1) / shardCount;
+      String[] shardItems = new String[size];
+      int[] bookPositions = new int[size + 1];
+      for (int i = 0; i < size; i++) {
+        int index = s + i * shardCount;
+        shardItems[i] = items[index];
+        bookPositions[i + 1] = index + 1;
+      }
+      shards[s] = new Shard(s, shardItems, new QuoteBook.Feeder(quoteBook, bookPositions),
+          analytics != null ? analytics.input(bookPositions) : null);
+    }
+  }
+
+  /**
+   * Opens one session per shard and starts the periodic throughput report.
+   */
+  public void start(String serverAddress, long reportSeconds) {
+    for (Shard shard : shards) {
+      shard.start(serverAddress);
+    }
+    reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "ShardedStocklist reporter");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    reporter.scheduleAtFixedRate(new Runnable() {
+      private long last = System.nanoTime();
+
+      @Override
+      public void run() {
+        long now = System.nanoTime();
+        console.println(report((now - last) / 1e9));
+        last = now;
+      }
+    }, reportSeconds, reportSeconds, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Closes all the sessions.
+   */
+  public void stop() {
+    if (reporter != null) {
+      reporter.shutdownNow();
+    }
+    for (Shard shard : shards) {
+      shard.stop();
+    }
+    if (analytics != null) {
+      analytics.stop();
+    }
+  }
+
+  /**
+   * @return the merged view of all the items
+   */
+  public QuoteBook getQuoteBook() {
+    return quoteBook;
+  }
+
+  /**
+   * @return the position of an item in the QuoteBook, or -1 if not subscribed
+   */
+  public int getItemPos(String itemName) {
+    Integer pos = positions.get(itemName);
+    return pos == null ? -1 : pos;
+  }
+
+  public String getItemName(int itemPos) {
+    return items[itemPos - 1];
+  }
+
+  public int getShardCount() {
+    return shards.length;
+  }
+
+  /**
+   * @return the updates processed by a shard so far
+   */
+  public long getShardUpdates(int shard) {
+    return shards[shard].processed.get();
+  }
+
+  private String report(double seconds) {
+    StringBuilder out = new StringBuilder("[shards]");
+    long total = 0;
+    for (Shard shard : shards) {
+      long processed = shard.processed.get();
+      long delta = processed - shard.reported;
+      shard.reported = processed;
+      total += delta;
+      out.append(String.format(Locale.ROOT, " #%d %.0f/s q=%d", shard.index, delta / seconds, shard.queue.size()));
+    }
+    int complete = 0;
+    for (int pos = 1; pos <= quoteBook.getItemCount(); pos++) {
+      if (quoteBook.isSnapshotComplete(pos)) {
+        complete++;
+      }
+    }
+    out.append(String.format(Locale.ROOT, " | total %.0f/s, %d/%d items with snapshot", total / seconds, complete, items.length));
+    return out.toString();
+  }
+
+  /**
+   * One session with its subscription and its processing thread.
+   *
+   * The listener runs on the client event thread and only enqueues: ItemUpdate
+   * objects are immutable, hence they can be decoded later by the shard thread;
+   * the other events are enqueued as Marker objects, so that they are applied
+   * in order with the updates.
+   */
+  private class Shard implements SubscriptionListener {
+
+    final int index;
+    final String[] shardItems;
+    final QuoteBook.Feeder feeder;
+    final SubscriptionListener analyticsInput;
+    final BlockingQueue<Object> queue = new ArrayBlockingQueue<Object>(QUEUE_CAPACITY);
+    final AtomicLong processed = new AtomicLong();
+    long reported; //only touched by the reporter thread
+
+    LightstreamerClient client;
+    Thread thread;
+
+    /**
+     * @param analyticsInput fed on the event thread of the shard, or null
+     */
+    Shard(int index, String[] shardItems, QuoteBook.Feeder feeder, SubscriptionListener analyticsInput) {
+      this.index = index;
+      this.shardItems = shardItems;
+      this.feeder = feeder;
+      this.analyticsInput = analyticsInput;
+    }
+
+    void start(String serverAddress) {
+      thread = new Thread("ShardedStocklist shard " + index) {
+        @Override
+        public void run() {
+          process();
+        }
+      };
+      thread.setDaemon(true);
+      thread.start();
+
+      client = ConnectionProfile.configure(new LightstreamerClient(serverAddress, "DEMO"));
+      client.addListener(new SystemOutClientListener(console));
+
+      Subscription sub = new Subscription("MERGE", shardItems, Stocklist.layout.getNames());
+      sub.setRequestedSnapshot("yes");
+      sub.setDataAdapter("QUOTE_ADAPTER");
+      sub.addListener(this);
+      if (analyticsInput != null) {
+        sub.addListener(analyticsInput);
+      }
+
+      client.subscribe(sub);
+      client.connect();
+    }
+
+    void stop() {
+      client.disconnect();
+      thread.interrupt();
+    }
+
+    private void process() {
+      try {
+        while (true) {
+          Object event = queue.take();
+          if (event instanceof ItemUpdate) {
+            feeder.onItemUpdate((ItemUpdate) event);
+            processed.lazySet(processed.get() + 1);
+          } else {
+            ((Marker) event).applyTo(feeder);
+          }
+        }
+      } catch (InterruptedException e) {
+        //stopped
+      }
+    }
+
+    private void enqueue(Object event) {
+      try {
+        //blocking when the shard falls behind slows down the event thread, as it would happen without the queue
+        queue.put(event);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    @Override
+    public void onItemUpdate(ItemUpdate update) {
+      enqueue(update);
+    }
+
+    @Override
+    public void onClearSnapshot(String itemName, int itemPos) {
+      enqueue(new Marker(Marker.CLEAR_SNAPSHOT, itemPos));
+    }
+
+    @Override
+    public void onEndOfSnapshot(String itemName, int itemPos) {
+      enqueue(new Marker(Marker.END_OF_SNAPSHOT, itemPos));
+    }
+
+    @Override
+    public void onUnsubscription() {
+      enqueue(new Marker(Marker.UNSUBSCRIPTION, 0));
+    }
+
+    @Override
+    public void onItemLostUpdates(String itemName, int itemPos, int lostUpdates) {
+      console.println("Shard " + index + ": " + lostUpdates + " updates were lost for " + itemName);
+    }
+
+    @Override
+    public void onSubscriptionError(int code, String message) {
+      console.println("Shard " + index + " cannot subscribe because of error " + code + ": " + message);
+    }
+
+    @Override
+    public void onCommandSecondLevelItemLostUpdates(int lostUpdates, String key) {
+      //not on this subscription
+    }
+
+    @Override
+    public void onCommandSecondLevelSubscriptionError(int code, String message, String key) {
+      //not on this subscription
+    }
+
+    @Override
+    public void onListenEnd() {
+    }
+
+    @Override
+    public void onListenStart() {
+    }
+
+    @Override
+    public void onSubscription() {
+    }
+
+    @Override
+    public void onRealMaxFrequency(String frequency) {
+    }
+  }
+
+  /**
+   * A non-update event, to be applied on the shard thread.
+   */
+  private static class Marker {
+    static final int CLEAR_SNAPSHOT = 1;
+    static final int END_OF_SNAPSHOT = 2;
+    static final int UNSUBSCRIPTION = 3;
+
+    final int type;
+    final int itemPos;
+
+    Marker(int type, int itemPos) {
+      this.type = type;
+      this.itemPos = itemPos;
+    }
+
+    void applyTo(QuoteBook.Feeder feeder) {
+      switch (type) {
+        case CLEAR_SNAPSHOT:
+          feeder.onClearSnapshot(null, itemPos);
+          break;
+        case END_OF_SNAPSHOT:
+          feeder.onEndOfSnapshot(null, itemPos);
+          break;
+        default:
+          feeder.onUnsubscription();
+      }
+    }
+  }
+
+}
@@ -0,0 +1,623 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package quickstart;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import com.lightstreamer.client.ItemUpdate;
+import com.lightstreamer.client.Subscription;
+import com.lightstreamer.client.SubscriptionListener;
+
+/**
+ * A ring of fixed-size quote records in a memory-mapped file, normally under
+ * /dev/shm, written by a single {@link Publisher} attached to the Stocklist
+ * subscription and read by any number of {@link Reader}s, also in other
+ * processes, with no system calls and no parsing.
+ *
+ * The file is laid out as:
+ *    [header: magic, version, capacity, record size, field count, item count,
+ *     records offset, state] [cursor, on a cache line of its own]
+ *    [metadata: field kinds and names, item names] [records]
+ * and each record as:
+ *    [long sequence][long publish nanoTime][int item position][int flags]
+ *    [long changed][long present][long slot] for each field
+ * where slots are those of {@link QuoteBook}, so that every record carries
+ * all the current values of its item.
+ *
+ * The publisher never waits for the readers: the sequence field of a record
+ * is set to BUSY while the record is written and to its sequence afterwards,
+ * then the cursor is advanced. A reader checks the sequence before and after
+ * copying a record, hence a reader that falls behind by more than the
+ * capacity detects the records overwritten, skips them and counts them as
+ * lost. The writes and reads of the mapped memory are ordered by explicit
+ * fences, i.e. VarHandle fences on Java 9 or later and Unsafe fences on
+ * Java 8, looked up at run time. Java 7 offers neither; there, the ring
+ * relies on volatile accesses, which only order plain accesses on the
+ * strongly ordered x86 CPUs, hence it refuses to run on other CPUs.
+ *
+ * The publisher is enabled by the quickstart.shm system property, which
+ * specifies the file; the number of records is set by quickstart.shm.capacity.
+ */
+public class SharedQuoteRing {
+
+  static final int MAGIC = 0x51524E47; //"QRNG"
+  static final int VERSION = 1;
+
+  private static final int CAPACITY_OFFSET = 8;
+  private static final int RECORD_SIZE_OFFSET = 12;
+  private static final int FIELDS_OFFSET = 16;
+  private static final int ITEMS_OFFSET = 20;
+  private static final int RECORDS_OFFSET = 24;
+  private static final int STATE_OFFSET = 28;
+  private static final int CURSOR_OFFSET = 64;
+  private static final int METADATA_OFFSET = 128;
+
+  private static final int STATE_OPEN = 1;
+  private static final int STATE_CLOSED = 2;
+
+  //within a record
+  private static final int SEQUENCE = 0;
+  private static final int NANOS = 8;
+  private static final int ITEM = 16;
+  private static final int FLAGS = 20;
+  private static final int CHANGED = 24;
+  private static final int PRESENT = 32;
+  private static final int SLOTS = 40;
+
+  private static final long BUSY = -1;
+  private static final int SNAPSHOT_COMPLETE = 1;
+
+  static final String DEFAULT_PATH = "/dev/shm/quickstart-quotes";
+
+  /**
+   * @return a publisher added to the subscription if the quickstart.shm
+   * system property is set, otherwise null
+   */
+  static Publisher attachIfConfigured(Subscription sub, FieldLayout layout) {
+    String target = System.getProperty("quickstart.shm");
+    if (target == null) {
+      return null;
+    }
+    final Publisher publisher;
+    try {
+      publisher = new Publisher(Paths.get(target.equals("true") ? DEFAULT_PATH : target), layout, sub.getItems(),
+          Integer.getInteger("quickstart.shm.capacity", 65536));
+    } catch (IOException e) {
+      System.err.println("Cannot publish the quotes in " + target + ": " + e.getMessage());
+      return null;
+    }
+    sub.addListener(publisher);
+    Runtime.getRuntime().addShutdownHook(new Thread("SharedQuoteRing shutdown") {
+      @Override
+      public void run() {
+        publisher.close();
+      }
+    });
+    return publisher;
+  }
+
+  /**
+   * How a reader waits when there is nothing to read.
+   */
+  public enum WaitStrategy {
+    /**
+     * Keeps polling; the lowest latency, at the cost of a whole core
+     */
+    BUSY_SPIN {
+      @Override
+      void idle(int count) {
+      }
+    },
+    /**
+     * Polls a while, then yields the core to other threads
+     */
+    YIELD {
+      @Override
+      void idle(int count) {
+        if (count > SPINS) {
+          Thread.yield();
+        }
+      }
+    },
+    /**
+     * Polls a while, yields a while, then parks for growing intervals,
+     * up to {@link #MAX_PARK_NANOS}
+     */
+    PARK {
+      @Override
+      void idle(int count) {
+        if (count > 2 * SPINS) {
+          LockSupport.parkNanos(Math.min(MAX_PARK_NANOS, 1000L << Math.min(20, (count - 2 * SPINS) / SPINS)));
+        } else if (count > SPINS) {
+          Thread.yield();
+        }
+      }
+    };
+
+    static final int SPINS = 100;
+    static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * @param count the number of consecutive polls that found nothing
+     */
+    abstract void idle(int count);
+  }
+
+  private static int recordSize(int fields) {
+    //rounded up to whole cache lines
+    return (SLOTS + 8 * fields + 63) & ~63;
+  }
+
+  /**
+   * Writes the updates of a MERGE subscription into the ring; it must be
+   * notified by a single thread, as the client event thread does.
+   */
+  public static class Publisher implements SubscriptionListener, Closeable {
+
+    private final FieldLayout layout;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private final int recordSize;
+    private final int recordsOffset;
+    private final StockQuote[] quotes;
+    private final boolean[] complete;
+    private long sequence = 0;
+
+    /**
+     * @param capacity number of records, rounded up to a power of 2
+     */
+    public Publisher(Path path, FieldLayout layout, String[] items, int capacity) throws IOException {
+      Fences.check();
+      this.layout = layout;
+      this.capacity = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+      this.recordSize = recordSize(layout.size());
+      this.quotes = new StockQuote[items.length + 1];
+      for (int i = 1; i < quotes.length; i++) {
+        quotes[i] = new StockQuote(layout);
+      }
+      this.complete = new boolean[items.length + 1];
+
+      int metadata = 1 + layout.size();
+      for (int pos = 1; pos <= layout.size(); pos++) {
+        metadata += 2 + layout.getName(pos).getBytes(UpdateRecorder.UTF8).length;
+      }
+      for (String item : items) {
+        metadata += 2 + item.getBytes(UpdateRecorder.UTF8).length;
+      }
+      this.recordsOffset = (METADATA_OFFSET + metadata + 63) & ~63;
+
+      //a new file, so that readers of a previous one are not confused
+      Files.deleteIfExists(path);
+      try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, recordsOffset + (long) this.capacity * recordSize);
+      }
+      buffer.putInt(CAPACITY_OFFSET, this.capacity);
+      buffer.putInt(RECORD_SIZE_OFFSET, recordSize);
+      buffer.putInt(FIELDS_OFFSET, layout.size());
+      buffer.putInt(ITEMS_OFFSET, items.length);
+      buffer.putInt(RECORDS_OFFSET, recordsOffset);
+      buffer.position(METADATA_OFFSET);
+      for (int pos = 1; pos <= layout.size(); pos++) {
+        buffer.put((byte) layout.getKind(pos).ordinal());
+        putString(layout.getName(pos));
+      }
+      for (String item : items) {
+        putString(item);
+      }
+      buffer.putLong(CURSOR_OFFSET, 0);
+      buffer.putInt(STATE_OFFSET, STATE_OPEN);
+      buffer.putInt(4, VERSION);
+      Fences.storeFence();
+      //readers check the magic number last
+      buffer.putInt(0, MAGIC);
+    }
+
+    private void putString(String value) {
+      byte[] bytes = value.getBytes(UpdateRecorder.UTF8);
+      buffer.putShort((short) bytes.length);
+      buffer.put(bytes);
+    }
+
+    /**
+     * @return the number of records written so far
+     */
+    public long getSequence() {
+      return sequence;
+    }
+
+    private void publish(int itemPos, long changed) {
+      StockQuote quote = quotes[itemPos];
+      int base = recordsOffset + (int) (sequence & (capacity - 1)) * recordSize;
+      buffer.putLong(base + SEQUENCE, BUSY);
+      Fences.storeFence();
+
+      long present = 0;
+      for (int pos = 1; pos <= layout.size(); pos++) {
+        if (!quote.isDecoded(pos)) {
+          continue;
+        }
+        long slot;
+        switch (layout.getKind(pos)) {
+          case DECIMAL:
+            slot = Double.doubleToRawLongBits(quote.getDouble(pos));
+            break;
+          case INTEGER:
+            slot = quote.getLong(pos);
+            break;
+          case TIME:
+            slot = quote.getTime(pos);
+            break;
+          default:
+            continue;
+        }
+        present |= 1L << pos;
+        buffer.putLong(base + SLOTS + 8 * (pos - 1), slot);
+      }
+      buffer.putInt(base + ITEM, itemPos);
+      buffer.putInt(base + FLAGS, complete[itemPos] ? SNAPSHOT_COMPLETE : 0);
+      buffer.putLong(base + CHANGED, changed);
+      buffer.putLong(base + PRESENT, present);
+      buffer.putLong(base + NANOS, System.nanoTime());
+      Fences.storeFence();
+
+      buffer.putLong(base + SEQUENCE, sequence);
+      Fences.storeFence();
+      buffer.putLong(CURSOR_OFFSET, ++sequence);
+      Fences.storeFence();
+    }
+
+    @Override
+    public void onItemUpdate(ItemUpdate update) {
+      int itemPos = update.getItemPos();
+      long changed = quotes[itemPos].apply(update);
+      //in MERGE mode the snapshot is a single update
+      complete[itemPos] = true;
+      publish(itemPos, changed);
+    }
+
+    @Override
+    public void onClearSnapshot(String itemName, int itemPos) {
+      quotes[itemPos].clear();
+      complete[itemPos] = false;
+      publish(itemPos, layout.allFields());
+    }
+
+    @Override
+    public void onUnsubscription() {
+      //values are retained, but they are no longer guaranteed to be current
+      for (int itemPos = 1; itemPos < quotes.length; itemPos++) {
+        if (complete[itemPos]) {
+          complete[itemPos] = false;
+          publish(itemPos, 0);
+        }
+      }
+    }
+
+    @Override
+    public void onEndOfSnapshot(String itemName, int itemPos) {
+    }
+
+    @Override
+    public void onCommandSecondLevelItemLostUpdates(int lostUpdates, String key) {
+      //not on this subscription
+    }
+
+    @Override
+    public void onCommandSecondLevelSubscriptionError(int code, String message, String key) {
+      //not on this subscription
+    }
+
+    @Override
+    public void onItemLostUpdates(String itemName, int itemPos, int lostUpdates) {
+    }
+
+    @Override
+    public void onListenEnd() {
+    }
+
+    @Override
+    public void onListenStart() {
+    }
+
+    @Override
+    public void onSubscription() {
+    }
+
+    @Override
+    public void onSubscriptionError(int code, String message) {
+    }
+
+    @Override
+    public void onRealMaxFrequency(String frequency) {
+    }
+
+    /**
+     * Tells the readers that no more records will be written.
+     */
+    @Override
+    public void close() {
+      buffer.putInt(STATE_OFFSET, STATE_CLOSED);
+      Fences.storeFence();
+    }
+  }
+
+  /**
+   * Reads the records of a ring into a local {@link QuoteBook} and notifies
+   * a listener of each of them; a reader must only be used by one thread.
+   */
+  public static class Reader {
+
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private final int recordSize;
+    private final int recordsOffset;
+    private final String[] items;
+    private final QuoteBook book;
+    private final QuoteBook.Snapshot quote;
+    private final long[] values;
+    private long next;
+    private long lost = 0;
+    private long read = 0;
+    private long publishNanos;
+
+    /**
+     * Maps an existing ring; reading starts from the oldest record available,
+     * so that the local book gets the latest values of most items at once.
+     */
+    public Reader(Path path) throws IOException {
+      Fences.check();
+      try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      }
+      if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+        throw new IOException("Not a quote ring: " + path);
+      }
+      Fences.loadFence();
+      capacity = buffer.getInt(CAPACITY_OFFSET);
+      recordSize = buffer.getInt(RECORD_SIZE_OFFSET);
+      recordsOffset = buffer.getInt(RECORDS_OFFSET);
+      int fieldCount = buffer.getInt(FIELDS_OFFSET);
+      items = new String[buffer.getInt(ITEMS_OFFSET)];
+
+      buffer.position(METADATA_OFFSET);
+      FieldLayout.Kind[] kinds = new FieldLayout.Kind[fieldCount];
+      String[] fields = new String[fieldCount];
+      for (int i = 0; i < fieldCount; i++) {
+        kinds[i] = FieldLayout.Kind.values()[buffer.get()];
+        fields[i] = getString();
+      }
+      for (int i = 0; i < items.length; i++) {
+        items[i] = getString();
+      }
+      FieldLayout layout = new FieldLayout(fields);
+      for (int i = 0; i < fieldCount; i++) {
+        layout.with(kinds[i], fields[i]);
+      }
+      book = new QuoteBook(layout, items.length);
+      quote = book.newSnapshot();
+      values = new long[fieldCount + 1];
+      next = Math.max(0, buffer.getLong(CURSOR_OFFSET) - capacity);
+    }
+
+    private String getString() {
+      byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+      buffer.get(bytes);
+      return new String(bytes, UpdateRecorder.UTF8);
+    }
+
+    public QuoteBook getQuoteBook() {
+      return book;
+    }
+
+    /**
+     * @return the name of the item at the given 1-based position
+     */
+    public String getItemName(int itemPos) {
+      return items[itemPos - 1];
+    }
+
+    /**
+     * @return the number of records overwritten before they could be read
+     */
+    public long getLost() {
+      return lost;
+    }
+
+    /**
+     * @return the number of records read
+     */
+    public long getRead() {
+      return read;
+    }
+
+    /**
+     * @return the System.nanoTime of the publisher when it wrote the record
+     * being notified; comparable with the local one on the same host
+     */
+    public long getPublishNanos() {
+      return publishNanos;
+    }
+
+    /**
+     * @return whether the publisher has closed the ring
+     */
+    public boolean isClosed() {
+      Fences.loadFence();
+      return buffer.getInt(STATE_OFFSET) == STATE_CLOSED;
+    }
+
+    /**
+     * Reads the records available, up to the given number.
+     *
+     * @return the number of records notified
+     */
+    public int poll(QuoteGateway.Listener listener, int max) {
+      long cursor = buffer.getLong(CURSOR_OFFSET);
+      Fences.loadFence();
+      int notified = 0;
+      while (next < cursor && notified < max) {
+        if (cursor - next > capacity) {
+          //overwritten already
+          lost += cursor - capacity - next;
+          next = cursor - capacity;
+        }
+        int base = recordsOffset + (int) (next & (capacity - 1)) * recordSize;
+        long before = buffer.getLong(base + SEQUENCE);
+        Fences.loadFence();
+        int itemPos = buffer.getInt(base + ITEM);
+        int flags = buffer.getInt(base + FLAGS);
+        long changed = buffer.getLong(base + CHANGED);
+        long present = buffer.getLong(base + PRESENT);
+        long nanos = buffer.getLong(base + NANOS);
+        for (int pos = 1; pos < values.length; pos++) {
+          if ((present & (1L << pos)) != 0) {
+            values[pos] = buffer.getLong(base + SLOTS + 8 * (pos - 1));
+          }
+        }
+        Fences.loadFence();
+        long after = buffer.getLong(base + SEQUENCE);
+        if (before != next || after != next) {
+          //overwritten while being read
+          lost++;
+          next++;
+          continue;
+        }
+        next++;
+        read++;
+        //all the fields are carried, hence they are all stored
+        book.writeSlots(itemPos, book.getLayout().allFields(), present, values, (flags & SNAPSHOT_COMPLETE) != 0);
+        book.read(itemPos, quote);
+        publishNanos = nanos;
+        listener.onQuote(quote, changed);
+        notified++;
+      }
+      return notified;
+    }
+
+    /**
+     * Reads the records as they come, waiting as specified when there are
+     * none, until the publisher closes the ring or the thread is interrupted.
+     */
+    public void run(QuoteGateway.Listener listener, WaitStrategy strategy) {
+      int idle = 0;
+      while (!Thread.currentThread().isInterrupted()) {
+        if (poll(listener, Integer.MAX_VALUE) > 0) {
+          idle = 0;
+        } else if (isClosed()) {
+          return;
+        } else {
+          strategy.idle(++idle);
+        }
+      }
+    }
+  }
+
+  /**
+   * Memory fences for the accesses to the mapped buffer.
+   */
+  static final class Fences {
+
+    private static final MethodHandle STORE;
+    private static final MethodHandle LOAD;
+    //Java 7 fallback, only effective on x86
+    private static volatile int fence;
+
+    static {
+      MethodHandle store = null;
+      MethodHandle load = null;
+      MethodHandles.Lookup lookup = MethodHandles.lookup();
+      MethodType type = MethodType.methodType(void.class);
+      try {
+        Class<?> varHandle = Class.forName("java.lang.invoke.VarHandle");
+        store = lookup.findStatic(varHandle, "releaseFence", type);
+        load = lookup.findStatic(varHandle, "acquireFence", type);
+      } catch (ReflectiveOperationException e) {
+        try {
+          Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+          Field field = unsafeClass.getDeclaredField("theUnsafe");
+          field.setAccessible(true);
+          Object unsafe = field.get(null);
+          store = lookup.findVirtual(unsafeClass, "storeFence", type).bindTo(unsafe);
+          load = lookup.findVirtual(unsafeClass, "loadFence", type).bindTo(unsafe);
+        } catch (ReflectiveOperationException | RuntimeException e2) {
+          store = null;
+          load = null;
+        }
+      }
+      STORE = store;
+      LOAD = load;
+    }
+
+    /**
+     * @throws IOException if no fences are available and the CPU is not an x86,
+     * where the ring would not be safe
+     */
+    static void check() throws IOException {
+      if (STORE != null) {
+        return;
+      }
+      String arch = System.getProperty("os.arch", "").toLowerCase(Locale.ROOT);
+      if (!arch.equals("x86") && !arch.equals("i386") && !arch.equals("amd64") && !arch.equals("x86_64")) {
+        throw new IOException("The quote ring needs Java 8 or later on " + arch);
+      }
+    }
+
+    /**
+     * Keeps the accesses before it from moving after the stores after it
+     */
+    static void storeFence() {
+      if (STORE == null) {
+        fence = 0;
+        return;
+      }
+      try {
+        STORE.invokeExact();
+      } catch (Throwable e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    /**
+     * Keeps the loads before it from moving after the accesses after it
+     */
+    static void loadFence() {
+      if (LOAD == null) {
+        int ignored = fence;
+        return;
+      }
+      try {
+        LOAD.invokeExact();
+      } catch (Throwable e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+
+}
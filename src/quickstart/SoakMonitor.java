@@ -0,0 +1,426 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package quickstart;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.lightstreamer.client.ItemUpdate;
+import com.lightstreamer.client.Subscription;
+import com.lightstreamer.client.SubscriptionListener;
+
+/**
+ * Accounting for long unattended runs of the examples (see the soak mode of Main).
+ *
+ * While a monitor is running, it is attached to the subscription of each
+ * client started, where it counts the updates received and those lost, per
+ * item (onItemLostUpdates) and per key (onCommandSecondLevelItemLostUpdates).
+ * It also samples the GC pauses, as reported by the collector MXBeans (except
+ * those of concurrent cycles, such as "G1 Concurrent GC", "ZGC Cycles" or
+ * "Shenandoah Cycles", whose time is spent alongside the application),
+ * the bytes allocated by each thread and the depth of the console queue, the
+ * one all the listeners hand their output to.
+ *
+ * A summary is printed every report period and, when the run is over, the
+ * totals are checked against the following system properties:
+ *    quickstart.soak.maxLost       (updates lost, default 0)
+ *    quickstart.soak.maxGcPercent  (time spent in GC pauses, percent of the run, default 5)
+ *    quickstart.soak.maxAllocMBps  (average allocation rate in MB/s, default 0, i.e. unchecked)
+ *    quickstart.soak.maxQueueDepth (console queue depth, default 90% of its capacity)
+ *    quickstart.soak.minUpdates    (updates received, default 1)
+ */
+public class SoakMonitor {
+
+  private static final long SAMPLE_MILLIS = 100;
+  private static final int TOP = 5;
+
+  private static volatile SoakMonitor running;
+
+  /**
+   * Counts the updates of a subscription if a soak run is in progress.
+   */
+  static void attachIfConfigured(Subscription sub, String name) {
+    SoakMonitor monitor = running;
+    if (monitor != null) {
+      sub.addListener(monitor.new Counter(name));
+    }
+  }
+
+  /**
+   * Starts a monitor, which is attached to the clients started afterwards.
+   */
+  static SoakMonitor start(long reportSeconds) {
+    SoakMonitor monitor = new SoakMonitor(ConsoleSink.getDefault());
+    running = monitor;
+    monitor.schedule(reportSeconds);
+    return monitor;
+  }
+
+  private final ConsoleSink console;
+  private final ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "SoakMonitor sampler");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+  private final List<ScheduledFuture<?>> tasks = new ArrayList<ScheduledFuture<?>>();
+
+  private final AtomicLong updates = new AtomicLong();
+  private final AtomicLong lost = new AtomicLong();
+  private final ConcurrentHashMap<String, AtomicLong> lostBySource = new ConcurrentHashMap<String, AtomicLong>();
+
+  private final List<GarbageCollectorMXBean> collectors = pauseCollectors();
+  private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+  private final boolean allocationSupported;
+
+  private final long startNanos = System.nanoTime();
+  private final long startGcCount;
+  private final long startGcMillis;
+
+  //guarded by this
+  private int maxDepth;
+  private int intervalMaxDepth;
+  private long depthSum;
+  private long depthSamples;
+  private long allocated;
+  private final Map<Long, Long> allocatedByThread = new HashMap<Long, Long>();
+  private long lastReportNanos = startNanos;
+  private long lastUpdates;
+  private long lastLost;
+  private long lastGcCount;
+  private long lastGcMillis;
+  private long lastAllocated;
+
+  SoakMonitor(ConsoleSink console) {
+    this.console = console;
+    boolean supported = false;
+    if (threads instanceof com.sun.management.ThreadMXBean) {
+      com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+      if (allocations.isThreadAllocatedMemorySupported()) {
+        allocations.setThreadAllocatedMemoryEnabled(true);
+        supported = true;
+      }
+    }
+    this.allocationSupported = supported;
+    this.startGcCount = this.lastGcCount = gcCount();
+    this.startGcMillis = this.lastGcMillis = gcMillis();
+    //the bytes allocated before the run are only taken as a baseline
+    sampleAllocations(new long[TOP], new String[TOP]);
+    allocated = 0;
+  }
+
+  private void schedule(long reportSeconds) {
+    tasks.add(sampler.scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        sampleQueue();
+      }
+    }, SAMPLE_MILLIS, SAMPLE_MILLIS, TimeUnit.MILLISECONDS));
+    tasks.add(sampler.scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        console.println(report());
+      }
+    }, reportSeconds, reportSeconds, TimeUnit.SECONDS));
+  }
+
+  private static List<GarbageCollectorMXBean> pauseCollectors() {
+    List<GarbageCollectorMXBean> pauses = new ArrayList<GarbageCollectorMXBean>();
+    for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+      String name = collector.getName();
+      if (!name.contains("Concurrent") && !name.contains("Cycles")) {
+        pauses.add(collector);
+      }
+    }
+    return pauses;
+  }
+
+  private long gcCount() {
+    long count = 0;
+    for (GarbageCollectorMXBean collector : collectors) {
+      count += Math.max(0, collector.getCollectionCount());
+    }
+    return count;
+  }
+
+  private long gcMillis() {
+    long millis = 0;
+    for (GarbageCollectorMXBean collector : collectors) {
+      millis += Math.max(0, collector.getCollectionTime());
+    }
+    return millis;
+  }
+
+  private synchronized void sampleQueue() {
+    int depth = console.getQueueDepth();
+    maxDepth = Math.max(maxDepth, depth);
+    intervalMaxDepth = Math.max(intervalMaxDepth, depth);
+    depthSum += depth;
+    depthSamples++;
+  }
+
+  /**
+   * Adds the bytes allocated by each live thread since the previous sample
+   * (those allocated by threads that ended in the meantime are missed) and
+   * fills the threads that allocated the most.
+   */
+  private synchronized void sampleAllocations(long[] topBytes, String[] topNames) {
+    if (!allocationSupported) {
+      return;
+    }
+    long[] ids = threads.getAllThreadIds();
+    long[] bytes = ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(ids);
+    Map<Long, Long> previous = new HashMap<Long, Long>(allocatedByThread);
+    allocatedByThread.clear();
+    long[] deltas = new long[ids.length];
+    for (int i = 0; i < ids.length; i++) {
+      if (bytes[i] < 0) {
+        continue;
+      }
+      Long before = previous.get(ids[i]);
+      deltas[i] = bytes[i] - (before != null ? before : 0);
+      allocated += deltas[i];
+      allocatedByThread.put(ids[i], bytes[i]);
+    }
+    //a few passes over the threads are cheaper than sorting them with their names
+    for (int t = 0; t < topBytes.length; t++) {
+      int best = -1;
+      for (int i = 0; i < ids.length; i++) {
+        if (deltas[i] > 0 && (best < 0 || deltas[i] > deltas[best])) {
+          best = i;
+        }
+      }
+      if (best < 0) {
+        break;
+      }
+      ThreadInfo info = threads.getThreadInfo(ids[best]);
+      topBytes[t] = deltas[best];
+      topNames[t] = info != null ? info.getThreadName() : "thread " + ids[best];
+      deltas[best] = 0;
+    }
+  }
+
+  /**
+   * @return a one-line summary of the period since the previous call
+   */
+  synchronized String report() {
+    long now = System.nanoTime();
+    double seconds = Math.max(1e-9, (now - lastReportNanos) / 1e9);
+    long[] topBytes = new long[TOP];
+    String[] topNames = new String[TOP];
+    sampleAllocations(topBytes, topNames);
+
+    long updatesNow = updates.get();
+    long lostNow = lost.get();
+    long gcCount = gcCount();
+    long gcMillis = gcMillis();
+
+    StringBuilder top = new StringBuilder();
+    for (int t = 0; t < TOP && topNames[t] != null; t++) {
+      top.append(t == 0 ? " (" : ", ").append(topNames[t])
+          .append(String.format(Locale.ROOT, " %.1f", topBytes[t] / seconds / 1e6));
+    }
+    if (top.length() > 0) {
+      top.append(')');
+    }
+
+    String line = String.format(Locale.ROOT,
+        "[soak] %d s: updates %d (%.1f/s) lost %d (%d items/keys) | gc %d collections %d ms (%.2f%%)"
+        + " | alloc %s MB/s%s | console queue max %d avg %.1f dropped %d",
+        TimeUnit.NANOSECONDS.toSeconds(now - startNanos),
+        updatesNow - lastUpdates, (updatesNow - lastUpdates) / seconds, lostNow - lastLost, lostBySource.size(),
+        gcCount - lastGcCount, gcMillis - lastGcMillis, 100.0 * (gcMillis - lastGcMillis) / (seconds * 1000),
+        allocationSupported ? String.format(Locale.ROOT, "%.1f", (allocated - lastAllocated) / seconds / 1e6) : "n/a",
+        top, intervalMaxDepth, depthSamples > 0 ? (double) depthSum / depthSamples : 0.0, console.getDropped());
+
+    lastReportNanos = now;
+    lastUpdates = updatesNow;
+    lastLost = lostNow;
+    lastGcCount = gcCount;
+    lastGcMillis = gcMillis;
+    lastAllocated = allocated;
+    intervalMaxDepth = 0;
+    return line;
+  }
+
+  /**
+   * Stops the sampling, prints the final report and checks the thresholds.
+   *
+   * @return whether all the thresholds are met
+   */
+  boolean finish() {
+    for (ScheduledFuture<?> task : tasks) {
+      task.cancel(false);
+    }
+    sampler.shutdown();
+    try {
+      sampler.awaitTermination(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    running = null;
+    console.println(report());
+
+    synchronized (this) {
+      double seconds = (System.nanoTime() - startNanos) / 1e9;
+      long maxLost = Long.getLong("quickstart.soak.maxLost", 0);
+      double maxGcPercent = Double.parseDouble(System.getProperty("quickstart.soak.maxGcPercent", "5"));
+      double maxAllocMBps = Double.parseDouble(System.getProperty("quickstart.soak.maxAllocMBps", "0"));
+      int maxQueueDepth = Integer.getInteger("quickstart.soak.maxQueueDepth", console.getCapacity() * 9 / 10);
+      long minUpdates = Long.getLong("quickstart.soak.minUpdates", 1);
+
+      double gcPercent = 100.0 * (gcMillis() - startGcMillis) / (seconds * 1000);
+      double allocMBps = allocated / seconds / 1e6;
+
+      boolean passed = true;
+      passed &= check("updates received", updates.get() >= minUpdates,
+          String.format(Locale.ROOT, "%d (min %d)", updates.get(), minUpdates));
+      passed &= check("updates lost", lost.get() <= maxLost,
+          String.format(Locale.ROOT, "%d (max %d)", lost.get(), maxLost));
+      passed &= check("time in gc pauses", gcPercent <= maxGcPercent,
+          String.format(Locale.ROOT, "%.2f%% in %d collections (max %.2f%%)", gcPercent, gcCount() - startGcCount, maxGcPercent));
+      if (maxAllocMBps > 0 && allocationSupported) {
+        passed &= check("allocation rate", allocMBps <= maxAllocMBps,
+            String.format(Locale.ROOT, "%.1f MB/s (max %.1f)", allocMBps, maxAllocMBps));
+      } else {
+        console.println(String.format(Locale.ROOT, "[soak]   allocation rate: %s",
+            allocationSupported ? String.format(Locale.ROOT, "%.1f MB/s (unchecked)", allocMBps) : "not available"));
+      }
+      passed &= check("console queue depth", maxDepth <= maxQueueDepth,
+          String.format(Locale.ROOT, "max %d of %d (max %d)", maxDepth, console.getCapacity(), maxQueueDepth));
+
+      for (String line : worstSources()) {
+        console.println(line);
+      }
+      console.println(String.format(Locale.ROOT, "[soak] %s after %.0f s", passed ? "PASSED" : "FAILED", seconds));
+      return passed;
+    }
+  }
+
+  private boolean check(String name, boolean ok, String detail) {
+    console.println(String.format(Locale.ROOT, "[soak]   %s: %s %s", name, detail, ok ? "ok" : "FAILED"));
+    return ok;
+  }
+
+  private List<String> worstSources() {
+    List<Map.Entry<String, AtomicLong>> entries = new ArrayList<Map.Entry<String, AtomicLong>>(lostBySource.entrySet());
+    List<String> lines = new ArrayList<String>();
+    for (int t = 0; t < TOP && !entries.isEmpty(); t++) {
+      int best = 0;
+      for (int i = 1; i < entries.size(); i++) {
+        if (entries.get(i).getValue().get() > entries.get(best).getValue().get()) {
+          best = i;
+        }
+      }
+      Map.Entry<String, AtomicLong> entry = entries.remove(best);
+      lines.add(String.format(Locale.ROOT, "[soak]   lost on %s: %d", entry.getKey(), entry.getValue().get()));
+    }
+    return lines;
+  }
+
+  private void countLost(String source, int count) {
+    lost.addAndGet(count);
+    AtomicLong counter = lostBySource.get(source);
+    if (counter == null) {
+      AtomicLong created = new AtomicLong();
+      counter = lostBySource.putIfAbsent(source, created);
+      if (counter == null) {
+        counter = created;
+      }
+    }
+    counter.addAndGet(count);
+  }
+
+  /**
+   * Counts the updates of one subscription.
+   */
+  private class Counter implements SubscriptionListener {
+
+    private final String name;
+
+    Counter(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public void onItemUpdate(ItemUpdate update) {
+      updates.incrementAndGet();
+    }
+
+    @Override
+    public void onItemLostUpdates(String itemName, int itemPos, int lostUpdates) {
+      countLost(name + " " + (itemName != null ? itemName : "item " + itemPos), lostUpdates);
+    }
+
+    @Override
+    public void onCommandSecondLevelItemLostUpdates(int lostUpdates, String key) {
+      countLost(name + " key " + key, lostUpdates);
+    }
+
+    @Override
+    public void onClearSnapshot(String itemName, int itemPos) {
+    }
+
+    @Override
+    public void onCommandSecondLevelSubscriptionError(int code, String message, String key) {
+    }
+
+    @Override
+    public void onEndOfSnapshot(String itemName, int itemPos) {
+    }
+
+    @Override
+    public void onListenEnd() {
+    }
+
+    @Override
+    public void onListenStart() {
+    }
+
+    @Override
+    public void onSubscription() {
+    }
+
+    @Override
+    public void onSubscriptionError(int code, String message) {
+    }
+
+    @Override
+    public void onUnsubscription() {
+    }
+
+    @Override
+    public void onRealMaxFrequency(String frequency) {
+    }
+  }
+
+}
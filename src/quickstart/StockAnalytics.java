@@ -0,0 +1,484 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package quickstart;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.lightstreamer.client.ItemUpdate;
+import com.lightstreamer.client.SubscriptionListener;
+
+/**
+ * Streaming indicators over the Stocklist updates: bid/ask spread, mid price,
+ * time-weighted average price, EWMA volatility of the last price and change
+ * against the reference price.
+ *
+ * Items are partitioned over a number of worker threads by position; each
+ * partition has a bounded ring of pending updates, filled by the client event
+ * threads through the listeners returned by {@link #input(int[])}, and is
+ * processed by its own worker, which owns the state of its items. Hence no
+ * locking is needed on the state, and the updates of an item are processed
+ * in order. Each update is decoded and folded into the indicators of its item
+ * in constant time, with primitive state only and no allocation.
+ *
+ * The indicators of the updated items are handed to the subscribers at most
+ * once per publish interval, on the worker threads; the {@link Indicators}
+ * object may only be used until the subscriber returns.
+ *
+ * The time-weighted average is exponentially decayed, with a one-minute time
+ * constant, and is taken on the mid price, or on the last price when the mid
+ * price is not available; volatility is the RiskMetrics EWMA (lambda 0.94) of
+ * the log returns of the last price, per tick.
+ *
+ * The engine is enabled by the quickstart.analytics system property, which
+ * sets the number of workers, or "auto" for one per core; the publish
+ * interval is set, in milliseconds, by quickstart.analytics.publish (1000 by
+ * default).
+ */
+public class StockAnalytics {
+
+  private static final int RING_CAPACITY = 4096;
+  private static final double LAMBDA = 0.94;
+  private static final double TWAP_TAU_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+  /**
+   * Receives the indicators of the items updated, on the worker threads.
+   */
+  public interface Subscriber {
+    void onIndicators(Indicators indicators);
+  }
+
+  /**
+   * @return an engine over the given items printing on the console, if the
+   * quickstart.analytics system property is set, otherwise null
+   */
+  static StockAnalytics startIfConfigured(String[] itemNames, final ConsoleSink console) {
+    String workers = System.getProperty("quickstart.analytics");
+    if (workers == null) {
+      return null;
+    }
+    StockAnalytics analytics = new StockAnalytics(Stocklist.layout, itemNames,
+        workers.equals("auto") ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(workers),
+        Long.getLong("quickstart.analytics.publish", 1000));
+    analytics.addSubscriber(new Subscriber() {
+      @Override
+      public void onIndicators(Indicators indicators) {
+        console.println(indicators.toString());
+      }
+    });
+    analytics.start();
+    return analytics;
+  }
+
+  /**
+   * The indicators of one item; only changed by the worker owning the item.
+   */
+  public static class Indicators {
+
+    private final int itemPos;
+    private final String itemName;
+    private final StockQuote quote;
+
+    private long ticks;
+    private double last = Double.NaN;
+    private double bid = Double.NaN;
+    private double ask = Double.NaN;
+    private double ref = Double.NaN;
+    private double spread = Double.NaN;
+    private double mid = Double.NaN;
+    private double twap = Double.NaN;
+    private double twapPrice = Double.NaN;
+    private long twapNanos;
+    private double variance;
+    private boolean dirty;
+
+    Indicators(int itemPos, String itemName, FieldLayout layout) {
+      this.itemPos = itemPos;
+      this.itemName = itemName;
+      this.quote = new StockQuote(layout);
+    }
+
+    void clear() {
+      quote.clear();
+      ticks = 0;
+      last = bid = ask = ref = spread = mid = twap = twapPrice = Double.NaN;
+      variance = 0;
+    }
+
+    void apply(ItemUpdate update, long nanos, int lastPos, int bidPos, int askPos, int refPos) {
+      long changed = quote.apply(update);
+      ticks++;
+
+      if ((changed & (1L << lastPos)) != 0 && quote.isDecoded(lastPos)) {
+        double price = quote.getDouble(lastPos);
+        if (last > 0 && price > 0) {
+          double r = Math.log(price / last);
+          variance = LAMBDA * variance + (1 - LAMBDA) * r * r;
+        }
+        last = price;
+      }
+      if ((changed & (1L << bidPos)) != 0) {
+        bid = quote.isDecoded(bidPos) ? quote.getDouble(bidPos) : Double.NaN;
+      }
+      if ((changed & (1L << askPos)) != 0) {
+        ask = quote.isDecoded(askPos) ? quote.getDouble(askPos) : Double.NaN;
+      }
+      if ((changed & (1L << refPos)) != 0) {
+        ref = quote.isDecoded(refPos) ? quote.getDouble(refPos) : Double.NaN;
+      }
+      spread = ask - bid;
+      mid = (ask + bid) / 2;
+
+      //the previous price held for the time elapsed since it was set
+      double price = Double.isNaN(mid) ? last : mid;
+      if (Double.isNaN(twap)) {
+        twap = price;
+      } else if (!Double.isNaN(twapPrice)) {
+        double weight = 1 - Math.exp(-(nanos - twapNanos) / TWAP_TAU_NANOS);
+        twap += weight * (twapPrice - twap);
+      }
+      twapPrice = price;
+      twapNanos = nanos;
+    }
+
+    public int getItemPos() {
+      return itemPos;
+    }
+
+    public String getItemName() {
+      return itemName;
+    }
+
+    public long getTicks() {
+      return ticks;
+    }
+
+    public double getLast() {
+      return last;
+    }
+
+    public double getSpread() {
+      return spread;
+    }
+
+    public double getMid() {
+      return mid;
+    }
+
+    public double getTwap() {
+      return twap;
+    }
+
+    /**
+     * @return the EWMA standard deviation of the log returns, per tick
+     */
+    public double getVolatility() {
+      return Math.sqrt(variance);
+    }
+
+    /**
+     * @return the percentage change of the last price against ref_price
+     */
+    public double getChangeVsRef() {
+      return (last - ref) / ref * 100;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(Locale.ROOT,
+          "[analytics] %s ticks=%d last=%.4f spread=%.4f mid=%.4f twap=%.4f vol=%.4f%% chg=%.2f%%",
+          itemName, ticks, last, spread, mid, twap, getVolatility() * 100, getChangeVsRef());
+    }
+  }
+
+  private final FieldLayout layout;
+  private final String[] itemNames;
+  private final Partition[] partitions;
+  private final long publishNanos;
+  private final int lastPos;
+  private final int bidPos;
+  private final int askPos;
+  private final int refPos;
+  private final List<Subscriber> subscribers = new CopyOnWriteArrayList<Subscriber>();
+
+  /**
+   * @param itemNames the items, whose positions range from 1 to itemNames.length
+   * @param publishMillis min interval between two publications of an item
+   */
+  public StockAnalytics(FieldLayout layout, String[] itemNames, int workers, long publishMillis) {
+    if (workers < 1) {
+      throw new IllegalArgumentException("At least one worker is needed");
+    }
+    this.layout = layout;
+    this.itemNames = itemNames.clone();
+    this.publishNanos = TimeUnit.MILLISECONDS.toNanos(publishMillis);
+    this.lastPos = layout.getPosition("last_price");
+    this.bidPos = layout.getPosition("bid");
+    this.askPos = layout.getPosition("ask");
+    this.refPos = layout.getPosition("ref_price");
+    workers = Math.min(workers, Math.max(1, itemNames.length));
+    this.partitions = new Partition[workers];
+    for (int p = 0; p < workers; p++) {
+      partitions[p] = new Partition(p);
+    }
+  }
+
+  public void addSubscriber(Subscriber subscriber) {
+    subscribers.add(subscriber);
+  }
+
+  public void removeSubscriber(Subscriber subscriber) {
+    subscribers.remove(subscriber);
+  }
+
+  public void start() {
+    for (Partition partition : partitions) {
+      partition.thread.start();
+    }
+  }
+
+  public void stop() {
+    for (Partition partition : partitions) {
+      partition.thread.interrupt();
+    }
+  }
+
+  /**
+   * @return the updates processed so far
+   */
+  public long getProcessed() {
+    long processed = 0;
+    for (Partition partition : partitions) {
+      processed += partition.processed.get();
+    }
+    return processed;
+  }
+
+  /**
+   * @param positions engine position of each subscription item position, for
+   * a subscription covering only part of the items; null if they coincide
+   * @return a listener feeding the engine, to be added to a MERGE subscription
+   */
+  public SubscriptionListener input(final int[] positions) {
+    return new Input(positions);
+  }
+
+  private void enqueue(int itemPos, ItemUpdate update) {
+    try {
+      partitions[itemPos % partitions.length].put(itemPos, update, System.nanoTime());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * The items of one worker, with the ring of their pending updates.
+   */
+  private class Partition {
+
+    //ring entries; a null update clears the item
+    private final ItemUpdate[] updates = new ItemUpdate[RING_CAPACITY];
+    private final int[] itemPositions = new int[RING_CAPACITY];
+    private final long[] times = new long[RING_CAPACITY];
+    private int head;
+    private int count;
+
+    private final Indicators[] states;
+    private final int[] dirty;
+    private int dirtyCount;
+    private final AtomicLong processed = new AtomicLong();
+    final Thread thread;
+
+    Partition(final int index) {
+      //item p goes to partition p % partitions
+      int workers = partitions.length;
+      this.states = new Indicators[itemNames.length / workers + 2];
+      this.dirty = new int[states.length];
+      this.thread = new Thread("StockAnalytics worker " + index) {
+        @Override
+        public void run() {
+          process();
+        }
+      };
+      this.thread.setDaemon(true);
+    }
+
+    synchronized void put(int itemPos, ItemUpdate update, long nanos) throws InterruptedException {
+      //blocking when the worker falls behind slows down the event thread, as it would happen without the ring
+      while (count == RING_CAPACITY) {
+        wait();
+      }
+      int tail = (head + count) % RING_CAPACITY;
+      updates[tail] = update;
+      itemPositions[tail] = itemPos;
+      times[tail] = nanos;
+      if (count++ == 0) {
+        notifyAll();
+      }
+    }
+
+    private Indicators state(int itemPos) {
+      int slot = itemPos / partitions.length;
+      Indicators state = states[slot];
+      if (state == null) {
+        state = new Indicators(itemPos, itemNames[itemPos - 1], layout);
+        states[slot] = state;
+      }
+      return state;
+    }
+
+    private void process() {
+      long nextPublish = System.nanoTime() + publishNanos;
+      try {
+        while (true) {
+          ItemUpdate update;
+          int itemPos;
+          long nanos;
+          synchronized (this) {
+            long now = System.nanoTime();
+            while (count == 0 && now < nextPublish) {
+              TimeUnit.NANOSECONDS.timedWait(this, nextPublish - now);
+              now = System.nanoTime();
+            }
+            if (count == 0) {
+              update = null;
+              itemPos = 0;
+              nanos = now;
+            } else {
+              update = updates[head];
+              itemPos = itemPositions[head];
+              nanos = times[head];
+              updates[head] = null;
+              head = (head + 1) % RING_CAPACITY;
+              if (count-- == RING_CAPACITY) {
+                notifyAll();
+              }
+            }
+          }
+
+          if (itemPos > 0) {
+            Indicators state = state(itemPos);
+            if (update == null) {
+              state.clear();
+            } else {
+              state.apply(update, nanos, lastPos, bidPos, askPos, refPos);
+              processed.lazySet(processed.get() + 1);
+              if (!state.dirty) {
+                state.dirty = true;
+                dirty[dirtyCount++] = itemPos / partitions.length;
+              }
+            }
+          }
+
+          if (System.nanoTime() >= nextPublish) {
+            publish();
+            nextPublish = System.nanoTime() + publishNanos;
+          }
+        }
+      } catch (InterruptedException e) {
+        //stopped
+      }
+    }
+
+    private void publish() {
+      for (int i = 0; i < dirtyCount; i++) {
+        Indicators state = states[dirty[i]];
+        state.dirty = false;
+        for (Subscriber subscriber : subscribers) {
+          try {
+            subscriber.onIndicators(state);
+          } catch (RuntimeException e) {
+            System.err.println("Analytics subscriber failed: " + e);
+          }
+        }
+      }
+      dirtyCount = 0;
+    }
+  }
+
+  /**
+   * Feeds the engine with the updates of a MERGE subscription.
+   */
+  private class Input implements SubscriptionListener {
+
+    private final int[] positions;
+
+    Input(int[] positions) {
+      this.positions = positions;
+    }
+
+    private int enginePos(int itemPos) {
+      return positions != null ? positions[itemPos] : itemPos;
+    }
+
+    @Override
+    public void onItemUpdate(ItemUpdate update) {
+      enqueue(enginePos(update.getItemPos()), update);
+    }
+
+    @Override
+    public void onClearSnapshot(String itemName, int itemPos) {
+      enqueue(enginePos(itemPos), null);
+    }
+
+    @Override
+    public void onCommandSecondLevelItemLostUpdates(int lostUpdates, String key) {
+      //not on this subscription
+    }
+
+    @Override
+    public void onCommandSecondLevelSubscriptionError(int code, String message, String key) {
+      //not on this subscription
+    }
+
+    @Override
+    public void onEndOfSnapshot(String itemName, int itemPos) {
+    }
+
+    @Override
+    public void onItemLostUpdates(String itemName, int itemPos, int lostUpdates) {
+      //in MERGE mode the next update carries the current values anyway
+    }
+
+    @Override
+    public void onListenEnd() {
+    }
+
+    @Override
+    public void onListenStart() {
+    }
+
+    @Override
+    public void onSubscription() {
+    }
+
+    @Override
+    public void onSubscriptionError(int code, String message) {
+    }
+
+    @Override
+    public void onUnsubscription() {
+    }
+
+    @Override
+    public void onRealMaxFrequency(String frequency) {
+    }
+  }
+
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package quickstart;
+
+import com.lightstreamer.client.ItemUpdate;
+
+/**
+ * Reusable primitive slots holding the field values of one item, decoded
+ * according to a {@link FieldLayout}.
+ *
+ * DECIMAL fields are kept as doubles, INTEGER fields as longs and TIME fields
+ * as int seconds from midnight; values that cannot be decoded, as well as
+ * TEXT fields, are kept as the original String reference.
+ *
+ * Decoding an update neither creates Maps nor boxes nor builds Strings.
+ * Instances are not thread-safe.
+ */
+public class StockQuote {
+
+  private final FieldLayout layout;
+
+  private final double[] decimals;
+  private final byte[] scales;
+  private final long[] integers;
+  private final int[] times;
+  private final String[] texts;
+
+  private long present = 0;
+  private long decoded = 0;
+
+  public StockQuote(FieldLayout layout) {
+    this.layout = layout;
+    int slots = layout.size() + 1;
+    this.decimals = new double[slots];
+    this.scales = new byte[slots];
+    this.integers = new long[slots];
+    this.times = new int[slots];
+    this.texts = new String[slots];
+  }
+
+  public FieldLayout getLayout() {
+    return layout;
+  }
+
+  /**
+   * Decodes the changed fields of an update into the slots.
+   *
+   * @return the bitmap of the changed positions
+   */
+  public long apply(ItemUpdate update) {
+    long changed = 0;
+    for (int pos = 1; pos <= layout.size(); pos++) {
+      if (update.isValueChanged(pos)) {
+        set(pos, update.getValue(pos));
+        changed |= 1L << pos;
+      }
+    }
+    return changed;
+  }
+
+  /**
+   * Decodes a single value into its slot; a null value clears the slot.
+   */
+  public void set(int pos, String value) {
+    long bit = 1L << pos;
+    texts[pos] = value;
+    if (value == null) {
+      present &= ~bit;
+      decoded &= ~bit;
+      return;
+    }
+    present |= bit;
+    decoded |= bit;
+    switch (layout.getKind(pos)) {
+      case DECIMAL:
+        double d = Decimals.parseDouble(value);
+        if (Double.isNaN(d)) {
+          decoded &= ~bit;
+        } else {
+          decimals[pos] = d;
+          scales[pos] = (byte) Decimals.scale(value);
+        }
+        break;
+      case INTEGER:
+        long l = Decimals.parseLong(value);
+        if (l == Decimals.INVALID_LONG) {
+          decoded &= ~bit;
+        } else {
+          integers[pos] = l;
+        }
+        break;
+      case TIME:
+        int t = Decimals.parseTime(value);
+        if (t == Decimals.INVALID_TIME) {
+          decoded &= ~bit;
+        } else {
+          times[pos] = t;
+        }
+        break;
+      default:
+        decoded &= ~bit;
+    }
+  }
+
+  /**
+   * Copies the selected slots of another quote with the same layout.
+   */
+  public void copyFrom(StockQuote other, long fields) {
+    for (int pos = 1; pos <= layout.size(); pos++) {
+      if ((fields & (1L << pos)) != 0) {
+        decimals[pos] = other.decimals[pos];
+        scales[pos] = other.scales[pos];
+        integers[pos] = other.integers[pos];
+        times[pos] = other.times[pos];
+        texts[pos] = other.texts[pos];
+      }
+    }
+    present = (present & ~fields) | (other.present & fields);
+    decoded = (decoded & ~fields) | (other.decoded & fields);
+  }
+
+  /**
+   * Empties all the slots.
+   */
+  public void clear() {
+    present = 0;
+    decoded = 0;
+    for (int pos = 1; pos <= layout.size(); pos++) {
+      texts[pos] = null;
+    }
+  }
+
+  /**
+   * @return whether the field has a non-null value
+   */
+  public boolean isPresent(int pos) {
+    return (present & (1L << pos)) != 0;
+  }
+
+  /**
+   * @return whether the field has a value decoded into a primitive slot
+   */
+  public boolean isDecoded(int pos) {
+    return (decoded & (1L << pos)) != 0;
+  }
+
+  public double getDouble(int pos) {
+    return decimals[pos];
+  }
+
+  /**
+   * @return the number of decimals the DECIMAL value was received with
+   */
+  public int getScale(int pos) {
+    return scales[pos];
+  }
+
+  public long getLong(int pos) {
+    return integers[pos];
+  }
+
+  /**
+   * @return the TIME value as seconds from midnight
+   */
+  public int getTime(int pos) {
+    return times[pos];
+  }
+
+  /**
+   * @return the original value, which is retained without copies
+   */
+  public String getText(int pos) {
+    return texts[pos];
+  }
+
+  /**
+   * Appends the value of a field as it was received, without creating Strings.
+   */
+  public void appendValue(StringBuilder out, int pos) {
+    if (!isDecoded(pos)) {
+      out.append(texts[pos]);
+      return;
+    }
+    switch (layout.getKind(pos)) {
+      case DECIMAL:
+        Decimals.appendFixed(out, decimals[pos], scales[pos]);
+        break;
+      case INTEGER:
+        out.append(integers[pos]);
+        break;
+      case TIME:
+        Decimals.appendTime(out, times[pos]);
+        break;
+      default:
+        out.append(texts[pos]);
+    }
+  }
+
+}
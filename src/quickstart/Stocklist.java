@@ -15,8 +15,9 @@
  */
 package quickstart;
 
-import java.util.Iterator;
-import java.util.Map.Entry;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CountDownLatch;
 
 import com.lightstreamer.client.ClientListener;
@@ -46,6 +47,24 @@ public class Stocklist {
       "bid_quantity", "bid", "ask", "ask_quantity",
       "min", "max", "ref_price", "open_price"
   };
+  
+  /**
+   * How the fields are decoded into primitive slots
+   */
+  static final FieldLayout layout = new FieldLayout(fields)
+      .with(FieldLayout.Kind.DECIMAL, "last_price", "pct_change", "bid", "ask", "min", "max", "ref_price", "open_price")
+      .with(FieldLayout.Kind.INTEGER, "bid_quantity", "ask_quantity")
+      .with(FieldLayout.Kind.TIME, "time");
+
+  /**
+   * Latest values of all the items, readable from any thread
+   */
+  private final QuoteBook quoteBook = new QuoteBook(layout, items.length);
+  
+  /**
+   * Every tick received, kept off the heap, if configured
+   */
+  private TickCapture tickCapture;
 
   public static void main(String[] args) {
     final String serverAddress = args[0];
@@ -59,27 +78,99 @@ public class Stocklist {
   }
 
   void start(String serverAddress) {
-    LightstreamerClient client = new LightstreamerClient(serverAddress, "DEMO");
+    LightstreamerClient client = ConnectionProfile.configure(new LightstreamerClient(serverAddress, "DEMO"));
     
     ClientListener clientListener = new SystemOutClientListener();
     client.addListener(clientListener);
+    RecoveryTracker recovery = RecoveryTracker.attachIfConfigured(client, "stocklist");
     
-    Subscription sub = new Subscription("MERGE", items, fields);
-    sub.setRequestedSnapshot("yes");
-    sub.setDataAdapter("QUOTE_ADAPTER");
+    Subscription sub = newSubscription();
     
-    SubscriptionListener subListener = new SystemOutSubscriptionListener();
-    sub.addListener(subListener);
+    SystemOutSubscriptionListener systemOutListener = new SystemOutSubscriptionListener();
+    SubscriptionListener subListener = ConflatingDispatcher.wrapIfConfigured(systemOutListener, systemOutListener, layout, items.length);
+    subListener = InstrumentedSubscriptionListener.wrapIfConfigured(
+        subListener, "stocklist", InstrumentedSubscriptionListener.timeOfDay("time"));
+    subListener = AdaptiveFrequencyController.wrapIfConfigured(client, sub, subListener, "stocklist");
+    QuoteBook.Feeder feeder = new QuoteBook.Feeder(quoteBook);
+    if (recovery != null) {
+      //after a reconnection, the console and the book only get what changed in the meantime
+      sub.addListener(recovery.reconcile(sub, subListener, feeder));
+    } else {
+      sub.addListener(subListener);
+      sub.addListener(feeder);
+    }
+    UpdateRecorder.attachIfConfigured(sub, "stocklist");
+    SoakMonitor.attachIfConfigured(sub, "stocklist");
+    tickCapture = TickCapture.attachIfConfigured(sub, layout, ConsoleSink.getDefault());
+    SharedQuoteRing.attachIfConfigured(sub, layout);
+    StockAnalytics analytics = StockAnalytics.startIfConfigured(items, ConsoleSink.getDefault());
+    if (analytics != null) {
+      sub.addListener(analytics.input(null));
+    }
     
     client.subscribe(sub);
     client.connect();
   }
   
-  private static class SystemOutSubscriptionListener implements SubscriptionListener {
+  /**
+   * @return the subscription of the example, with no listeners
+   */
+  static Subscription newSubscription() {
+    Subscription sub = new Subscription("MERGE", items, fields);
+    sub.setRequestedSnapshot("yes");
+    sub.setDataAdapter("QUOTE_ADAPTER");
+    return sub;
+  }
+  
+  QuoteBook getQuoteBook() {
+    return quoteBook;
+  }
+  
+  /**
+   * @return the tick capture, or null if not configured
+   */
+  TickCapture getTickCapture() {
+    return tickCapture;
+  }
+  
+  public static class SystemOutSubscriptionListener implements SubscriptionListener, ConflatingDispatcher.Consumer {
+
+    private final ConsoleSink console;
+    
+    //per-item slots, indexed by item position, only touched by the event thread
+    private StockQuote[] quotes = new StockQuote[items.length + 1];
+    
+    //records handed back by the console once written, so that no garbage is produced in steady state;
+    //it is sized on the records normally in flight, not on the console capacity, as many listeners
+    //may share a console: records beyond it are allocated when needed and then left to the GC
+    private final BlockingQueue<UpdateRecord> pool;
+
+    public SystemOutSubscriptionListener() {
+      this(ConsoleSink.getDefault());
+    }
+
+    public SystemOutSubscriptionListener(ConsoleSink console) {
+      this.console = console;
+      this.pool = new ArrayBlockingQueue<UpdateRecord>(
+          Math.max(1, Math.min(Integer.getInteger("quickstart.stocklist.pool", 256), console.getCapacity())));
+    }
+    
+    private StockQuote getQuote(int itemPos) {
+      if (itemPos >= quotes.length) {
+        StockQuote[] larger = new StockQuote[itemPos + 1];
+        System.arraycopy(quotes, 0, larger, 0, quotes.length);
+        quotes = larger;
+      }
+      if (quotes[itemPos] == null) {
+        quotes[itemPos] = new StockQuote(layout);
+      }
+      return quotes[itemPos];
+    }
 
     @Override
     public void onClearSnapshot(String itemName, int itemPos) {
-      System.out.println("Server has cleared the current status of the chat");
+      getQuote(itemPos).clear();
+      console.println("Server has cleared the current status of the chat");
     }
   
     @Override
@@ -94,58 +185,152 @@ public class Stocklist {
   
     @Override
     public void onEndOfSnapshot(String arg0, int arg1) {
-      System.out.println("Snapshot is now fully received, from now on only real-time messages will be received");
+      console.println("Snapshot is now fully received, from now on only real-time messages will be received");
     }
   
     @Override
     public void onItemLostUpdates(String itemName, int itemPos, int lostUpdates) {
-      System.out.println(lostUpdates + " messages were lost");
+      console.println(lostUpdates + " messages were lost");
     }
     
     @Override
     public void onItemUpdate(ItemUpdate update) {
-      
-      System.out.println("====UPDATE====> " + update.getItemName());
-      
-      Iterator<Entry<String,String>> changedValues = update.getChangedFields().entrySet().iterator();
-      while(changedValues.hasNext()) {
-        Entry<String,String> field = changedValues.next();
-        System.out.println("Field " + field.getKey() + " changed: " + field.getValue());
+      StockQuote quote = getQuote(update.getItemPos());
+      long changed = quote.apply(update);
+      publish(update.getItemName(), quote, changed);
+    }
+    
+    @Override
+    public void onConflatedUpdate(String itemName, int itemPos, StockQuote quote, long changed) {
+      //the dispatcher keeps the item state, hence the per-item slots are not used
+      publish(itemName, quote, changed);
+    }
+    
+    private void publish(String itemName, StockQuote quote, long changed) {
+      UpdateRecord record = pool.poll();
+      if (record == null) {
+        record = new UpdateRecord(pool);
       }
+      record.set(itemName, quote, changed);
       
-      System.out.println("<====UPDATE====");
+      //formatting and printing are left to the console writer thread
+      console.submit(record);
     }
   
     @Override
     public void onListenEnd() {
-      System.out.println("Stop listeneing to subscription events");
+      console.println("Stop listeneing to subscription events");
     }
   
     @Override
     public void onListenStart() {
-      System.out.println("Start listeneing to subscription events");
+      console.println("Start listeneing to subscription events");
     }
   
     @Override
     public void onSubscription() {
-      System.out.println("Now subscribed to the chat item, messages will now start coming in");
+      console.println("Now subscribed to the chat item, messages will now start coming in");
     }
   
     @Override
     public void onSubscriptionError(int code, String message) {
-      System.out.println("Cannot subscribe because of error " + code + ": " + message); 
+      console.println("Cannot subscribe because of error " + code + ": " + message); 
     }
   
     @Override
     public void onUnsubscription() {
-      System.out.println("Now unsubscribed from chat item, no more messages will be received");
+      console.println("Now unsubscribed from chat item, no more messages will be received");
     }
     
     @Override
     public void onRealMaxFrequency(String frequency) {
-        System.out.println("Frequency is " + frequency);
+        console.println("Frequency is " + frequency);
     }
     
   }
+  
+  /**
+   * The changed fields of an item; if the console falls behind, successive
+   * updates for the same item are merged into the latest values.
+   * Records are pooled and carry a private copy of the changed slots.
+   */
+  private static class UpdateRecord extends ConsoleSink.Record {
+
+    private final BlockingQueue<UpdateRecord> pool;
+    private final StockQuote quote = new StockQuote(layout);
+    private String itemName;
+    private long changed;
+
+    UpdateRecord(BlockingQueue<UpdateRecord> pool) {
+      this.pool = pool;
+    }
+
+    void set(String itemName, StockQuote source, long changed) {
+      this.itemName = itemName;
+      this.changed = changed;
+      quote.copyFrom(source, changed);
+    }
+
+    @Override
+    protected Object coalesceKey() {
+      return itemName;
+    }
+
+    @Override
+    protected void absorb(ConsoleSink.Record newer) {
+      UpdateRecord record = (UpdateRecord) newer;
+      quote.copyFrom(record.quote, record.changed);
+      changed |= record.changed;
+    }
+
+    @Override
+    protected void render(StringBuilder out) {
+      out.append("====UPDATE====> ").append(itemName).append('\n');
+      for (int pos = 1; pos <= layout.size(); pos++) {
+        if ((changed & (1L << pos)) != 0) {
+          out.append("Field ").append(layout.getName(pos)).append(" changed: ");
+          quote.appendValue(out, pos);
+          out.append('\n');
+        }
+      }
+      out.append("<====UPDATE====").append('\n');
+    }
+
+    @Override
+    protected void encode(OutputEncoder out, StringBuilder scratch) throws IOException {
+      out.begin(OutputEncoder.Type.STOCK);
+      out.string("item", itemName);
+      out.integer("changed", changed);
+      for (int pos = 1; pos <= layout.size(); pos++) {
+        if ((changed & (1L << pos)) == 0) {
+          continue;
+        }
+        String name = layout.getName(pos);
+        if (!quote.isDecoded(pos)) {
+          out.string(name, quote.getText(pos));
+          continue;
+        }
+        switch (layout.getKind(pos)) {
+          case DECIMAL:
+            out.decimal(name, quote.getDouble(pos), quote.getScale(pos));
+            break;
+          case INTEGER:
+            out.integer(name, quote.getLong(pos));
+            break;
+          default:
+            //TIME values are kept in the HH:mm:ss form they are received with
+            out.string(name, quote.getText(pos));
+        }
+      }
+      out.end();
+    }
+
+    @Override
+    protected void recycle() {
+      itemName = null;
+      quote.clear();
+      pool.offer(this);
+    }
+  }
 
 }
@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package quickstart;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.lightstreamer.client.ItemUpdate;
+
+/**
+ * An ItemUpdate built from plain arrays, used to drive the quickstart
+ * listeners without a Lightstreamer Server (benchmarks, replays).
+ *
+ * Field values are given in position order and the changed fields as a
+ * bitmap where bit pos stands for the field at 1-based position pos.
+ * The by-name and Map accessors are only meant for convenience and are
+ * not optimized.
+ */
+public class SyntheticItemUpdate implements ItemUpdate {
+
+  private final String itemName;
+  private final int itemPos;
+  private final String[] fieldNames;
+  private final String[] values;
+  private final long changed;
+  private final boolean snapshot;
+
+  public SyntheticItemUpdate(String itemName, int itemPos, String[] fieldNames, String[] values, long changed, boolean snapshot) {
+    if (values.length != fieldNames.length) {
+      throw new IllegalArgumentException("One value per field is needed");
+    }
+    this.itemName = itemName;
+    this.itemPos = itemPos;
+    this.fieldNames = fieldNames;
+    this.values = values;
+    this.changed = changed;
+    this.snapshot = snapshot;
+  }
+
+  private int positionOf(String fieldName) {
+    for (int i = 0; i < fieldNames.length; i++) {
+      if (fieldNames[i].equals(fieldName)) {
+        return i + 1;
+      }
+    }
+    throw new IllegalArgumentException("Unknown field " + fieldName);
+  }
+
+  private void checkPosition(int fieldPos) {
+    if (fieldPos < 1 || fieldPos > values.length) {
+      throw new IllegalArgumentException("Field position out of range: " + fieldPos);
+    }
+  }
+
+  @Override
+  public String getItemName() {
+    return itemName;
+  }
+
+  @Override
+  public int getItemPos() {
+    return itemPos;
+  }
+
+  @Override
+  public boolean isSnapshot() {
+    return snapshot;
+  }
+
+  @Override
+  public String getValue(String fieldName) {
+    return values[positionOf(fieldName) - 1];
+  }
+
+  @Override
+  public String getValue(int fieldPos) {
+    checkPosition(fieldPos);
+    return values[fieldPos - 1];
+  }
+
+  @Override
+  public boolean isValueChanged(String fieldName) {
+    return isValueChanged(positionOf(fieldName));
+  }
+
+  @Override
+  public boolean isValueChanged(int fieldPos) {
+    checkPosition(fieldPos);
+    return (changed & (1L << fieldPos)) != 0;
+  }
+
+  @Override
+  public Map<String, String> getChangedFields() {
+    Map<String, String> result = new LinkedHashMap<String, String>();
+    for (int pos = 1; pos <= values.length; pos++) {
+      if (isValueChanged(pos)) {
+        result.put(fieldNames[pos - 1], values[pos - 1]);
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public Map<Integer, String> getChangedFieldsByPosition() {
+    Map<Integer, String> result = new LinkedHashMap<Integer, String>();
+    for (int pos = 1; pos <= values.length; pos++) {
+      if (isValueChanged(pos)) {
+        result.put(pos, values[pos - 1]);
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public Map<String, String> getFields() {
+    Map<String, String> result = new LinkedHashMap<String, String>();
+    for (int pos = 1; pos <= values.length; pos++) {
+      result.put(fieldNames[pos - 1], values[pos - 1]);
+    }
+    return result;
+  }
+
+  @Override
+  public Map<Integer, String> getFieldsByPosition() {
+    Map<Integer, String> result = new LinkedHashMap<Integer, String>();
+    for (int pos = 1; pos <= values.length; pos++) {
+      result.put(pos, values[pos - 1]);
+    }
+    return result;
+  }
+
+  /**
+   * @return the bitmap of the changed positions
+   */
+  public long getChangedBitmap() {
+    return changed;
+  }
+
+}
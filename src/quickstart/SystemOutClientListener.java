@@ -20,30 +20,40 @@ import com.lightstreamer.client.LightstreamerClient;
 
 public class SystemOutClientListener implements ClientListener {
 
+    private final ConsoleSink console;
+
+    public SystemOutClientListener() {
+      this(ConsoleSink.getDefault());
+    }
+
+    public SystemOutClientListener(ConsoleSink console) {
+      this.console = console;
+    }
+
     @Override
     public void onListenEnd() {
-      System.out.println("Stops listening to client events"); 
+      console.println("Stops listening to client events"); 
     }
 
     @Override
     public void onListenStart() {
-      System.out.println("Start listening to client events");
+      console.println("Start listening to client events");
       
     }
 
     @Override
     public void onPropertyChange(String property) {
-      System.out.println("Client property changed: " + property);
+      console.println("Client property changed: " + property);
     }
 
     @Override
     public void onServerError(int code, String message) {
-      System.out.println("Server error: " + code + ": " + message);
+      console.println("Server error: " + code + ": " + message);
     }
 
     @Override
     public void onStatusChange(String newStatus) {
-      System.out.println("Connection status changed to " + newStatus);
+      console.println("Connection status changed to " + newStatus);
     }
 
   
@@ -0,0 +1,564 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package quickstart;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.lightstreamer.client.ItemUpdate;
+import com.lightstreamer.client.Subscription;
+import com.lightstreamer.client.SubscriptionListener;
+
+/**
+ * Keeps every tick of the Stocklist subscription off the heap, for intraday
+ * analytics.
+ *
+ * Each tick is a row of seven columns: the arrival time in milliseconds, the
+ * time field (seconds from midnight), last_price, bid, ask (unscaled, with
+ * {@link #PRICE_SCALE} decimals), bid_quantity and ask_quantity. Fields not
+ * carried by an update keep their previous value.
+ *
+ * The ticks of each item are stored in a sequence of segments, each holding
+ * one fixed-size region per column, in a direct buffer or in a memory-mapped
+ * file. Every value is written as the zigzag varint of its difference from
+ * the previous value of the same column in the segment, hence an unchanged
+ * field takes one byte. When a region is full a new segment is started, and
+ * the oldest segments are dropped beyond a configurable number.
+ *
+ * A segment is written by the client event thread only; the number of rows is
+ * published after the row bytes, so that any number of threads can scan the
+ * ticks concurrently through {@link #scan(int, long, long, TickVisitor)} and
+ * {@link #aggregate(int, long, long, Window)}, which decode the columns in
+ * place without creating objects per tick.
+ *
+ * Capture is enabled by the quickstart.capture system property, set to a
+ * directory for memory-mapped segments or to "memory" for direct buffers;
+ * the segments of the items left in the directory by a previous capture are
+ * removed at startup, as numbering starts again from 1;
+ * quickstart.capture.segments sets the segments kept per item (256 by
+ * default) and quickstart.capture.report the period, in seconds, of a console
+ * summary of the last minute of each item.
+ */
+public class TickCapture implements SubscriptionListener {
+
+  public static final int PRICE_SCALE = 4;
+  private static final double PRICE_UNIT = 10000.0;
+
+  static final int ARRIVAL = 0;
+  static final int TIME = 1;
+  static final int LAST = 2;
+  static final int BID = 3;
+  static final int ASK = 4;
+  static final int BID_QUANTITY = 5;
+  static final int ASK_QUANTITY = 6;
+  private static final int COLUMNS = 7;
+
+  private static final String[] FIELDS = {
+      null, "time", "last_price", "bid", "ask", "bid_quantity", "ask_quantity"
+  };
+
+  private static final int MAGIC = 0x4C535443;
+  private static final int HEADER = 16;
+  private static final int COLUMN_SIZE = 16 << 10;
+  private static final int MAX_VARINT = 10;
+
+  /**
+   * Receives the ticks of a scan; prices are unscaled, see {@link #toPrice(long)}.
+   */
+  public interface TickVisitor {
+    void onTick(long arrivalMillis, int time, long lastPrice, long bid, long ask, long bidQuantity, long askQuantity);
+  }
+
+  /**
+   * Adds a capture to the Stocklist subscription if the quickstart.capture
+   * system property is set.
+   *
+   * @return the capture, or null if not configured
+   */
+  static TickCapture attachIfConfigured(Subscription sub, FieldLayout layout, ConsoleSink console) {
+    String target = System.getProperty("quickstart.capture");
+    if (target == null) {
+      return null;
+    }
+    File dir = target.equals("memory") ? null : new File(target);
+    TickCapture capture;
+    try {
+      capture = new TickCapture(layout, sub.getItems(), dir == null ? null : dir.toPath(),
+          Integer.getInteger("quickstart.capture.segments", 256));
+    } catch (IOException e) {
+      System.err.println("Cannot capture the ticks in " + target + ": " + e.getMessage());
+      return null;
+    }
+    sub.addListener(capture);
+    Long period = Long.getLong("quickstart.capture.report");
+    if (period != null) {
+      capture.startReports(console, period);
+    }
+    return capture;
+  }
+
+  private static class Segment {
+    final ByteBuffer buffer;
+    final Path path;
+    final long firstArrival;
+    //written by the event thread only
+    final int[] offsets = new int[COLUMNS];
+    final long[] base = new long[COLUMNS];
+    //published after the row bytes
+    volatile int rows;
+    volatile long lastArrival;
+
+    Segment(ByteBuffer buffer, Path path, long firstArrival) {
+      this.buffer = buffer;
+      this.path = path;
+      this.firstArrival = firstArrival;
+      for (int c = 0; c < COLUMNS; c++) {
+        offsets[c] = HEADER + c * COLUMN_SIZE;
+      }
+      buffer.putInt(0, MAGIC);
+      buffer.putInt(4, 0);
+      buffer.putLong(8, firstArrival);
+    }
+
+    boolean hasRoom() {
+      for (int c = 0; c < COLUMNS; c++) {
+        if (offsets[c] + MAX_VARINT > HEADER + (c + 1) * COLUMN_SIZE) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  private class Item {
+    final int itemPos;
+    final StockQuote quote = new StockQuote(layout);
+    final long[] values = new long[COLUMNS];
+    volatile Segment[] segments = new Segment[0];
+    int sequence;
+
+    Item(int itemPos) {
+      this.itemPos = itemPos;
+    }
+  }
+
+  private final FieldLayout layout;
+  private final String[] itemNames;
+  private final Path dir;
+  private final int maxSegments;
+  private final int[] positions = new int[COLUMNS];
+  private final Item[] items;
+
+  /**
+   * @param dir where the segment files are created, or null for direct buffers
+   * @param maxSegments segments kept per item
+   */
+  public TickCapture(FieldLayout layout, String[] itemNames, Path dir, int maxSegments) throws IOException {
+    this.layout = layout;
+    this.itemNames = itemNames;
+    this.dir = dir;
+    this.maxSegments = Math.max(1, maxSegments);
+    for (int c = 1; c < COLUMNS; c++) {
+      positions[c] = layout.getPosition(FIELDS[c]);
+    }
+    this.items = new Item[itemNames.length + 1];
+    for (int i = 1; i < items.length; i++) {
+      items[i] = new Item(i);
+    }
+    if (dir != null) {
+      Files.createDirectories(dir);
+      int removed = removePreviousSegments();
+      if (removed > 0) {
+        System.err.println("Removed " + removed + " tick segments of a previous capture from " + dir);
+      }
+    }
+  }
+
+  /**
+   * @return the number of segment files of the items removed
+   */
+  private int removePreviousSegments() throws IOException {
+    int removed = 0;
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*.ticks")) {
+      for (Path path : stream) {
+        String name = path.getFileName().toString();
+        int dash = name.lastIndexOf('-');
+        if (dash > 0 && isItem(name.substring(0, dash)) && name.matches(".*-\\d{8}\\.ticks")) {
+          Files.delete(path);
+          removed++;
+        }
+      }
+    }
+    return removed;
+  }
+
+  private boolean isItem(String name) {
+    for (String itemName : itemNames) {
+      if (itemName.equals(name)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public static double toPrice(long unscaled) {
+    return unscaled / PRICE_UNIT;
+  }
+
+  public int getItemCount() {
+    return items.length - 1;
+  }
+
+  public String getItemName(int itemPos) {
+    return itemNames[itemPos - 1];
+  }
+
+  @Override
+  public void onItemUpdate(ItemUpdate update) {
+    Item item = items[update.getItemPos()];
+    StockQuote quote = item.quote;
+    long changed = quote.apply(update);
+    long[] values = item.values;
+    values[ARRIVAL] = System.currentTimeMillis();
+    for (int c = 1; c < COLUMNS; c++) {
+      int pos = positions[c];
+      if ((changed & (1L << pos)) == 0 || !quote.isDecoded(pos)) {
+        //not carried, or not decodable: the previous value is kept
+        continue;
+      }
+      switch (c) {
+        case TIME:
+          values[c] = quote.getTime(pos);
+          break;
+        case BID_QUANTITY:
+        case ASK_QUANTITY:
+          values[c] = quote.getLong(pos);
+          break;
+        default:
+          values[c] = Math.round(quote.getDouble(pos) * PRICE_UNIT);
+      }
+    }
+    try {
+      append(item);
+    } catch (IOException e) {
+      System.err.println("Cannot capture the ticks of " + getItemName(item.itemPos) + ": " + e.getMessage());
+    }
+  }
+
+  private void append(Item item) throws IOException {
+    Segment[] segments = item.segments;
+    Segment segment = segments.length == 0 ? null : segments[segments.length - 1];
+    if (segment == null || !segment.hasRoom()) {
+      segment = roll(item);
+    }
+    ByteBuffer buffer = segment.buffer;
+    for (int c = 0; c < COLUMNS; c++) {
+      long delta = item.values[c] - segment.base[c];
+      segment.base[c] = item.values[c];
+      segment.offsets[c] = putVarint(buffer, segment.offsets[c], (delta << 1) ^ (delta >> 63));
+    }
+    int rows = segment.rows + 1;
+    buffer.putInt(4, rows);
+    segment.lastArrival = item.values[ARRIVAL];
+    segment.rows = rows;
+  }
+
+  private Segment roll(Item item) throws IOException {
+    ByteBuffer buffer;
+    Path path = null;
+    int size = HEADER + COLUMNS * COLUMN_SIZE;
+    if (dir == null) {
+      buffer = ByteBuffer.allocateDirect(size);
+    } else {
+      path = dir.resolve(String.format("%s-%08d.ticks", getItemName(item.itemPos), ++item.sequence));
+      try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+          StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+      }
+    }
+    Segment segment = new Segment(buffer, path, item.values[ARRIVAL]);
+
+    //copy on write, so that scans can go on with the previous array
+    Segment[] segments = item.segments;
+    int keep = Math.min(segments.length, maxSegments - 1);
+    Segment[] next = new Segment[keep + 1];
+    System.arraycopy(segments, segments.length - keep, next, 0, keep);
+    next[keep] = segment;
+    item.segments = next;
+    for (int i = 0; i < segments.length - keep; i++) {
+      //the mapping of a dropped segment stays valid for the scans in progress
+      if (segments[i].path != null) {
+        Files.deleteIfExists(segments[i].path);
+      }
+    }
+    return segment;
+  }
+
+  private static int putVarint(ByteBuffer buffer, int offset, long value) {
+    while ((value & ~0x7FL) != 0) {
+      buffer.put(offset++, (byte) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    buffer.put(offset++, (byte) value);
+    return offset;
+  }
+
+  /**
+   * Delivers, in arrival order, the ticks of an item arrived in the given
+   * interval, bounds included.
+   *
+   * @return the number of ticks delivered
+   */
+  public int scan(int itemPos, long fromMillis, long toMillis, TickVisitor visitor) {
+    Segment[] segments = items[itemPos].segments;
+    int[] offsets = new int[COLUMNS];
+    long[] values = new long[COLUMNS];
+    int delivered = 0;
+    for (Segment segment : segments) {
+      int rows = segment.rows;
+      if (rows == 0 || segment.firstArrival > toMillis || segment.lastArrival < fromMillis) {
+        continue;
+      }
+      ByteBuffer buffer = segment.buffer;
+      for (int c = 0; c < COLUMNS; c++) {
+        offsets[c] = HEADER + c * COLUMN_SIZE;
+        values[c] = 0;
+      }
+      for (int r = 0; r < rows; r++) {
+        for (int c = 0; c < COLUMNS; c++) {
+          //inlined varint decoding, keeping the offset of each column
+          long raw = 0;
+          int shift = 0;
+          int offset = offsets[c];
+          byte b;
+          do {
+            b = buffer.get(offset++);
+            raw |= (long) (b & 0x7F) << shift;
+            shift += 7;
+          } while ((b & 0x80) != 0);
+          offsets[c] = offset;
+          values[c] += (raw >>> 1) ^ -(raw & 1);
+        }
+        long arrival = values[ARRIVAL];
+        if (arrival > toMillis) {
+          break;
+        }
+        if (arrival >= fromMillis) {
+          visitor.onTick(arrival, (int) values[TIME], values[LAST], values[BID], values[ASK],
+              values[BID_QUANTITY], values[ASK_QUANTITY]);
+          delivered++;
+        }
+      }
+    }
+    return delivered;
+  }
+
+  /**
+   * Computes the figures of the last price of an item over the ticks arrived
+   * in the given interval.
+   *
+   * @return the same window, for chaining
+   */
+  public Window aggregate(int itemPos, long fromMillis, long toMillis, Window into) {
+    into.reset();
+    scan(itemPos, fromMillis, toMillis, into);
+    return into;
+  }
+
+  /**
+   * Figures of the last price over a set of ticks; reusable.
+   *
+   * The feed carries no traded volume, hence the volume-weighted average
+   * price is weighted by the quoted size, i.e. bid plus ask quantity.
+   */
+  public static class Window implements TickVisitor {
+
+    private int count;
+    private long first;
+    private long last;
+    private long min;
+    private long max;
+    private double weightedSum;
+    private long weights;
+
+    void reset() {
+      count = 0;
+      min = Long.MAX_VALUE;
+      max = Long.MIN_VALUE;
+      weightedSum = 0;
+      weights = 0;
+    }
+
+    @Override
+    public void onTick(long arrivalMillis, int time, long lastPrice, long bid, long ask, long bidQuantity, long askQuantity) {
+      if (count == 0) {
+        first = lastPrice;
+      }
+      count++;
+      last = lastPrice;
+      min = Math.min(min, lastPrice);
+      max = Math.max(max, lastPrice);
+      long weight = bidQuantity + askQuantity;
+      weightedSum += (double) lastPrice * weight;
+      weights += weight;
+    }
+
+    public int getCount() {
+      return count;
+    }
+
+    public double getFirst() {
+      return toPrice(first);
+    }
+
+    public double getLast() {
+      return toPrice(last);
+    }
+
+    public double getMin() {
+      return toPrice(min);
+    }
+
+    public double getMax() {
+      return toPrice(max);
+    }
+
+    /**
+     * @return the average last price weighted by the quoted size, or NaN if there is no weight
+     */
+    public double getVwap() {
+      return weights == 0 ? Double.NaN : weightedSum / weights / PRICE_UNIT;
+    }
+  }
+
+  /**
+   * @return the bytes taken by the rows of an item, over the segments kept;
+   * approximate while the item is being written
+   */
+  public long getStoredBytes(int itemPos) {
+    long bytes = 0;
+    for (Segment segment : items[itemPos].segments) {
+      for (int c = 0; c < COLUMNS; c++) {
+        bytes += segment.offsets[c] - (HEADER + c * COLUMN_SIZE);
+      }
+    }
+    return bytes;
+  }
+
+  /**
+   * @return the ticks of an item over the segments kept
+   */
+  public long getTickCount(int itemPos) {
+    long ticks = 0;
+    for (Segment segment : items[itemPos].segments) {
+      ticks += segment.rows;
+    }
+    return ticks;
+  }
+
+  /**
+   * Prints the figures of the last minute of each item every period seconds.
+   */
+  public void startReports(final ConsoleSink console, long periodSeconds) {
+    ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "TickCapture reporter");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    reporter.scheduleAtFixedRate(new Runnable() {
+      private final Window window = new Window();
+
+      @Override
+      public void run() {
+        long now = System.currentTimeMillis();
+        for (int itemPos = 1; itemPos < items.length; itemPos++) {
+          aggregate(itemPos, now - TimeUnit.MINUTES.toMillis(1), now, window);
+          if (window.getCount() == 0) {
+            continue;
+          }
+          console.println(String.format(Locale.ROOT,
+              "[capture] %s ticks=%d (%d bytes) last 1m: n=%d vwap=%.4f min=%.4f max=%.4f last=%.4f",
+              getItemName(itemPos), getTickCount(itemPos), getStoredBytes(itemPos), window.getCount(),
+              window.getVwap(), window.getMin(), window.getMax(), window.getLast()));
+        }
+      }
+    }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+  }
+
+  @Override
+  public void onClearSnapshot(String itemName, int itemPos) {
+    //the captured ticks are history, they are kept
+    items[itemPos].quote.clear();
+  }
+
+  @Override
+  public void onCommandSecondLevelItemLostUpdates(int lostUpdates, String key) {
+    //not on this subscription
+  }
+
+  @Override
+  public void onCommandSecondLevelSubscriptionError(int code, String message, String key) {
+    //not on this subscription
+  }
+
+  @Override
+  public void onEndOfSnapshot(String itemName, int itemPos) {
+  }
+
+  @Override
+  public void onItemLostUpdates(String itemName, int itemPos, int lostUpdates) {
+    //in MERGE mode the next update carries the current values anyway
+  }
+
+  @Override
+  public void onListenEnd() {
+  }
+
+  @Override
+  public void onListenStart() {
+  }
+
+  @Override
+  public void onSubscription() {
+  }
+
+  @Override
+  public void onSubscriptionError(int code, String message) {
+  }
+
+  @Override
+  public void onUnsubscription() {
+  }
+
+  @Override
+  public void onRealMaxFrequency(String frequency) {
+  }
+
+}
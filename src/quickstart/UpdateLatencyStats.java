@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package quickstart;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * HdrHistograms of the timings of the updates delivered to a listener:
+ * inter-arrival time per item, listener service time and, when the payload
+ * carries a timestamp, source-to-consumer latency. All values are recorded
+ * in nanoseconds.
+ *
+ * Recording is wait-free and can happen on any thread; percentiles can be
+ * dumped periodically on the console and are exposed through JMX under
+ * quickstart:type=UpdateLatency,name=&lt;name&gt;.
+ */
+public class UpdateLatencyStats implements UpdateLatencyStatsMBean {
+
+  private static final long HIGHEST_NANOS = TimeUnit.HOURS.toNanos(1);
+
+  private static final ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "UpdateLatencyStats dumper");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  private final String name;
+  private final AtomicLong updates = new AtomicLong();
+
+  private final Recorder serviceTime = new Recorder(HIGHEST_NANOS, 3);
+  private final Recorder interArrival = new Recorder(HIGHEST_NANOS, 3);
+  private final Recorder sourceLatency = new Recorder(HIGHEST_NANOS, 3);
+
+  //guarded by this
+  private final Histogram[] totals = {new Histogram(HIGHEST_NANOS, 3), new Histogram(HIGHEST_NANOS, 3), new Histogram(HIGHEST_NANOS, 3)};
+  private final Histogram[] sinceDump = {new Histogram(HIGHEST_NANOS, 3), new Histogram(HIGHEST_NANOS, 3), new Histogram(HIGHEST_NANOS, 3)};
+  private final Histogram[] intervals = new Histogram[3];
+
+  public UpdateLatencyStats(String name) {
+    this.name = name;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  private static long clamp(long nanos) {
+    return Math.max(0, Math.min(HIGHEST_NANOS, nanos));
+  }
+
+  public void recordServiceTime(long nanos) {
+    updates.incrementAndGet();
+    serviceTime.recordValue(clamp(nanos));
+  }
+
+  public void recordInterArrival(long nanos) {
+    interArrival.recordValue(clamp(nanos));
+  }
+
+  /**
+   * Negative latencies, due to clock differences, are recorded as 0.
+   */
+  public void recordSourceLatency(long nanos) {
+    sourceLatency.recordValue(clamp(nanos));
+  }
+
+  /**
+   * Moves the values recorded so far into the cumulative histograms.
+   */
+  private synchronized void collect() {
+    Recorder[] recorders = {serviceTime, interArrival, sourceLatency};
+    for (int i = 0; i < recorders.length; i++) {
+      intervals[i] = recorders[i].getIntervalHistogram(intervals[i]);
+      totals[i].add(intervals[i]);
+      sinceDump[i].add(intervals[i]);
+    }
+  }
+
+  /**
+   * @return a one-line summary of the values recorded since the previous
+   * call, which then starts a new period
+   */
+  public synchronized String dump() {
+    collect();
+    String line = String.format(Locale.ROOT,
+        "[latency %s] updates=%d service(us) p50=%.1f p99=%.1f p99.9=%.1f max=%.1f"
+        + " | inter-arrival(ms) p50=%.2f p99=%.2f max=%.2f | source(ms) n=%d p50=%.1f p99=%.1f max=%.1f",
+        name, sinceDump[0].getTotalCount(),
+        micros(sinceDump[0], 50), micros(sinceDump[0], 99), micros(sinceDump[0], 99.9), micros(sinceDump[0], 100),
+        millis(sinceDump[1], 50), millis(sinceDump[1], 99), millis(sinceDump[1], 100),
+        sinceDump[2].getTotalCount(), millis(sinceDump[2], 50), millis(sinceDump[2], 99), millis(sinceDump[2], 100));
+    for (Histogram histogram : sinceDump) {
+      histogram.reset();
+    }
+    return line;
+  }
+
+  private static double micros(Histogram histogram, double percentile) {
+    return value(histogram, percentile) / 1000.0;
+  }
+
+  private static double millis(Histogram histogram, double percentile) {
+    return value(histogram, percentile) / 1000000.0;
+  }
+
+  private static long value(Histogram histogram, double percentile) {
+    if (histogram.getTotalCount() == 0) {
+      return 0;
+    }
+    return percentile >= 100 ? histogram.getMaxValue() : histogram.getValueAtPercentile(percentile);
+  }
+
+  /**
+   * Prints a summary on the console every period seconds.
+   */
+  public void startDumps(final ConsoleSink console, long periodSeconds) {
+    dumper.scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        console.println(dump());
+      }
+    }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Registers this object in the platform MBean server.
+   */
+  public void registerMBean() {
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+          new ObjectName("quickstart:type=UpdateLatency,name=" + ObjectName.quote(name)));
+    } catch (JMException e) {
+      System.err.println("Cannot register the latency MBean for " + name + ": " + e.getMessage());
+    }
+  }
+
+  private synchronized double total(int index, double percentile, double unit) {
+    collect();
+    return value(totals[index], percentile) / unit;
+  }
+
+  @Override
+  public long getUpdateCount() {
+    return updates.get();
+  }
+
+  @Override
+  public double getServiceTimeMicrosP50() {
+    return total(0, 50, 1000.0);
+  }
+
+  @Override
+  public double getServiceTimeMicrosP99() {
+    return total(0, 99, 1000.0);
+  }
+
+  @Override
+  public double getServiceTimeMicrosP999() {
+    return total(0, 99.9, 1000.0);
+  }
+
+  @Override
+  public double getServiceTimeMicrosMax() {
+    return total(0, 100, 1000.0);
+  }
+
+  @Override
+  public double getInterArrivalMillisP50() {
+    return total(1, 50, 1000000.0);
+  }
+
+  @Override
+  public double getInterArrivalMillisP99() {
+    return total(1, 99, 1000000.0);
+  }
+
+  @Override
+  public double getInterArrivalMillisMax() {
+    return total(1, 100, 1000000.0);
+  }
+
+  @Override
+  public double getSourceLatencyMillisP50() {
+    return total(2, 50, 1000000.0);
+  }
+
+  @Override
+  public double getSourceLatencyMillisP99() {
+    return total(2, 99, 1000000.0);
+  }
+
+  @Override
+  public double getSourceLatencyMillisMax() {
+    return total(2, 100, 1000000.0);
+  }
+
+  @Override
+  public synchronized void reset() {
+    collect();
+    for (Histogram histogram : totals) {
+      histogram.reset();
+    }
+    updates.set(0);
+  }
+
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package quickstart;
+
+/**
+ * JMX view of {@link UpdateLatencyStats}; all the figures are cumulative
+ * since the start or the last reset.
+ */
+public interface UpdateLatencyStatsMBean {
+
+  long getUpdateCount();
+
+  double getServiceTimeMicrosP50();
+
+  double getServiceTimeMicrosP99();
+
+  double getServiceTimeMicrosP999();
+
+  double getServiceTimeMicrosMax();
+
+  double getInterArrivalMillisP50();
+
+  double getInterArrivalMillisP99();
+
+  double getInterArrivalMillisMax();
+
+  double getSourceLatencyMillisP50();
+
+  double getSourceLatencyMillisP99();
+
+  double getSourceLatencyMillisMax();
+
+  void reset();
+
+}
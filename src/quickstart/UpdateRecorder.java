@@ -0,0 +1,312 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package quickstart;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import com.lightstreamer.client.ItemUpdate;
+import com.lightstreamer.client.Subscription;
+import com.lightstreamer.client.SubscriptionListener;
+
+/**
+ * Records every event of a Subscription into an append-only, memory-mapped
+ * binary log, which can be played back offline through {@link UpdateReplayer}.
+ *
+ * The log starts with a header:
+ *    magic (int), version (short), start time in millis (long),
+ *    mode, item names, field names (counted lists of strings)
+ * followed by records, each prefixed by its length (int; 0 marks the end):
+ *    type (byte), receive time in nanos since the start (long), item position (int),
+ * then, for UPDATE records:
+ *    flags (byte: SNAPSHOT, ALL_VALUES), changed fields bitmap (long),
+ *    the values of the changed fields (or of all the fields if ALL_VALUES is set)
+ * and, for LOST_UPDATES records, the count (int).
+ * Strings are written as a varint of (UTF-8 length + 1), 0 standing for null.
+ *
+ * In MERGE mode only the changed values are stored, as the replayer can rebuild
+ * the item state; in the other modes the state is per key or per event,
+ * hence all the values are stored.
+ *
+ * Recording for the quickstart clients is enabled by the quickstart.record
+ * system property, which specifies the directory for the logs.
+ */
+public class UpdateRecorder implements SubscriptionListener {
+
+  static final int MAGIC = 0x4C53524C; // "LSRL"
+  static final short VERSION = 1;
+
+  static final byte UPDATE = 1;
+  static final byte CLEAR_SNAPSHOT = 2;
+  static final byte END_OF_SNAPSHOT = 3;
+  static final byte LOST_UPDATES = 4;
+
+  static final byte SNAPSHOT = 1;
+  static final byte ALL_VALUES = 2;
+
+  static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static final int WINDOW = 64 << 20;
+
+  /**
+   * Adds a recorder to the subscription if the quickstart.record system
+   * property is set; the log is named after the client and is closed
+   * when the JVM exits.
+   */
+  static void attachIfConfigured(Subscription sub, String name) {
+    String dir = System.getProperty("quickstart.record");
+    if (dir == null) {
+      return;
+    }
+    try {
+      final UpdateRecorder recorder = new UpdateRecorder(new File(dir, name + ".lsrec").toPath(), sub);
+      sub.addListener(recorder);
+      Runtime.getRuntime().addShutdownHook(new Thread("UpdateRecorder shutdown") {
+        @Override
+        public void run() {
+          recorder.close();
+        }
+      });
+    } catch (IOException e) {
+      System.err.println("Cannot record " + name + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * @return all the field names an ItemUpdate of the subscription can carry,
+   * in position order, including second-level ones in COMMAND mode
+   */
+  static String[] allFields(Subscription sub) {
+    String[] first = sub.getFields();
+    String[] second = "COMMAND".equals(sub.getMode()) ? sub.getCommandSecondLevelFields() : null;
+    if (second == null) {
+      return first;
+    }
+    String[] all = new String[first.length + second.length];
+    System.arraycopy(first, 0, all, 0, first.length);
+    System.arraycopy(second, 0, all, first.length, second.length);
+    return all;
+  }
+
+  private final FileChannel channel;
+  private final boolean merge;
+  private final int fieldCount;
+  private final long startNanos = System.nanoTime();
+
+  private MappedByteBuffer window;
+  private long windowStart;
+  private ByteBuffer scratch = ByteBuffer.allocate(4096);
+  private boolean closed = false;
+
+  public UpdateRecorder(Path path, Subscription sub) throws IOException {
+    this(path, sub.getMode(), sub.getItems(), allFields(sub));
+  }
+
+  public UpdateRecorder(Path path, String mode, String[] items, String[] fields) throws IOException {
+    this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    this.merge = "MERGE".equals(mode);
+    this.fieldCount = fields.length;
+    this.windowStart = 0;
+    this.window = channel.map(FileChannel.MapMode.READ_WRITE, 0, WINDOW);
+
+    scratch.clear();
+    scratch.putInt(MAGIC);
+    scratch.putShort(VERSION);
+    scratch.putLong(System.currentTimeMillis());
+    putString(mode);
+    putStrings(items);
+    putStrings(fields);
+    append();
+  }
+
+  private void putStrings(String[] values) {
+    ensure(5);
+    putVarint(values == null ? 0 : values.length);
+    if (values != null) {
+      for (String value : values) {
+        putString(value);
+      }
+    }
+  }
+
+  private void putString(String value) {
+    if (value == null) {
+      ensure(1);
+      scratch.put((byte) 0);
+      return;
+    }
+    byte[] bytes = value.getBytes(UTF8);
+    ensure(5 + bytes.length);
+    putVarint(bytes.length + 1);
+    scratch.put(bytes);
+  }
+
+  private void putVarint(int value) {
+    while ((value & ~0x7F) != 0) {
+      scratch.put((byte) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    scratch.put((byte) value);
+  }
+
+  private void ensure(int bytes) {
+    if (scratch.remaining() < bytes) {
+      ByteBuffer larger = ByteBuffer.allocate(Math.max(scratch.capacity() * 2, scratch.position() + bytes));
+      scratch.flip();
+      larger.put(scratch);
+      scratch = larger;
+    }
+  }
+
+  private void beginRecord(byte type, int itemPos) {
+    scratch.clear();
+    scratch.putInt(0); //length, patched by append
+    scratch.put(type);
+    scratch.putLong(System.nanoTime() - startNanos);
+    scratch.putInt(itemPos);
+  }
+
+  private void endRecord() {
+    scratch.putInt(0, scratch.position() - 4);
+    append();
+  }
+
+  private void append() {
+    scratch.flip();
+    //a record never spans two windows; 4 more bytes are kept for the end marker
+    if (window.remaining() < scratch.remaining() + 4) {
+      long position = windowStart + window.position();
+      window = null;
+      try {
+        window = channel.map(FileChannel.MapMode.READ_WRITE, position, Math.max(WINDOW, scratch.remaining() + 4));
+      } catch (IOException e) {
+        throw new IllegalStateException("Cannot extend the update log", e);
+      }
+      windowStart = position;
+    }
+    window.put(scratch);
+  }
+
+  @Override
+  public synchronized void onItemUpdate(ItemUpdate update) {
+    if (closed) {
+      return;
+    }
+    long changed = 0;
+    for (int pos = 1; pos <= fieldCount; pos++) {
+      if (update.isValueChanged(pos)) {
+        changed |= 1L << pos;
+      }
+    }
+    boolean allValues = !merge;
+
+    beginRecord(UPDATE, update.getItemPos());
+    scratch.put((byte) ((update.isSnapshot() ? SNAPSHOT : 0) | (allValues ? ALL_VALUES : 0)));
+    scratch.putLong(changed);
+    for (int pos = 1; pos <= fieldCount; pos++) {
+      if (allValues || (changed & (1L << pos)) != 0) {
+        putString(update.getValue(pos));
+      }
+    }
+    endRecord();
+  }
+
+  @Override
+  public synchronized void onClearSnapshot(String itemName, int itemPos) {
+    if (!closed) {
+      beginRecord(CLEAR_SNAPSHOT, itemPos);
+      endRecord();
+    }
+  }
+
+  @Override
+  public synchronized void onEndOfSnapshot(String itemName, int itemPos) {
+    if (!closed) {
+      beginRecord(END_OF_SNAPSHOT, itemPos);
+      endRecord();
+    }
+  }
+
+  @Override
+  public synchronized void onItemLostUpdates(String itemName, int itemPos, int lostUpdates) {
+    if (!closed) {
+      beginRecord(LOST_UPDATES, itemPos);
+      ensure(4);
+      scratch.putInt(lostUpdates);
+      endRecord();
+    }
+  }
+
+  /**
+   * Writes the end marker and trims the file to the recorded length.
+   */
+  public synchronized void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    long length = windowStart + window.position();
+    window.putInt(0);
+    window.force();
+    window = null;
+    try {
+      channel.truncate(length + 4);
+      channel.close();
+    } catch (IOException e) {
+      System.err.println("Cannot close the update log: " + e.getMessage());
+    }
+  }
+
+  @Override
+  public void onCommandSecondLevelItemLostUpdates(int lostUpdates, String key) {
+  }
+
+  @Override
+  public void onCommandSecondLevelSubscriptionError(int code, String message, String key) {
+  }
+
+  @Override
+  public void onListenEnd() {
+  }
+
+  @Override
+  public void onListenStart() {
+  }
+
+  @Override
+  public void onSubscription() {
+  }
+
+  @Override
+  public void onSubscriptionError(int code, String message) {
+  }
+
+  @Override
+  public void onUnsubscription() {
+  }
+
+  @Override
+  public void onRealMaxFrequency(String frequency) {
+  }
+
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package quickstart;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.LockSupport;
+
+import com.lightstreamer.client.SubscriptionListener;
+
+/**
+ * Plays back a log written by {@link UpdateRecorder} through any
+ * SubscriptionListener, without a Lightstreamer Server.
+ *
+ * Updates are delivered as {@link SyntheticItemUpdate} instances carrying the
+ * full item state, as the library would do; the pace can be the original one,
+ * scaled by a speed factor, or as fast as possible.
+ */
+public class UpdateReplayer {
+
+  /**
+   * Speed factor meaning "as fast as possible"
+   */
+  public static final double MAX_SPEED = Double.POSITIVE_INFINITY;
+
+  private static final int WINDOW = 64 << 20;
+
+  private final FileChannel channel;
+  private final long size;
+
+  private final long startMillis;
+  private final String mode;
+  private final String[] items;
+  private final String[] fields;
+  private final long firstRecord;
+
+  private MappedByteBuffer window;
+  private long windowStart;
+
+  public UpdateReplayer(Path path) throws IOException {
+    this.channel = FileChannel.open(path, StandardOpenOption.READ);
+    this.size = channel.size();
+    map(0);
+
+    if (window.getInt() != UpdateRecorder.MAGIC) {
+      throw new IOException("Not an update log: " + path);
+    }
+    short version = window.getShort();
+    if (version != UpdateRecorder.VERSION) {
+      throw new IOException("Unsupported update log version " + version);
+    }
+    this.startMillis = window.getLong();
+    this.mode = getString();
+    this.items = getStrings();
+    this.fields = getStrings();
+    this.firstRecord = window.position();
+  }
+
+  private void map(long position) throws IOException {
+    window = null;
+    window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW, size - position));
+    windowStart = position;
+  }
+
+  private String getString() {
+    int length = getVarint();
+    if (length == 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length - 1];
+    window.get(bytes);
+    return new String(bytes, UpdateRecorder.UTF8);
+  }
+
+  private String[] getStrings() {
+    int count = getVarint();
+    String[] values = new String[count];
+    for (int i = 0; i < count; i++) {
+      values[i] = getString();
+    }
+    return values;
+  }
+
+  private int getVarint() {
+    int value = 0;
+    int shift = 0;
+    byte b;
+    do {
+      b = window.get();
+      value |= (b & 0x7F) << shift;
+      shift += 7;
+    } while ((b & 0x80) != 0);
+    return value;
+  }
+
+  public String getMode() {
+    return mode;
+  }
+
+  public String[] getItems() {
+    return items.clone();
+  }
+
+  public String[] getFields() {
+    return fields.clone();
+  }
+
+  /**
+   * @return the wall-clock time the recording started at
+   */
+  public long getStartMillis() {
+    return startMillis;
+  }
+
+  /**
+   * Delivers all the recorded events to the listener, on the calling thread,
+   * surrounded by onSubscription and onUnsubscription.
+   *
+   * @param speed 1 for the original pace, 2 for twice as fast, and so on;
+   * {@link #MAX_SPEED} for no pacing at all
+   * @return the number of updates delivered
+   */
+  public long replay(SubscriptionListener listener, double speed) throws IOException {
+    if (!(speed > 0)) {
+      throw new IllegalArgumentException("speed must be positive");
+    }
+    boolean merge = "MERGE".equals(mode);
+    String[][] state = new String[items.length + 1][];
+    long updates = 0;
+    long replayStart = System.nanoTime();
+
+    map(firstRecord);
+    listener.onSubscription();
+    while (true) {
+      if (window.remaining() < 4) {
+        if (windowStart + window.position() + 4 > size) {
+          break;
+        }
+        map(windowStart + window.position());
+      }
+      int length = window.getInt();
+      if (length == 0) {
+        break;
+      }
+      if (window.remaining() < length) {
+        map(windowStart + window.position() - 4);
+        window.getInt();
+      }
+
+      byte type = window.get();
+      long nanos = window.getLong();
+      int itemPos = window.getInt();
+      String itemName = itemPos >= 1 && itemPos <= items.length ? items[itemPos - 1] : null;
+
+      if (speed != MAX_SPEED) {
+        long due = replayStart + (long) (nanos / speed);
+        long wait;
+        while ((wait = due - System.nanoTime()) > 0) {
+          LockSupport.parkNanos(wait);
+        }
+      }
+
+      switch (type) {
+        case UpdateRecorder.UPDATE:
+          byte flags = window.get();
+          long changed = window.getLong();
+          boolean allValues = (flags & UpdateRecorder.ALL_VALUES) != 0;
+          String[] values;
+          if (merge) {
+            if (state[itemPos] == null) {
+              state[itemPos] = new String[fields.length];
+            }
+            values = state[itemPos];
+          } else {
+            values = new String[fields.length];
+          }
+          for (int pos = 1; pos <= fields.length; pos++) {
+            if (allValues || (changed & (1L << pos)) != 0) {
+              values[pos - 1] = getString();
+            }
+          }
+          //updates must not change after delivery, hence MERGE state is copied
+          listener.onItemUpdate(new SyntheticItemUpdate(itemName, itemPos, fields, merge ? values.clone() : values,
+              changed, (flags & UpdateRecorder.SNAPSHOT) != 0));
+          updates++;
+          break;
+        case UpdateRecorder.CLEAR_SNAPSHOT:
+          state[itemPos] = null;
+          listener.onClearSnapshot(itemName, itemPos);
+          break;
+        case UpdateRecorder.END_OF_SNAPSHOT:
+          listener.onEndOfSnapshot(itemName, itemPos);
+          break;
+        case UpdateRecorder.LOST_UPDATES:
+          listener.onItemLostUpdates(itemName, itemPos, window.getInt());
+          break;
+        default:
+          throw new IOException("Corrupted update log, record type " + type);
+      }
+    }
+    listener.onUnsubscription();
+    return updates;
+  }
+
+  public void close() throws IOException {
+    window = null;
+    channel.close();
+  }
+
+}